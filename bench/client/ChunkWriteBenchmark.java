@@ -0,0 +1,118 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.Protocol;
+
+/**
+ * Writing received chunks to disk under each durability policy: one chunk
+ * at a time, and a whole file from opening it to the sync at the end. The
+ * policy is none, end, or the number of megabytes between syncs.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+@State(Scope.Thread)
+@Fork(1)
+public class ChunkWriteBenchmark {
+
+	private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+	@Param({"none", "end", "1", "16"})
+	public String policy;
+
+	@Param({"1472", "65507"})
+	public int packetSize;
+
+	private DurabilityPolicy durability;
+	private File file;
+	private ChunkWriter writer;
+	private ByteBuffer chunk;
+	private long position;
+
+	@Setup
+	public void setup() throws IOException {
+
+		if(policy.equals("none"))	{
+			durability = DurabilityPolicy.none();
+		} else if(policy.equals("end"))	{
+			durability = DurabilityPolicy.atEnd();
+		} else {
+			durability = DurabilityPolicy.everyMegabytes(Integer.parseInt(policy));
+		}
+
+		byte[] data = new byte[packetSize - Protocol.DATA_HEADER_SIZE];
+		new Random(1).nextBytes(data);
+		chunk = ByteBuffer.wrap(data);
+
+		file = File.createTempFile("received", ".bin");
+		writer = new ChunkWriter(file, FILE_SIZE, true, false, durability);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		writer.close();
+		file.delete();
+	}
+
+	/**
+	 * Writes the next chunk of the file, syncing whenever the policy says to.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public void writeChunk() throws IOException {
+
+		if(position + chunk.capacity() > FILE_SIZE)	{
+			position = 0;
+		}
+
+		chunk.clear();
+		writer.write(position, chunk);
+		position += chunk.capacity();
+	}
+
+	/**
+	 * Writes a whole file, from opening it to the sync once every chunk is in.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3)
+	@Measurement(iterations = 10)
+	public void writeFile() throws IOException {
+
+		ChunkWriter whole = new ChunkWriter(file, FILE_SIZE, true, false, durability);
+
+		try {
+			for(long offset = 0; offset + chunk.capacity() <= FILE_SIZE; offset += chunk.capacity())	{
+				chunk.clear();
+				whole.write(offset, chunk);
+			}
+
+			whole.finish();
+		} finally {
+			whole.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.Protocol;
+
+/**
+ * Reading the chunk each data packet carries, walking through a file in
+ * order the way a transfer does. A FileInputStream read into a fresh array
+ * was how chunks were first read; the chunk sources are what the server
+ * uses now. The file is small enough to stay in the page cache, so this
+ * measures the cost of getting a chunk, not of the disk.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChunkReadBenchmark {
+
+	private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+	@Param({"1472", "8972", "65507"})
+	public int packetSize;
+
+	private int chunkSize;
+	private File file;
+	private long position;
+	private FileInputStream stream;
+	private ChunkSource channelSource;
+	private ChunkSource mappedSource;
+	private ByteBuffer packet;
+
+	@Setup
+	public void setup() throws IOException {
+
+		chunkSize = packetSize - Protocol.DATA_HEADER_SIZE;
+		file = File.createTempFile("chunks", ".bin");
+
+		byte[] block = new byte[1024 * 1024];
+		new Random(1).nextBytes(block);
+		FileOutputStream out = new FileOutputStream(file);
+
+		try {
+			for(int written = 0; written < FILE_SIZE; written += block.length)	{
+				out.write(block);
+			}
+		} finally {
+			out.close();
+		}
+
+		stream = new FileInputStream(file);
+		channelSource = new ChannelChunkSource(file);
+		mappedSource = new MappedChunkSource(file);
+
+		//Chunks land after the header in a direct buffer, like a session's packet buffer
+		packet = ByteBuffer.allocateDirect(packetSize);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		stream.close();
+		channelSource.close();
+		mappedSource.close();
+		file.delete();
+	}
+
+	/**
+	 * Moves on to the next chunk, back to the start once past the end.
+	 */
+	private long nextPosition() {
+
+		long current = position;
+		position += chunkSize;
+
+		if(position + chunkSize > FILE_SIZE)	{
+			position = 0;
+		}
+
+		return current;
+	}
+
+	@Benchmark
+	public byte[] fileInputStream() throws IOException {
+
+		if(nextPosition() == 0)	{
+			stream.close();
+			stream = new FileInputStream(file);
+		}
+
+		byte[] chunk = new byte[chunkSize];
+		int total = 0;
+
+		while(total < chunkSize)	{
+			total += stream.read(chunk, total, chunkSize - total);
+		}
+
+		return chunk;
+	}
+
+	@Benchmark
+	public ByteBuffer fileChannel() throws IOException {
+		packet.clear().position(Protocol.DATA_HEADER_SIZE);
+		channelSource.read(nextPosition(), packet);
+		return packet;
+	}
+
+	@Benchmark
+	public ByteBuffer mapped() throws IOException {
+		packet.clear().position(Protocol.DATA_HEADER_SIZE);
+		mappedSource.read(nextPosition(), packet);
+		return packet;
+	}
+}
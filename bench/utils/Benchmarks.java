@@ -0,0 +1,48 @@
+package utils;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks in the bench folder with the allocation
+ * profiler on, so every result comes with the bytes allocated per
+ * operation next to the time taken.
+ *
+ * The bench folder is compiled together with src, with jmh-core and
+ * jmh-generator-annprocess on the class path so the annotation processor
+ * generates the harness. Then:
+ *
+ *   java -cp CLASSPATH utils.Benchmarks [REGEX] [RESULTS.json]
+ *
+ * runs the benchmarks whose names match REGEX, all of them if none is
+ * given, and writes the results as JSON if a file is named, so a change
+ * can be compared against the numbers from before it.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class Benchmarks {
+
+	/**
+	 * Runs the benchmarks.
+	 * @param args Optionally a pattern for the benchmarks to run, then a file for the results.
+	 * @throws RunnerException when a benchmark fails.
+	 */
+	public static void main(String[] args) throws RunnerException {
+
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include((args.length > 0) ? args[0] : ".*Benchmark.*")
+				.addProfiler(GCProfiler.class);
+
+		if(args.length > 1)	{
+			options.resultFormat(ResultFormatType.JSON).result(args[1]);
+		}
+
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,280 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import client.ClientController;
+import client.DurabilityPolicy;
+import server.ServerController;
+
+/**
+ * Checks that a file larger than 4 GB transfers intact over loopback, with
+ * the server and client both in this process. The file is sparse, so it
+ * takes no time or disk to make. Blocks of random bytes sit at its start,
+ * either side of 2^31 and 2^32 bytes and at its end. An offset or packet
+ * number that wrapped would put them in the wrong place. The copy is
+ * compared with the original by size and SHA-256.
+ *
+ * Exits with 0 if the copy matches, 1 if it doesn't or the transfer fails.
+ * Run with --help for the options.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class LargeFileCheck {
+
+	private static final String USAGE =
+			"Usage: LargeFileCheck [options]\n"
+			+ "  --size SIZE                     file size, with K, M or G, more than 4G, default 4G plus 12345 bytes\n"
+			+ "  --max-packet BYTES              largest packet to ask for, default " + Protocol.MAX_PACKET_SIZE + "\n"
+			+ "  --engine SELECTOR|THREAD_PER_SESSION\n"
+			+ "  --access MAPPED|POSITIONAL\n"
+			+ "  --seed N                        seed for the random blocks, default 1\n"
+			+ "  --dir DIRECTORY                 where the files are made, default a temporary directory\n";
+
+	private static final long FOUR_GIGABYTES = 1L << 32;
+
+	//Size of each block of random bytes in the file
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	private long size = FOUR_GIGABYTES + 12345;
+	private int maxPacketSize = Protocol.MAX_PACKET_SIZE;
+	private ServerController.Engine engine = ServerController.Engine.SELECTOR;
+	private ServerController.FileAccess access = ServerController.FileAccess.MAPPED;
+	private long seed = 1;
+	private File directory;
+
+	private Log log;
+
+	/**
+	 * Runs the check.
+	 * @param args The options, see USAGE.
+	 */
+	public static void main(String[] args) {
+
+		LargeFileCheck check = new LargeFileCheck();
+
+		if(args.length > 0 && args[0].equals("--help"))	{
+			System.err.print(USAGE);
+			System.exit(0);
+			return;
+		}
+
+		try {
+			check.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		check.log = new Log(new WriterSink(new OutputStreamWriter(System.err), false), Log.Level.WARN);
+		boolean matched = false;
+
+		try {
+			matched = check.run();
+		} catch (IOException e) {
+			System.err.println("Check failed: " + e.getMessage());
+		} finally {
+			check.log.close();
+		}
+
+		System.exit(matched ? 0 : 1);
+	}
+
+	/**
+	 * Reads the options.
+	 * @param args The options, see USAGE.
+	 * @throws IllegalArgumentException when an option or value is not valid.
+	 */
+	private void parse(String[] args) {
+
+		for(int i = 0; i < args.length; i++)	{
+
+			String value = value(args, ++i);
+
+			if(args[i - 1].equals("--size"))	{
+				size = LoopbackBenchmark.parseSize(value);
+
+				if(size <= FOUR_GIGABYTES)	{
+					throw new IllegalArgumentException("Size must be more than 4G");
+				}
+
+			} else if(args[i - 1].equals("--max-packet"))	{
+				maxPacketSize = Integer.parseInt(value);
+			} else if(args[i - 1].equals("--engine"))	{
+				engine = ServerController.Engine.valueOf(value);
+			} else if(args[i - 1].equals("--access"))	{
+				access = ServerController.FileAccess.valueOf(value);
+			} else if(args[i - 1].equals("--seed"))	{
+				seed = Long.parseLong(value);
+			} else if(args[i - 1].equals("--dir"))	{
+				directory = new File(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+			}
+		}
+	}
+
+	/**
+	 * Makes the file, fetches it and compares the copy with the original.
+	 * @return True if the copy matches.
+	 * @throws IOException when the files or sockets can't be set up, or the transfer fails.
+	 */
+	private boolean run() throws IOException {
+
+		boolean temporary = (directory == null);
+
+		if(temporary)	{
+			directory = File.createTempFile("largefile", "");
+			directory.delete();
+		}
+
+		File served = new File(directory, "served");
+		File received = new File(directory, "received");
+		served.mkdirs();
+		received.mkdirs();
+
+		String name = "sparse-" + size + ".bin";
+		File original = new File(served, name);
+		File copy = new File(received, name);
+
+		try {
+			makeSparseFile(original, size, seed);
+			copy.delete();
+
+			ServerController server = new ServerController(0, log);
+			server.setDirectory(served);
+			server.setEngine(engine);
+			server.setFileAccess(access);
+			server.start();
+
+			long elapsed;
+
+			try {
+				ClientController client = new ClientController(name, "127.0.0.1", server.getPort(), log);
+				client.setDirectory(received);
+				client.setMaxPacketSize(maxPacketSize);
+				client.setResumable(false);
+				client.setDurabilityPolicy(DurabilityPolicy.none());
+
+				long start = System.nanoTime();
+				client.transfer();
+				elapsed = System.nanoTime() - start;
+			} finally {
+				server.killServer();
+			}
+
+			double seconds = elapsed / 1e9;
+			System.out.println(String.format("Transferred %d bytes in %.1fs (%.1f MB/s)", size, seconds, size / seconds / (1024 * 1024)));
+
+			if(copy.length() != size)	{
+				System.out.println("Copy is " + copy.length() + " bytes, expected " + size);
+				return false;
+			}
+
+			String expected = digest(original);
+			String actual = digest(copy);
+			System.out.println("Original SHA-256: " + expected);
+			System.out.println("Copy SHA-256:     " + actual);
+
+			boolean matched = expected.equals(actual);
+			System.out.println(matched ? "Copy matches" : "Copy does not match");
+
+			return matched;
+
+		} finally {
+			copy.delete();
+
+			if(temporary)	{
+				original.delete();
+				received.delete();
+				served.delete();
+				directory.delete();
+			}
+		}
+	}
+
+	/**
+	 * Makes a sparse file with blocks of random bytes where a wrapped offset
+	 * would show. Blocks are cut short at the end of the file.
+	 * @param file The file.
+	 * @param size Its size.
+	 * @param seed The seed for the blocks.
+	 * @throws IOException when the file can't be written.
+	 */
+	private static void makeSparseFile(File file, long size, long seed) throws IOException {
+
+		long[] offsets = { 0, (1L << 31) - BLOCK_SIZE / 2, FOUR_GIGABYTES - BLOCK_SIZE / 2, size - BLOCK_SIZE };
+		byte[] block = new byte[BLOCK_SIZE];
+		Random random = new Random(seed);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			raf.setLength(size);
+
+			for(long offset : offsets)	{
+				random.nextBytes(block);
+				raf.seek(offset);
+				raf.write(block, 0, (int) Math.min(block.length, size - offset));
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the SHA-256 of a file as hex.
+	 * @param file The file.
+	 * @throws IOException when the file can't be read.
+	 */
+	private static String digest(File file) throws IOException {
+
+		MessageDigest digest = Utils.newTransferDigest();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+
+			while(channel.read(buffer) >= 0)	{
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			raf.close();
+		}
+
+		StringBuilder hex = new StringBuilder();
+
+		for(byte b : digest.digest())	{
+			hex.append(String.format("%02x", b & 0xFF));
+		}
+
+		return hex.toString();
+	}
+
+	/**
+	 * Returns the value following an option.
+	 * @param args The arguments.
+	 * @param i Where the value should be.
+	 * @throws IllegalArgumentException when there is no value.
+	 */
+	private static String value(String[] args, int i) {
+
+		if(i >= args.length)	{
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		}
+
+		return args[i];
+	}
+}
@@ -0,0 +1,609 @@
+package utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import client.ClientController;
+import client.ClientMetrics;
+import client.DurabilityPolicy;
+import proxy.Impairment;
+import proxy.ImpairmentProxy;
+import server.ServerController;
+import server.ServerMetrics;
+
+/**
+ * Transfers files over loopback with the server, the clients and, for any
+ * loss or delay, an impairment proxy all in this process. Every file size is
+ * sent under every combination of loss and delay, a number of times each,
+ * and the results are written as JSON so runs can be compared over time.
+ *
+ * For each combination the results give:
+ * - throughput, every byte the server sent per second, headers,
+ *   retransmissions and parity included
+ * - goodput, file bytes delivered per second
+ * - the share of data packets that were retransmissions
+ * - the median and 99th percentile time for one client to get its file
+ * - CPU seconds spent per gigabyte delivered by the server and clients,
+ *   leaving out the proxy's thread
+ *
+ * Run with --help for the options.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class LoopbackBenchmark {
+
+	private static final String USAGE =
+			"Usage: LoopbackBenchmark [options]\n"
+			+ "  --sizes LIST                    file sizes, with K, M or G, default 1K,64K,1M,16M,256M\n"
+			+ "  --loss LIST                     loss rates each way, default 0,0.01,0.05\n"
+			+ "  --delay LIST                    one way delays in milliseconds, default 0,10,50\n"
+			+ "  --runs N                        timed runs of each combination, default 5\n"
+			+ "  --warmup N                      untimed runs first, default 1\n"
+			+ "  --clients N                     clients fetching the file at once, default 1\n"
+			+ "  --streams N                     sessions per client\n"
+			+ "  --timeout SECONDS               give up on a transfer after this long, default 600\n"
+			+ "  --seed N                        seed for the files and the proxy, default 1\n"
+			+ "  --dir DIRECTORY                 where the files are made, default a temporary directory\n"
+			+ "  --out FILE                      write the JSON here rather than standard output\n";
+
+	private static final double MEGABYTE = 1024 * 1024;
+	private static final double GIGABYTE = 1024 * 1024 * 1024;
+
+	private long[] sizes = { 1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024, 256 * 1024 * 1024 };
+	private double[] losses = { 0, 0.01, 0.05 };
+	private int[] delays = { 0, 10, 50 };
+	private int runs = 5;
+	private int warmup = 1;
+	private int clients = 1;
+	private int streams = 1;
+	private long timeout = 600;
+	private long seed = 1;
+	private File directory;
+	private String out;
+
+	private Log log;
+	private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private List<String> results = new ArrayList<String>();
+
+	/**
+	 * Runs the benchmark.
+	 * @param args The options, see USAGE.
+	 */
+	public static void main(String[] args) {
+
+		LoopbackBenchmark benchmark = new LoopbackBenchmark();
+
+		if(args.length > 0 && args[0].equals("--help"))	{
+			System.err.print(USAGE);
+			System.exit(0);
+			return;
+		}
+
+		try {
+			benchmark.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		benchmark.log = new Log(new WriterSink(new OutputStreamWriter(System.err), false), Log.Level.WARN);
+
+		try {
+			benchmark.run();
+		} catch (IOException e) {
+			System.err.println("Benchmark failed: " + e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			System.exit(1);
+		} finally {
+			benchmark.log.close();
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Reads the options.
+	 * @param args The options, see USAGE.
+	 * @throws IllegalArgumentException when an option or value is not valid.
+	 */
+	private void parse(String[] args) {
+
+		for(int i = 0; i < args.length; i++)	{
+
+			String value = value(args, ++i);
+
+			if(args[i - 1].equals("--sizes"))	{
+				String[] parts = value.split(",");
+				sizes = new long[parts.length];
+
+				for(int j = 0; j < parts.length; j++)	{
+					sizes[j] = parseSize(parts[j].trim());
+				}
+
+			} else if(args[i - 1].equals("--loss"))	{
+				String[] parts = value.split(",");
+				losses = new double[parts.length];
+
+				for(int j = 0; j < parts.length; j++)	{
+					losses[j] = Double.parseDouble(parts[j].trim());
+				}
+
+			} else if(args[i - 1].equals("--delay"))	{
+				String[] parts = value.split(",");
+				delays = new int[parts.length];
+
+				for(int j = 0; j < parts.length; j++)	{
+					delays[j] = Integer.parseInt(parts[j].trim());
+				}
+
+			} else if(args[i - 1].equals("--runs"))	{
+				runs = atLeast("Runs", Integer.parseInt(value), 1);
+			} else if(args[i - 1].equals("--warmup"))	{
+				warmup = atLeast("Warmup", Integer.parseInt(value), 0);
+			} else if(args[i - 1].equals("--clients"))	{
+				clients = atLeast("Clients", Integer.parseInt(value), 1);
+			} else if(args[i - 1].equals("--streams"))	{
+				streams = atLeast("Streams", Integer.parseInt(value), 1);
+			} else if(args[i - 1].equals("--timeout"))	{
+				timeout = atLeast("Timeout", Integer.parseInt(value), 1);
+			} else if(args[i - 1].equals("--seed"))	{
+				seed = Long.parseLong(value);
+			} else if(args[i - 1].equals("--dir"))	{
+				directory = new File(value);
+			} else if(args[i - 1].equals("--out"))	{
+				out = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+			}
+		}
+	}
+
+	/**
+	 * Starts the server, makes the files and runs every combination, then
+	 * writes the results.
+	 * @throws IOException when the files or sockets can't be set up.
+	 * @throws InterruptedException when interrupted while waiting for a transfer.
+	 */
+	private void run() throws IOException, InterruptedException {
+
+		boolean temporary = (directory == null);
+
+		if(temporary)	{
+			directory = File.createTempFile("loopback", "");
+			directory.delete();
+		}
+
+		File served = new File(directory, "served");
+		File received = new File(directory, "received");
+		served.mkdirs();
+		received.mkdirs();
+
+		String[] names = new String[sizes.length];
+
+		for(int i = 0; i < sizes.length; i++)	{
+			names[i] = "file-" + sizes[i] + ".bin";
+			makeFile(new File(served, names[i]), sizes[i], seed + i);
+		}
+
+		ServerController server = new ServerController(0, log);
+		server.setDirectory(served);
+		server.start();
+
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+
+		try {
+			for(double loss : losses)	{
+				for(int delay : delays)	{
+
+					ImpairmentProxy proxy = null;
+					Thread proxyThread = null;
+					int port = server.getPort();
+
+					//Without loss or delay the clients go straight to the server
+					if(loss > 0 || delay > 0)	{
+						Impairment impairment = new Impairment();
+						impairment.setLoss(loss);
+						impairment.setDelay(delay);
+
+						proxy = new ImpairmentProxy(0, new InetSocketAddress("127.0.0.1", server.getPort()), impairment, impairment, log);
+						proxy.setSeed(seed);
+						proxyThread = startProxy(proxy);
+						port = proxy.getPort();
+					}
+
+					try {
+						for(int i = 0; i < sizes.length; i++)	{
+							runCell(server, pool, received, names[i], sizes[i], loss, delay, port, proxyThread);
+						}
+					} finally {
+						if(proxy != null)	{
+							proxy.stop();
+							proxyThread.join();
+						}
+					}
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			server.killServer();
+
+			if(temporary)	{
+				delete(directory);
+			}
+		}
+
+		writeResults();
+	}
+
+	/**
+	 * Runs one file size under one loss rate and delay and records the result.
+	 * @param server The server.
+	 * @param pool The threads the clients run on.
+	 * @param received Where the clients write the file.
+	 * @param name The name of the file.
+	 * @param size The size of the file.
+	 * @param loss The loss rate each way.
+	 * @param delay The one way delay in milliseconds.
+	 * @param port Where the clients send, the server's port or the proxy's.
+	 * @param proxyThread The proxy's thread, or null if there is no proxy.
+	 * @throws InterruptedException when interrupted while waiting for a transfer.
+	 */
+	private void runCell(ServerController server, ExecutorService pool, File received, String name, long size,
+			double loss, int delay, int port, Thread proxyThread) throws InterruptedException {
+
+		for(int i = 0; i < warmup; i++)	{
+			runOnce(pool, received, name, size, port, new ClientMetrics(), new ArrayList<Long>());
+		}
+
+		ClientMetrics clientMetrics = new ClientMetrics();
+		List<Long> times = new ArrayList<Long>();
+		int failed = 0;
+
+		ServerMetrics.Snapshot before = server.getMetrics().snapshot();
+		long cpuBefore = processCpuTime() - threadCpuTime(proxyThread);
+		long elapsed = 0;
+
+		for(int i = 0; i < runs; i++)	{
+			long start = System.nanoTime();
+			failed += runOnce(pool, received, name, size, port, clientMetrics, times);
+			elapsed += System.nanoTime() - start;
+		}
+
+		long cpu = processCpuTime() - threadCpuTime(proxyThread) - cpuBefore;
+		ServerMetrics.Snapshot after = server.getMetrics().snapshot();
+		ClientMetrics.Snapshot client = clientMetrics.snapshot();
+
+		long delivered = size * (runs * clients - failed);
+		long sent = after.getBytesSent() - before.getBytesSent();
+		long packets = after.getPacketsSent() - before.getPacketsSent() - (after.getParityPacketsSent() - before.getParityPacketsSent());
+		long retransmissions = after.getRetransmissions() - before.getRetransmissions();
+		double seconds = elapsed / 1e9;
+
+		long[] sorted = new long[times.size()];
+
+		for(int i = 0; i < sorted.length; i++)	{
+			sorted[i] = times.get(i);
+		}
+
+		Arrays.sort(sorted);
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\"size\":").append(size)
+				.append(",\"loss\":").append(number(loss))
+				.append(",\"delayMs\":").append(delay)
+				.append(",\"transfers\":").append(runs * clients)
+				.append(",\"failed\":").append(failed)
+				.append(",\"throughputMBps\":").append(number(sent / MEGABYTE / seconds))
+				.append(",\"goodputMBps\":").append(number(delivered / MEGABYTE / seconds))
+				.append(",\"retransmissionRatio\":").append(number((packets > 0) ? (double) retransmissions / packets : 0))
+				.append(",\"completionMs\":{\"p50\":").append(number(percentile(sorted, 0.5) / 1e6))
+				.append(",\"p99\":").append(number(percentile(sorted, 0.99) / 1e6))
+				.append(",\"max\":").append(number(percentile(sorted, 1) / 1e6))
+				.append("},\"cpuSecondsPerGB\":").append(number((delivered > 0) ? (cpu / 1e9) / (delivered / GIGABYTE) : 0))
+				.append(",\"clientTimeouts\":").append(client.getTimeouts())
+				.append(",\"duplicatePackets\":").append(client.getDuplicatePackets())
+				.append(",\"outOfOrderPackets\":").append(client.getOutOfOrderPackets()).append("}");
+
+		results.add(json.toString());
+		System.err.println(json);
+	}
+
+	/**
+	 * Has every client fetch the file once, at the same time.
+	 * @param pool The threads the clients run on.
+	 * @param received Where the clients write the file.
+	 * @param name The name of the file.
+	 * @param size The size of the file.
+	 * @param port Where the clients send.
+	 * @param metrics What the clients count into.
+	 * @param times Where each successful client's completion time goes, in nanoseconds.
+	 * @return The number of clients that failed.
+	 * @throws InterruptedException when interrupted while waiting for a transfer.
+	 */
+	private int runOnce(ExecutorService pool, File received, final String name, long size, int port, ClientMetrics metrics,
+			List<Long> times) throws InterruptedException {
+
+		List<ClientController> controllers = new ArrayList<ClientController>();
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		int failed = 0;
+
+		for(int i = 0; i < clients; i++)	{
+			File output = new File(received, "client" + i);
+			output.mkdirs();
+			new File(output, name).delete();
+
+			try {
+				final ClientController client = new ClientController(name, "127.0.0.1", port, log);
+				client.setDirectory(output);
+				client.setMetrics(metrics);
+				client.setResumable(false);
+				client.setStreams(streams);
+				client.setDurabilityPolicy(DurabilityPolicy.none());
+				controllers.add(client);
+
+				results.add(pool.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws IOException {
+						long start = System.nanoTime();
+						client.transfer();
+						return System.nanoTime() - start;
+					}
+				}));
+
+			} catch (IOException e) {
+				log.error("Unable to start client: " + e.getMessage());
+				failed++;
+			}
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+
+		for(int i = 0; i < results.size(); i++)	{
+
+			try {
+				times.add(results.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+
+				if(new File(new File(received, "client" + i), name).length() != size)	{
+					log.error(name + " arrived the wrong size");
+					failed++;
+				}
+
+			} catch (ExecutionException e) {
+				log.error(name + " failed: " + e.getCause().getMessage());
+				failed++;
+			} catch (TimeoutException e) {
+				log.error(name + " timed out");
+				controllers.get(i).killClient();
+				failed++;
+			}
+		}
+
+		for(int i = 0; i < clients; i++)	{
+			new File(new File(received, "client" + i), name).delete();
+		}
+
+		return failed;
+	}
+
+	/**
+	 * Runs the proxy on a thread whose CPU time can be taken out of the results.
+	 * @param proxy The proxy.
+	 * @return The proxy's thread.
+	 */
+	private Thread startProxy(final ImpairmentProxy proxy) {
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					proxy.run();
+				} catch (IOException e) {
+					log.error("Proxy stopped: " + e.getMessage());
+				}
+			}
+		}, "Proxy");
+
+		thread.setDaemon(true);
+		thread.start();
+
+		return thread;
+	}
+
+	/**
+	 * Writes the results, with enough about the machine to compare them fairly.
+	 * @throws IOException when the output file can't be written.
+	 */
+	private void writeResults() throws IOException {
+
+		Writer writer = (out != null) ? new FileWriter(out) : new OutputStreamWriter(System.out);
+		PrintWriter json = new PrintWriter(writer);
+
+		json.println("{");
+		json.println("  \"date\":\"" + new Date() + "\",");
+		json.println("  \"java\":\"" + System.getProperty("java.version") + "\",");
+		json.println("  \"os\":\"" + System.getProperty("os.name") + " " + System.getProperty("os.version") + "\",");
+		json.println("  \"processors\":" + Runtime.getRuntime().availableProcessors() + ",");
+		json.println("  \"runs\":" + runs + ",");
+		json.println("  \"clients\":" + clients + ",");
+		json.println("  \"streams\":" + streams + ",");
+		json.println("  \"seed\":" + seed + ",");
+		json.println("  \"results\":[");
+
+		for(int i = 0; i < results.size(); i++)	{
+			json.println("    " + results.get(i) + ((i < results.size() - 1) ? "," : ""));
+		}
+
+		json.println("  ]");
+		json.println("}");
+		json.flush();
+
+		if(out != null)	{
+			json.close();
+		}
+	}
+
+	/**
+	 * Makes a file of random bytes, unless one of the right size is already there.
+	 * @param file The file.
+	 * @param size Its size.
+	 * @param seed The seed for its contents.
+	 * @throws IOException when the file can't be written.
+	 */
+	private static void makeFile(File file, long size, long seed) throws IOException {
+
+		if(file.length() == size)	{
+			return;
+		}
+
+		//One random block, changed a little each time, is quick enough for files of gigabytes
+		byte[] block = new byte[1024 * 1024];
+		Random random = new Random(seed);
+		random.nextBytes(block);
+		FileOutputStream stream = new FileOutputStream(file);
+
+		try {
+			for(long written = 0; written < size; written += block.length)	{
+				for(int i = 0; i < 64; i++)	{
+					block[random.nextInt(block.length)] = (byte) random.nextInt();
+				}
+
+				stream.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static void delete(File file) {
+
+		File[] children = file.listFiles();
+
+		if(children != null)	{
+			for(File child : children)	{
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	/**
+	 * Returns the CPU time used by the whole process in nanoseconds, or 0 if it can't be measured.
+	 */
+	private static long processCpuTime() {
+
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+		if(os instanceof com.sun.management.OperatingSystemMXBean)	{
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Returns the CPU time used by a thread in nanoseconds, or 0 if there is no thread.
+	 */
+	private long threadCpuTime(Thread thread) {
+
+		if(thread == null || !threads.isThreadCpuTimeSupported())	{
+			return 0;
+		}
+
+		return Math.max(0, threads.getThreadCpuTime(thread.getId()));
+	}
+
+	/**
+	 * Returns the value at a fraction of the way through sorted values, by nearest rank.
+	 */
+	private static double percentile(long[] sorted, double fraction) {
+
+		if(sorted.length == 0)	{
+			return 0;
+		}
+
+		int rank = (int) Math.ceil(fraction * sorted.length);
+
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	private static String number(double value) {
+		return String.format(Locale.ROOT, "%.4f", value);
+	}
+
+	/**
+	 * Parses a size such as 512, 64K, 16M or 2G.
+	 * @throws IllegalArgumentException when the size is not valid.
+	 */
+	static long parseSize(String value) {
+
+		long unit = 1;
+		char last = Character.toUpperCase(value.charAt(value.length() - 1));
+
+		if(last == 'K')	{
+			unit = 1024;
+		} else if(last == 'M')	{
+			unit = 1024 * 1024;
+		} else if(last == 'G')	{
+			unit = 1024 * 1024 * 1024;
+		}
+
+		long size = Long.parseLong((unit > 1) ? value.substring(0, value.length() - 1) : value) * unit;
+
+		if(size < 1)	{
+			throw new IllegalArgumentException("Sizes must be at least 1 byte: " + value);
+		}
+
+		return size;
+	}
+
+	private static int atLeast(String name, int value, int minimum) {
+
+		if(value < minimum)	{
+			throw new IllegalArgumentException(name + " must be at least " + minimum);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns the value following an option.
+	 * @param args The arguments.
+	 * @param i Where the value should be.
+	 * @throws IllegalArgumentException when there is no value.
+	 */
+	private static String value(String[] args, int i) {
+
+		if(i >= args.length)	{
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		}
+
+		return args[i];
+	}
+}
@@ -0,0 +1,178 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding the headers of data packets and acknowledgments,
+ * checking packets and hashing their data, and working out how many
+ * packets a file needs. The wrapped variants
+ * allocate a buffer for every packet the way the transfer loops once did,
+ * so the allocation profiler shows what reusing buffers saves.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketHeaderBenchmark {
+
+	@Param({"1472", "8972", "65507"})
+	public int packetSize;
+
+	//Packet numbers and file sizes change every call so nothing is constant folded
+	private long packetNumber;
+	private long fileSize;
+
+	private byte[] data;
+	private ByteBuffer packet;
+	private ByteBuffer ack;
+	private PacketChecksum checksum;
+	private MessageDigest digest;
+
+	@Setup
+	public void setup() {
+		data = new byte[packetSize];
+		packet = ByteBuffer.wrap(data);
+		ack = ByteBuffer.allocate(Protocol.ACK_HEADER_SIZE + Utils.DEFAULT_WINDOW_SIZE / 8);
+		fileSize = 1L << 30;
+		checksum = new PacketChecksum();
+		digest = Utils.newTransferDigest();
+
+		packet.put(Protocol.DATA);
+		packet.putLong(12345);
+		packet.putInt(0);
+		packet.put(Protocol.RAW);
+	}
+
+	/**
+	 * Writes a data packet's header into a buffer kept for the session.
+	 */
+	@Benchmark
+	public ByteBuffer encodeDataHeader() {
+		packet.clear();
+		packet.put(Protocol.DATA);
+		packet.putLong(packetNumber++);
+		packet.putInt(0);
+		packet.put(Protocol.RAW);
+		return packet;
+	}
+
+	/**
+	 * Writes a data packet's header into a buffer wrapped for this packet alone.
+	 */
+	@Benchmark
+	public ByteBuffer encodeDataHeaderWrapped() {
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[packetSize]);
+		buffer.put(Protocol.DATA);
+		buffer.putLong(packetNumber++);
+		buffer.putInt(0);
+		buffer.put(Protocol.RAW);
+		return buffer;
+	}
+
+	/**
+	 * Reads the packet number of a received data packet through a view kept
+	 * for the transfer.
+	 */
+	@Benchmark
+	public long decodeDataHeader() {
+
+		if(Protocol.getType(data, packetSize) != Protocol.DATA)	{
+			return -1;
+		}
+
+		return packet.getLong(1);
+	}
+
+	/**
+	 * Reads the packet number of a received data packet by wrapping it first.
+	 */
+	@Benchmark
+	public long decodeDataHeaderWrapped() {
+
+		if(Protocol.getType(data, packetSize) != Protocol.DATA)	{
+			return -1;
+		}
+
+		return ByteBuffer.wrap(data, 0, packetSize).getLong(1);
+	}
+
+	/**
+	 * Writes an acknowledgment with a bitmap as long as the default window
+	 * into a buffer kept for the transfer.
+	 */
+	@Benchmark
+	public ByteBuffer encodeAck() {
+		ack.clear();
+		ack.put(Protocol.ACK);
+		ack.putLong(packetNumber);
+		ack.putInt(0);
+		ack.putLong(packetNumber + 3);
+		ack.putInt(0);
+		ack.putShort((short) 0);
+		ack.putLong(packetNumber++ | 0x5);
+		return ack;
+	}
+
+	/**
+	 * Reads an acknowledgment's header and bitmap the way the server does.
+	 */
+	@Benchmark
+	public long decodeAck() {
+		return ack.getLong(1) + ack.getLong(13) + ack.getInt(21) + ack.getShort(25) + ack.getLong(Protocol.ACK_HEADER_SIZE);
+	}
+
+	/**
+	 * Stores the CRC32C of a whole data packet in its header, as the server
+	 * does for every packet it sends.
+	 */
+	@Benchmark
+	public ByteBuffer sealChecksum() {
+		packet.clear();
+		checksum.seal(packet);
+		return packet;
+	}
+
+	/**
+	 * Checks the CRC32C of a whole data packet, as the client does for every
+	 * packet it receives.
+	 */
+	@Benchmark
+	public boolean verifyChecksum() {
+		packet.clear();
+		return checksum.verify(packet);
+	}
+
+	/**
+	 * Adds the data of a packet to the digest of the whole transfer.
+	 */
+	@Benchmark
+	public MessageDigest digestChunk() {
+		digest.update(data, Protocol.DATA_HEADER_SIZE, packetSize - Protocol.DATA_HEADER_SIZE);
+		return digest;
+	}
+
+	@Benchmark
+	public long numberOfPacketsToSend() {
+		return Utils.getNumberOfPacketsToSend(fileSize++, packetSize - Protocol.DATA_HEADER_SIZE);
+	}
+}
@@ -0,0 +1,399 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import utils.Protocol;
+import utils.Utils;
+
+/**
+ * Writes the stream of a batch transfer out to the files it holds. The
+ * stream starts with a manifest listing every file with its size, then
+ * holds their contents one after the other (see Protocol), so each byte
+ * past the manifest belongs to exactly one file.
+ *
+ * Data past the manifest can arrive before the manifest is complete. It is
+ * held in memory until the manifest says where it goes, which is never more
+ * than a window's worth. Files are opened when their first chunk arrives and
+ * closed as soon as their last one has been written, so only the files the
+ * window spans are open at once.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class BatchWriter implements ChunkSink {
+
+	private byte[] manifest;
+	private int manifestReceived;
+	private long numberOfBytes;
+	private boolean preallocate;
+	private DurabilityPolicy policy;
+	private File directory;
+
+	//Data past the manifest that arrived before it, keyed by position
+	private TreeMap<Long, byte[]> early = new TreeMap<Long, byte[]>();
+
+	//The files in the batch, set once the manifest is complete
+	private File[] files;
+	private long[] lengths;
+	private long[] modified;
+	private long[] starts;
+	private long[] remaining;
+	private int filesFinished;
+
+	//Files that have been started but not finished, keyed by their number in the manifest
+	private Map<Integer, ChunkWriter> open = new HashMap<Integer, ChunkWriter>();
+
+	/**
+	 * @param directory Where the files go, or null for the working directory.
+	 * @param manifestSize The number of bytes in the manifest, from the server's response.
+	 * @param numberOfBytes The number of bytes in the whole stream.
+	 * @param preallocate True to size each file up front.
+	 * @param policy How often each file should be forced to disk.
+	 */
+	public BatchWriter(File directory, int manifestSize, long numberOfBytes, boolean preallocate, DurabilityPolicy policy) {
+		this.directory = directory;
+		this.manifest = new byte[manifestSize];
+		this.numberOfBytes = numberOfBytes;
+		this.preallocate = preallocate;
+		this.policy = policy;
+	}
+
+	@Override
+	public void write(long position, ByteBuffer data) throws IOException {
+
+		if(position < manifest.length)	{
+			int count = (int) Math.min(data.remaining(), manifest.length - position);
+			data.get(manifest, (int) position, count);
+			manifestReceived += count;
+			position += count;
+
+			if(manifestReceived == manifest.length)	{
+				readManifest();
+			}
+		}
+
+		if(!data.hasRemaining())	{
+			return;
+		}
+
+		if(files == null)	{
+			byte[] copy = new byte[data.remaining()];
+			data.get(copy);
+			early.put(position, copy);
+		} else {
+			writeToFiles(position, data);
+		}
+	}
+
+	@Override
+	public void read(long position, ByteBuffer dst) throws IOException {
+
+		if(position < manifest.length && dst.hasRemaining())	{
+			int count = (int) Math.min(dst.remaining(), manifest.length - position);
+			dst.put(manifest, (int) position, count);
+			position += count;
+		}
+
+		while(dst.hasRemaining() && position < numberOfBytes)	{
+
+			int count;
+
+			if(files == null)	{
+				//Only whole chunks are read back, and they were held whole
+				byte[] held = early.get(position);
+
+				if(held == null)	{
+					return;
+				}
+
+				count = Math.min(dst.remaining(), held.length);
+				dst.put(held, 0, count);
+
+			} else {
+				int index = find(position);
+				long within = position - starts[index];
+				count = (int) Math.min(dst.remaining(), lengths[index] - within);
+				readFromFile(index, within, dst, count);
+			}
+
+			position += count;
+		}
+	}
+
+	@Override
+	public void sync() throws IOException {
+
+		for(ChunkWriter writer : open.values())	{
+			writer.sync();
+		}
+	}
+
+	/**
+	 * Called once the whole stream has been written.
+	 * @throws IOException when a file is incomplete or can't be synced.
+	 */
+	public void finish() throws IOException {
+
+		if(files == null || filesFinished != files.length)	{
+			throw new IOException("Batch ended before every file was received");
+		}
+	}
+
+	/**
+	 * Closes any files still open without syncing them.
+	 * @throws IOException when a file cannot be closed.
+	 */
+	public void close() throws IOException {
+
+		for(ChunkWriter writer : open.values())	{
+			writer.close();
+		}
+
+		open.clear();
+	}
+
+	/**
+	 * Returns the number of files in the batch, once the manifest has been received.
+	 */
+	public int getNumberOfFiles() {
+		return (files == null) ? 0 : files.length;
+	}
+
+	/**
+	 * Works out where every file goes from the manifest, creates the empty
+	 * ones and writes out the data that arrived ahead of it.
+	 * @throws IOException when the manifest doesn't make sense or a file can't be written.
+	 */
+	private void readManifest() throws IOException {
+
+		ByteBuffer in = ByteBuffer.wrap(manifest);
+
+		try {
+			int count = in.getInt();
+
+			if(count < 0 || count > (manifest.length - Protocol.MANIFEST_HEADER_SIZE) / Protocol.MANIFEST_ENTRY_SIZE)	{
+				throw new IOException("Invalid batch manifest");
+			}
+
+			files = new File[count];
+			lengths = new long[count];
+			modified = new long[count];
+			starts = new long[count];
+			remaining = new long[count];
+
+			long position = manifest.length;
+
+			for(int i = 0; i < count; i++)	{
+				byte[] path = new byte[in.getShort() & 0xFFFF];
+				in.get(path);
+
+				files[i] = checkPath(new String(path, StandardCharsets.UTF_8));
+				lengths[i] = in.getLong();
+				modified[i] = in.getLong();
+				starts[i] = position;
+				remaining[i] = lengths[i];
+
+				if(lengths[i] < 0)	{
+					throw new IOException("Invalid batch manifest");
+				}
+
+				position += lengths[i];
+			}
+
+			if(position != numberOfBytes)	{
+				throw new IOException("Batch manifest doesn't match the size of the batch");
+			}
+
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid batch manifest");
+		}
+
+		//Empty files never get any data to be created by
+		for(int i = 0; i < files.length; i++)	{
+
+			if(lengths[i] == 0)	{
+				getWriter(i);
+				finishFile(i);
+			}
+		}
+
+		for(Map.Entry<Long, byte[]> held : early.entrySet())	{
+			writeToFiles(held.getKey(), ByteBuffer.wrap(held.getValue()));
+		}
+
+		early.clear();
+	}
+
+	/**
+	 * Refuses paths that would put a file outside the directory the files go in.
+	 * @param path A path from the manifest.
+	 * @return The file the path names.
+	 * @throws IOException when the path is absolute, names a drive or climbs out with "..".
+	 */
+	private File checkPath(String path) throws IOException {
+
+		if(path.isEmpty())	{
+			throw new IOException("Invalid batch manifest");
+		}
+
+		try {
+			return Utils.resolveWithin(directory, path);
+		} catch (IOException e) {
+			throw new IOException("Server sent an unsafe path: " + path);
+		}
+	}
+
+	/**
+	 * Writes data past the manifest to the files it belongs to.
+	 * @param position Where the data starts in the stream.
+	 * @param data The bytes to write.
+	 * @throws IOException when a file can't be written.
+	 */
+	private void writeToFiles(long position, ByteBuffer data) throws IOException {
+
+		int limit = data.limit();
+
+		while(data.hasRemaining())	{
+			int index = find(position);
+			long within = position - starts[index];
+			int count = (int) Math.min(data.remaining(), lengths[index] - within);
+
+			//Stop at the end of the file, the rest belongs to the next one
+			ByteBuffer part = data.duplicate();
+			part.limit(part.position() + count);
+			getWriter(index).write(within, part);
+			data.position(data.position() + count);
+
+			remaining[index] -= count;
+
+			if(remaining[index] == 0)	{
+				finishFile(index);
+			}
+
+			position += count;
+		}
+
+		data.limit(limit);
+	}
+
+	/**
+	 * Reads back part of a file, whether it is still open or already finished.
+	 * @param index The number of the file in the manifest.
+	 * @param position Where to start in the file.
+	 * @param dst Where the bytes go.
+	 * @param count How many bytes to read.
+	 * @throws IOException when the file can't be read.
+	 */
+	private void readFromFile(int index, long position, ByteBuffer dst, int count) throws IOException {
+
+		int limit = dst.limit();
+		dst.limit(dst.position() + count);
+
+		try {
+			ChunkWriter writer = open.get(index);
+
+			if(writer != null)	{
+				writer.read(position, dst);
+			} else {
+				RandomAccessFile raf = new RandomAccessFile(files[index], "r");
+
+				try {
+					FileChannel channel = raf.getChannel();
+
+					while(dst.hasRemaining())	{
+						int read = channel.read(dst, position);
+
+						if(read <= 0)	{
+							break;
+						}
+
+						position += read;
+					}
+				} finally {
+					raf.close();
+				}
+			}
+
+			//Parts never written read as zeros, like a gap in a preallocated file
+			while(dst.hasRemaining())	{
+				dst.put((byte) 0);
+			}
+
+		} finally {
+			dst.limit(limit);
+		}
+	}
+
+	/**
+	 * Returns the file holding the position specified in the stream, past the manifest.
+	 * @param position The position in the stream.
+	 */
+	private int find(long position) {
+
+		int index = Arrays.binarySearch(starts, position);
+
+		if(index < 0)	{
+			return -index - 2;
+		}
+
+		//Several files start here if the ones before it are empty
+		while(index + 1 < starts.length && starts[index + 1] == position)	{
+			index++;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns the writer for a file, creating the file when its first chunk arrives.
+	 * @param index The number of the file in the manifest.
+	 * @throws IOException when the file can't be created.
+	 */
+	private ChunkWriter getWriter(int index) throws IOException {
+
+		ChunkWriter writer = open.get(index);
+
+		if(writer == null)	{
+			File parent = files[index].getAbsoluteFile().getParentFile();
+
+			if(parent != null)	{
+				parent.mkdirs();
+			}
+
+			writer = new ChunkWriter(files[index], lengths[index], preallocate, false, policy);
+			open.put(index, writer);
+		}
+
+		return writer;
+	}
+
+	/**
+	 * Syncs and closes a file once all of it has been written, and gives it
+	 * the server's modification time.
+	 * @param index The number of the file in the manifest.
+	 * @throws IOException when the file can't be synced or closed.
+	 */
+	private void finishFile(int index) throws IOException {
+
+		ChunkWriter writer = open.remove(index);
+
+		try {
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+
+		files[index].setLastModified(modified[index]);
+		filesFinished++;
+	}
+}
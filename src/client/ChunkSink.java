@@ -0,0 +1,38 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the data of a transfer goes. Data arrives in any order, so any part
+ * of it can be written at any time, and anything already written can be
+ * read back to rebuild a lost packet from parity.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+interface ChunkSink {
+
+	/**
+	 * Writes the bytes remaining in the buffer at the position specified.
+	 * @param position The offset in the data of the first byte.
+	 * @param data The bytes to write.
+	 * @throws IOException when the data cannot be written.
+	 */
+	void write(long position, ByteBuffer data) throws IOException;
+
+	/**
+	 * Reads back bytes that have already been written.
+	 * @param position The offset in the data of the first byte.
+	 * @param dst Where the bytes go, filled until it is full or the data ends.
+	 * @throws IOException when the data cannot be read.
+	 */
+	void read(long position, ByteBuffer dst) throws IOException;
+
+	/**
+	 * Forces everything written so far to disk.
+	 * @throws IOException when the data cannot be synced.
+	 */
+	void sync() throws IOException;
+}
@@ -0,0 +1,156 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes received chunks straight to their offsets in the output file with
+ * positional FileChannel writes, so chunks can land in any order and nothing
+ * has to be held back waiting for a gap to fill. How often the data is forced
+ * to disk is decided by a DurabilityPolicy.
+ *
+ * Positional writes don't share a file position, so several threads may
+ * write to the same ChunkWriter at once.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class ChunkWriter implements ChunkSink {
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private DurabilityPolicy policy;
+	private long unsyncedBytes;
+
+	/**
+	 * Opens the output file, replacing anything already in it unless an
+	 * interrupted transfer is being resumed.
+	 * @param file The file to write.
+	 * @param numberOfBytes The size the file will have once complete.
+	 * @param preallocate True to size the file up front so the file system
+	 * can lay it out in one go, false to let it grow as chunks arrive.
+	 * @param resume True to keep the chunks already in the file.
+	 * @param policy How often the file should be forced to disk.
+	 * @throws IOException when the file cannot be opened or sized.
+	 */
+	public ChunkWriter(File file, long numberOfBytes, boolean preallocate, boolean resume, DurabilityPolicy policy) throws IOException {
+		this.policy = policy;
+
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+
+		try {
+
+			if(!resume)	{
+				raf.setLength(preallocate ? numberOfBytes : 0);
+			} else if(preallocate || raf.length() > numberOfBytes)	{
+				raf.setLength(numberOfBytes);
+			}
+
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the bytes remaining in the buffer at the position specified.
+	 * @param position The offset in the file of the first byte.
+	 * @param data The bytes to write.
+	 * @throws IOException when the file cannot be written.
+	 */
+	@Override
+	public void write(long position, ByteBuffer data) throws IOException {
+
+		int length = data.remaining();
+
+		while(data.hasRemaining())	{
+			position += channel.write(data, position);
+		}
+
+		boolean sync;
+
+		synchronized(this)	{
+			unsyncedBytes += length;
+			sync = (unsyncedBytes >= policy.getSyncInterval());
+
+			if(sync)	{
+				unsyncedBytes = 0;
+			}
+		}
+
+		if(sync)	{
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Writes length bytes of the array starting at offset to the position specified.
+	 * @param position The offset in the file of the first byte.
+	 * @param data The array holding the bytes.
+	 * @param offset Where in the array the bytes start.
+	 * @param length How many bytes to write.
+	 * @throws IOException when the file cannot be written.
+	 */
+	public void write(long position, byte[] data, int offset, int length) throws IOException {
+		write(position, ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * Reads back bytes that have already been written.
+	 * @param position The offset in the file of the first byte.
+	 * @param dst Where the bytes go, filled until it is full or the file ends.
+	 * @throws IOException when the file cannot be read.
+	 */
+	@Override
+	public void read(long position, ByteBuffer dst) throws IOException {
+
+		while(dst.hasRemaining())	{
+			int count = channel.read(dst, position);
+
+			if(count == -1)	{
+				break;
+			}
+
+			position += count;
+		}
+	}
+
+	/**
+	 * Forces every chunk written so far to disk, whatever the policy.
+	 * @throws IOException when the file cannot be synced.
+	 */
+	@Override
+	public void sync() throws IOException {
+
+		synchronized(this)	{
+			unsyncedBytes = 0;
+		}
+
+		channel.force(false);
+	}
+
+	/**
+	 * Called once every chunk has been written. Syncs the file if the
+	 * policy asks for it.
+	 * @throws IOException when the file cannot be synced.
+	 */
+	public void finish() throws IOException {
+
+		if(policy.isSyncAtEnd())	{
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Closes the file without syncing it.
+	 * @throws IOException when the file cannot be closed.
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+}
@@ -0,0 +1,257 @@
+package client;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.Log;
+import utils.Protocol;
+import utils.WriterSink;
+
+/**
+ * Fetches files from the command line, with no user interface, one after
+ * the other. Exits with 0 if every file arrived, 1 if any failed and 2 if
+ * the arguments were wrong. Run with no arguments for the options.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class ClientCli {
+
+	private static final String USAGE =
+			"Usage: ClientCli [options] host port file...\n"
+			+ "  --streams N                     fetch each file over N sessions at once\n"
+			+ "  --batch                         fetch every file named as one batch\n"
+			+ "  --recursive                     include subdirectories of directories in a batch\n"
+			+ "  --delta                         update an older local copy with what changed\n"
+			+ "  --probe                         find the largest packet the path carries\n"
+			+ "  --max-packet BYTES\n"
+			+ "  --window PACKETS                at most " + Protocol.MAX_WINDOW_SIZE + ", all one acknowledgment can describe\n"
+			+ "  --ack PACKETS:MS                acknowledge every PACKETS packets, or after MS milliseconds\n"
+			+ "  --dir DIRECTORY                 write files here rather than the working directory\n"
+			+ "  --no-resume                     start over rather than resume a partial file\n"
+			+ "  --sync none|end|MEGABYTES       when to force received data to disk\n"
+			+ "  --no-preallocate\n"
+			+ "  --progress                      report progress on standard error\n"
+			+ "  --stats                         log what was received once every file is done\n"
+			+ "  --log FILE                      log to a file rather than standard error\n"
+			+ "  --debug                         log in more detail\n";
+
+	/**
+	 * Fetches the files named.
+	 * @param args The options, server and files, see USAGE.
+	 */
+	public static void main(String[] args) {
+
+		List<String> positional = new ArrayList<String>();
+		List<String> settings = new ArrayList<String>();
+		String logFile = null;
+		boolean debug = false;
+		boolean progress = false;
+		boolean stats = false;
+		boolean batch = false;
+
+		try {
+			for(int i = 0; i < args.length; i++)	{
+
+				if(args[i].equals("--log"))	{
+					logFile = value(args, ++i);
+				} else if(args[i].equals("--debug"))	{
+					debug = true;
+				} else if(args[i].equals("--progress"))	{
+					progress = true;
+				} else if(args[i].equals("--stats"))	{
+					stats = true;
+				} else if(args[i].equals("--batch"))	{
+					batch = true;
+				} else if(args[i].equals("--recursive") || args[i].equals("--delta") || args[i].equals("--probe")
+						|| args[i].equals("--no-resume") || args[i].equals("--no-preallocate"))	{
+					settings.add(args[i]);
+					settings.add(null);
+				} else if(args[i].startsWith("--"))	{
+					settings.add(args[i]);
+					settings.add(value(args, ++i));
+				} else {
+					positional.add(args[i]);
+				}
+			}
+
+			if(positional.size() < 3)	{
+				throw new IllegalArgumentException("A host, port and at least one file are needed");
+			}
+
+			Integer.parseInt(positional.get(1));
+
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		Log log;
+
+		try {
+			log = new Log(new WriterSink((logFile != null) ? new FileWriter(logFile, true) : new OutputStreamWriter(System.err), logFile != null),
+					debug ? Log.Level.DEBUG : Log.Level.INFO);
+		} catch (IOException e) {
+			System.err.println("Unable to open log file: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		String host = positional.get(0);
+		int port = Integer.parseInt(positional.get(1));
+		List<String> files = positional.subList(2, positional.size());
+
+		//A batch is one request for every file, named one per line
+		if(batch)	{
+			StringBuilder names = new StringBuilder();
+
+			for(String file : files)	{
+				names.append((names.length() > 0) ? "\n" : "").append(file);
+			}
+
+			files = new ArrayList<String>();
+			files.add(names.toString());
+		}
+
+		int failures = 0;
+		ClientMetrics metrics = new ClientMetrics();
+
+		for(String file : files)	{
+
+			try {
+				ClientController client = new ClientController(file, host, port, log);
+				client.setBatch(batch);
+				client.setMetrics(metrics);
+
+				for(int i = 0; i < settings.size(); i += 2)	{
+					apply(client, settings.get(i), settings.get(i + 1));
+				}
+
+				if(progress)	{
+					client.setProgressListener(new ConsoleProgress(batch ? "batch" : file));
+				}
+
+				client.transfer();
+
+				if(progress)	{
+					System.err.println();
+				}
+
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.err.print(USAGE);
+				log.close();
+				System.exit(2);
+				return;
+			} catch (IOException e) {
+				log.error(file.replace('\n', ' ') + ": " + e.getMessage(), e);
+				failures++;
+			}
+		}
+
+		if(stats)	{
+			log.info(metrics.snapshot().toString());
+		}
+		
+		log.close();
+		System.exit((failures > 0) ? 1 : 0);
+	}
+
+	/**
+	 * Applies one setting to a client.
+	 * @param client The client.
+	 * @param option The option naming the setting.
+	 * @param value The value given for it, or null for a flag.
+	 * @throws IllegalArgumentException when the option or value is not valid.
+	 */
+	private static void apply(ClientController client, String option, String value) {
+
+		if(option.equals("--streams"))	{
+			client.setStreams(Integer.parseInt(value));
+		} else if(option.equals("--recursive"))	{
+			client.setRecursive(true);
+		} else if(option.equals("--delta"))	{
+			client.setDeltaTransfer(true);
+		} else if(option.equals("--probe"))	{
+			client.setProbePath(true);
+		} else if(option.equals("--max-packet"))	{
+			client.setMaxPacketSize(Integer.parseInt(value));
+		} else if(option.equals("--window"))	{
+			client.setWindowSize(Integer.parseInt(value));
+		} else if(option.equals("--ack"))	{
+			String[] parts = value.split(":");
+
+			if(parts.length != 2)	{
+				throw new IllegalArgumentException("--ack must be PACKETS:MS");
+			}
+
+			client.setAckFrequency(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+		} else if(option.equals("--dir"))	{
+			client.setDirectory(new File(value));
+		} else if(option.equals("--no-resume"))	{
+			client.setResumable(false);
+		} else if(option.equals("--no-preallocate"))	{
+			client.setPreallocate(false);
+		} else if(option.equals("--sync"))	{
+			client.setDurabilityPolicy(parseSync(value));
+		} else {
+			throw new IllegalArgumentException("Unknown option: " + option);
+		}
+	}
+
+	/**
+	 * Parses when to force received data to disk: none, end or a number of megabytes.
+	 * @param value The setting.
+	 * @throws IllegalArgumentException when the setting is not valid.
+	 */
+	private static DurabilityPolicy parseSync(String value) {
+
+		if(value.equals("none"))	{
+			return DurabilityPolicy.none();
+		} else if(value.equals("end"))	{
+			return DurabilityPolicy.atEnd();
+		}
+
+		return DurabilityPolicy.everyMegabytes(Integer.parseInt(value));
+	}
+
+	/**
+	 * Returns the value following an option.
+	 * @param args The arguments.
+	 * @param i Where the value should be.
+	 * @throws IllegalArgumentException when there is no value.
+	 */
+	private static String value(String[] args, int i) {
+
+		if(i >= args.length)	{
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		}
+
+		return args[i];
+	}
+
+	/**
+	 * Reports progress on a single line of standard error.
+	 */
+	private static class ConsoleProgress implements ProgressListener {
+
+		private String name;
+
+		ConsoleProgress(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public synchronized void onProgress(long bytesReceived, long bytesExpected) {
+			int percent = (bytesExpected > 0) ? (int) ((100.0 * bytesReceived) / bytesExpected) : 100;
+			System.err.print("\r" + name + ": " + percent + "% of " + (bytesExpected / 1024) + "KB");
+		}
+	}
+}
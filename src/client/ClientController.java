@@ -1,78 +1,147 @@
 package client;
 
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.Random;
-
-import javax.swing.JProgressBar;
-import javax.swing.JTextArea;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+import utils.Log;
+import utils.PacketChecksum;
+import utils.Protocol;
+import utils.RangeList;
+import utils.RateLimit;
+import utils.RttEstimator;
 import utils.Utils;
 
 /**
  * The ClientController contains all of the methods required
  * to request and receive files from a server.
+ * See Protocol for the packet layouts.
+ * 
+ * Each controller fetches one file, or one batch, once. Call transfer
+ * to fetch it on the current thread, fetch to fetch it on a thread of
+ * its own, or run it as a Runnable that logs rather than throws.
  * 
  * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
  *
  */
-class ClientController implements Runnable	{
+public class ClientController implements Runnable	{
 
-	//Rules of engagement:
-	
-	//Client sends request for a file
-	//Server acknowledges receipt of request with either file not found or
-	//a packet indicating how many packets will be send to transfer the file
-	//The client will then listen for that many packets and send back acknowledgments
-	//for each packet received.
-	
-	//Step 1: File request and file size are confirmed
+	//How much may be received between saves of the resume journal
+	private static final long JOURNAL_INTERVAL = 64 * 1024 * 1024;
 	
-	//Client file name request
-	//1024 bytes
-	//0 - 1023 -- File name
+	//Smallest slice of a file worth a stream of its own
+	private static final long MIN_STREAM_BYTES = 4 * 1024 * 1024;
 	
-	//Server file request response packet
-	//4 bytes
-	//0 - 7 -- Number of bytes to be sent (-1 if file not found)
+	//Least time between progress reports, and between reports of waiting for a packet
+	private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long WAITING_LOG_INTERVAL = TimeUnit.SECONDS.toNanos(1);
 	
-	//Step 2: Server receives client acceptance, begins to send packets
-	
-	//Server data packet structure
-	//1024 bytes
-	//0 - 3 -- PacketNumber
-	//4 - 1023 -- Data
-	
-	//Client acknowledgment packet
-	//4 bytes
-	//0 - 3 -- Packet number received
+	//Packets received for every acknowledgment sent, and the longest one waits before it is sent anyway
+	private static final int ACK_EVERY = 4;
+	private static final long ACK_DELAY = TimeUnit.MILLISECONDS.toNanos(2);
 	
 	private DatagramSocket clientSocket;
-	private JTextArea diagLog;
+	private Log log;
 	private String ipAddress;
 	private int port;
 	private String filename;
-	private boolean packetSkip;
-	private JProgressBar progressBar;
+	private File directory;
+	private ProgressListener progressListener;
+	private int windowSize = Utils.DEFAULT_WINDOW_SIZE;
+	private DurabilityPolicy durabilityPolicy = DurabilityPolicy.atEnd();
+	private boolean preallocate = true;
+	private RttEstimator rtt = new RttEstimator();
+	private int maxPacketSize = Protocol.DEFAULT_PACKET_SIZE;
+	private boolean probePath = false;
+	private int ackEvery = ACK_EVERY;
+	private long ackDelay = ACK_DELAY;
+	
+	//Size of the data packets the server agreed to send, and the file data in each
+	private int packetSize = Protocol.MIN_PACKET_SIZE;
+	private int chunkSize = Protocol.MIN_PACKET_SIZE - Protocol.DATA_HEADER_SIZE;
+	
+	//What is known of an earlier attempt at the same file, and whether the server agreed to resume it
+	private boolean resumable = true;
+	private ResumeJournal journal;
+	private long modified;
+	private boolean resumed;
+	
+	//Whether an older local copy should be updated with a delta transfer
+	private boolean delta = false;
+	
+	//How many sessions to fetch a file over at once, and the size of the whole file as the server last reported it
+	private int streams = 1;
+	private long fileSize;
+	
+	//Bytes received so far out of those expected, shared by every stream of a parallel transfer
+	private AtomicLong bytesReceived = new AtomicLong();
+	private long bytesExpected;
+	private boolean progressShared = false;
+	
+	//Counts what is received, shared with the streams of a parallel transfer, and when
+	//the last file request went out, for the time to the first byte
+	private ClientMetrics metrics = new ClientMetrics();
+	private long requestSentAt;
+	
+	//Progress is only reported when the percentage changes, and not too often even then
+	private long nextProgressUpdate;
+	private int shownPercent = -1;
+	
+	//Whether the file name is a list of files and directories to fetch as a batch, and whether to go into subdirectories
+	private boolean batch = false;
+	private boolean recursive = false;
+	
+	//Reused for every data packet received and every acknowledgment sent, so a transfer
+	//allocates nothing per packet once it is under way
+	private DatagramPacket received;
+	private ByteBuffer receivedView;
+	private byte[] ack;
+	private ByteBuffer ackView;
+	private DatagramPacket ackPacket;
+	private PacketChecksum checksum = new PacketChecksum();
+	
+	//Received since the last acknowledgment was sent, and the packet the next one will be sent for
+	private int unacknowledged;
+	private int recoveredSinceAck;
+	private long newestReceived;
+	private long newestArrived;
 	
-	public ClientController(String filename, String ipAddress, int port, boolean packetSkip, JTextArea log, JProgressBar bar) throws SocketException	{
-		this.diagLog = log;
-		this.progressBar = bar;
+	/**
+	 * @param filename The name of the file to be transfered.
+	 * @param ipAddress The IP address of the server.
+	 * @param port The port number the server is operating on.
+	 * @param log Where diagnostic information should be logged. Left open when the transfer ends.
+	 * @throws SocketException When the socket could not be opened.
+	 */
+	public ClientController(String filename, String ipAddress, int port, Log log) throws SocketException	{
+		this.log = log;
 		this.ipAddress = ipAddress;
 		this.port = port;
-		this.packetSkip = packetSkip;
 		this.filename = filename;
 		clientSocket = new DatagramSocket();
-		clientSocket.setSoTimeout(1500);	
 	}
 	
 	/**
@@ -81,12 +150,11 @@ class ClientController implements Runnable	{
 	 * @param ipAddress The IP address of the server.
 	 * @param port The port number the server is operating on.
 	 * @param filename The name of the file to be transfered.
-	 * @param packetSkip Indicates whether or not the client should simulate packet loss.
 	 * @throws UnknownHostException When IP address of the host cannot be determined.
 	 * @throws SocketException When the socket could not be opened or the designated port couldn't be bound.
 	 * @throws IOException When the socket is unable to either receive or send data.
 	 */
-	private void requestFile(String filename, String ipAddress, int port, boolean packetSkip) throws UnknownHostException, SocketException, IOException {
+	private void requestFile(String filename, String ipAddress, int port) throws UnknownHostException, SocketException, IOException {
 		
 		if(Utils.isNullOrEmptyString(filename)) {
 			throw new IOException("Invalid file name");
@@ -100,191 +168,1528 @@ class ClientController implements Runnable	{
 			throw new IOException("Invalid port number");
 		}
 		
-		progressBar.setValue(0);
-		sendFileRequestPacket(filename, ipAddress, port);
-		receiveFile(filename, getFileRequestAcknowledgment(), ipAddress, port, packetSkip);
+		if(batch)	{
+			requestBatch(filename, probePath ? probePacketSize(ipAddress, port) : maxPacketSize, ipAddress, port);
+			return;
+		}
+		
+		File outputFile = new File(directory, filename);
+		journal = (resumable && outputFile.isFile()) ? ResumeJournal.load(ResumeJournal.journalFileFor(outputFile)) : null;
+		
+		int largestPacket;
+		
+		if(journal != null)	{
+			//Chunks have to line up with the ones already received
+			largestPacket = journal.getPacketSize();
+			journal.forgetPast(windowSize);
+		} else {
+			largestPacket = probePath ? probePacketSize(ipAddress, port) : maxPacketSize;
+		}
+		
+		//A journal means the local copy is only part of the file, not an older version of it
+		if(delta && journal == null && outputFile.isFile())	{
+			
+			if(requestDelta(filename, largestPacket, ipAddress, port))	{
+				return;
+			}
+			
+			openNewSocket();
+		}
+		
+		//A journal means the transfer is resumed over the single session it was started on
+		if(streams > 1 && journal == null)	{
+			requestParallel(filename, largestPacket, ipAddress, port);
+			return;
+		}
+		
+		ByteBuffer request = newFileRequest(filename, largestPacket, Protocol.WHOLE_FILE);
+		
+		if(journal != null)	{
+			journal.writeResumeSet(request);
+		}
+		
+		long numberOfBytes = getFileRequestAcknowledgment(sendFileRequestPacket(request, ipAddress, port), ipAddress, port);
+		
+		if(!resumed)	{
+			
+			if(journal != null)	{
+				log.info("File changed on the server, starting over");
+			}
+			
+			journal = new ResumeJournal(numberOfBytes, modified, packetSize);
+		}
+		
+		receiveFile(filename, numberOfBytes, ipAddress, port);
 	}
 	
 	/**
-	 * Begins to receive the file specified from the server and writes the file
-	 * to the client's current working directory.
-	 * @param filename The name of the that is expected.
-	 * @param numberOfBytes The size of the file expected in bytes.
+	 * Updates the older copy of the file the client holds by fetching only the
+	 * parts it is missing. The server's block signatures for the file are
+	 * fetched first, every block found in the old copy is copied into a new
+	 * file, and then the missing ranges are fetched in as many requests as it
+	 * takes to name them all. The new file replaces the old copy once complete.
+	 * Each request after the first goes out from a new socket, see openNewSocket.
+	 * @param filename The name of the file, and of the old copy.
+	 * @param largestPacket The largest data packet the server may send.
 	 * @param ipAddress The IP address of the server.
 	 * @param port The port the server is operating on.
-	 * @param packetSkip Indicates whether or not the client should simulate packet loss.
+	 * @return False if the file changed on the server partway through, so it
+	 * should be fetched whole instead.
 	 * @throws IOException when the client fails to receive the file.
 	 */
-	private void receiveFile(String filename, long numberOfBytes, String ipAddress, int port, boolean packetSkip) throws IOException	{
-		
-		FileOutputStream outputFile = new FileOutputStream(new File(filename));
-		FileDescriptor fd = outputFile.getFD();
-		DatagramPacket filePacket;
+	private boolean requestDelta(String filename, int largestPacket, String ipAddress, int port) throws IOException	{
 		
-		int numberOfPackets = Utils.getNumberOfPacketsToSend(numberOfBytes);
-		int lastPacketMissed = -1;
-		int packetMisses = 0; //Track how many times the same packet is missed
-		long byteCount = 0;
-		long bytesToWrite = 1020;
+		File oldCopy = new File(directory, filename);
+		File signatures = new File(directory, filename + ".signatures");
+		File rebuilt = new File(directory, filename + ".delta");
+		DeltaBuilder builder;
 		
-		Random rng = new Random();
+		long numberOfBytes = getFileRequestAcknowledgment(sendFileRequestPacket(newFileRequest(filename, largestPacket, Protocol.SIGNATURES), ipAddress, port), ipAddress, port);
 		
-		for(int i = 0; i < numberOfPackets; i++)	{
+		try {
+			ChunkWriter signatureFile = new ChunkWriter(signatures, numberOfBytes, true, false, DurabilityPolicy.none());
 			
 			try {
+				receiveChunks(signatureFile, null, numberOfBytes, null, ipAddress, port);
+			} finally {
+				signatureFile.close();
+			}
+			
+			builder = new DeltaBuilder(signatures);
+			
+		} finally {
+			signatures.delete();
+		}
+		
+		ChunkWriter outputFile = new ChunkWriter(rebuilt, builder.getFileSize(), preallocate, false, durabilityPolicy);
+		boolean complete = false;
+		
+		try {
+			RangeList missing = builder.copyMatches(oldCopy, outputFile);
+			log.info("KB found in local copy: " + (builder.getBytesFound() / 1024.0));
+			log.info("KB to fetch: " + (missing.size() / 1024.0));
+			
+			int next = 0;
+			
+			while(next < missing.count())	{
 				
-				//If we are simulating packet miss then randomly start to miss packets
-				//and wait for a bit.
-				if(packetSkip && rng.nextBoolean())	{
-					
-					try {
-						Thread.sleep(500);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					
-					throw new SocketTimeoutException();
-				}
+				ByteBuffer request = newFileRequest(filename, largestPacket, Protocol.RANGES);
+				request.putLong(builder.getFileSize());
+				request.putLong(builder.getModified());
 				
-				filePacket = Utils.receivePacket(clientSocket, diagLog);
+				//As many ranges as fit in one request
+				RangeList batch = new RangeList();
 				
-				//Only acknowledge the packet if it's what we were expecting.
-				if(!wasExpectedPacketReceived(i, filePacket))	{
-					throw new SocketTimeoutException();
+				while(next < missing.count() && request.remaining() >= Protocol.RANGE_SIZE)	{
+					request.putLong(missing.getOffset(next));
+					request.putLong(missing.getLength(next));
+					batch.add(missing.getOffset(next), missing.getLength(next));
+					next++;
 				}
 				
-				sendFilePacketAcknowledgment(i, ipAddress, port);
-				//diagLog.append("Recieved packet: " + (i + 1) + "\n");
-				
-				ByteBuffer buff = ByteBuffer.wrap(filePacket.getData(), 4, 1020);
+				openNewSocket();
+				numberOfBytes = getFileRequestAcknowledgment(sendFileRequestPacket(request, ipAddress, port), ipAddress, port);
 				
-				if((byteCount + 1020) > numberOfBytes)	{
-					bytesToWrite = numberOfBytes - byteCount; //Last packet may not be full
+				if(numberOfBytes == Protocol.FILE_CHANGED)	{
+					log.info("File changed on the server, fetching all of it");
+					return false;
 				}
 				
-				outputFile.write(buff.array(), 4, (int) bytesToWrite);
-				outputFile.flush();
-				
-				//Every 10KB-ish force it to write to disk
-				if(byteCount % 10200 == 0)	{
-					fd.sync();
+				if(numberOfBytes != batch.size())	{
+					throw new IOException("Server is sending the wrong amount of data");
 				}
 				
-				byteCount += bytesToWrite;
-				progressBar.setValue((int)((100.0 * byteCount) / numberOfBytes));
-				
-			} catch (SocketTimeoutException e) {
-				diagLog.append("Waiting for packet: " + (i + 1) + "\n");
+				receiveChunks(outputFile, batch, numberOfBytes, null, ipAddress, port);
+			}
+			
+			outputFile.finish();
+			complete = true;
+			
+		} finally {
+			outputFile.close();
+			
+			if(!complete)	{
+				rebuilt.delete();
+			}
+		}
+		
+		Files.move(rebuilt.toPath(), oldCopy.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.info("Finished receiving: " + filename);
+		
+		return true;
+	}
+	
+	/**
+	 * Fetches a batch of files over a single session. The server sends a
+	 * manifest of the files followed by all of their contents as one stream,
+	 * so the link doesn't sit idle between files while each is asked for.
+	 * Each file is written to the path the manifest gives it.
+	 * @param names The files and directories to fetch, one per line.
+	 * @param largestPacket The largest data packet the server may send.
+	 * @param ipAddress The IP address of the server.
+	 * @param port The port the server is operating on.
+	 * @throws IOException when the client fails to receive the files.
+	 */
+	private void requestBatch(String names, int largestPacket, String ipAddress, int port) throws IOException	{
+		
+		ByteBuffer request = newFileRequest(names, largestPacket, Protocol.BATCH);
+		request.put(recursive ? Protocol.RECURSIVE : 0);
+		
+		long numberOfBytes = getFileRequestAcknowledgment(sendFileRequestPacket(request, ipAddress, port), ipAddress, port);
+		
+		//For a batch the response gives the size of the manifest in place of a file size
+		if(fileSize < Protocol.MANIFEST_HEADER_SIZE || fileSize > numberOfBytes || fileSize > Integer.MAX_VALUE)	{
+			throw new IOException("Invalid batch manifest");
+		}
+		
+		BatchWriter output = new BatchWriter(directory, (int) fileSize, numberOfBytes, preallocate, durabilityPolicy);
+		
+		try {
+			receiveChunks(output, null, numberOfBytes, null, ipAddress, port);
+			output.finish();
+		} finally {
+			output.close();
+		}
+		
+		log.info("Finished receiving " + output.getNumberOfFiles() + " files");
+	}
+	
+	/**
+	 * Fetches the file over several sessions at once, each with a socket and
+	 * thread of its own, so the transfer isn't limited to what one receive loop
+	 * can keep up with. The file's size and modification time are asked for
+	 * first, then the file is cut into one slice per stream and every stream
+	 * fetches its slice of that exact version as a range, writing it straight
+	 * to its place in the output file. No resume journal is kept.
+	 * @param filename The name of the file to be transfered.
+	 * @param largestPacket The largest data packet the server may send.
+	 * @param ipAddress The IP address of the server.
+	 * @param port The port the server is operating on.
+	 * @throws IOException when any of the streams fails to receive its slice.
+	 */
+	private void requestParallel(String filename, int largestPacket, String ipAddress, int port) throws IOException	{
+		
+		//No ranges, just the identity of the file as it is now
+		ByteBuffer request = newFileRequest(filename, largestPacket, Protocol.RANGES);
+		request.putLong(Protocol.ANY_VERSION);
+		request.putLong(0);
+		getFileRequestAcknowledgment(sendFileRequestPacket(request, ipAddress, port), ipAddress, port);
+		
+		int count = (int) Math.max(1, Math.min(streams, fileSize / MIN_STREAM_BYTES));
+		log.info("Streams: " + count);
+		
+		final ChunkWriter outputFile = new ChunkWriter(new File(directory, filename), fileSize, preallocate, false, durabilityPolicy);
+		final List<ClientController> slices = new ArrayList<ClientController>();
+		ExecutorService threads = Executors.newFixedThreadPool(count);
+		
+		bytesReceived.set(0);
+		bytesExpected = fileSize;
+		
+		try {
+			for(int i = 0; i < count; i++)	{
+				ClientController slice = new ClientController(filename, ipAddress, port, log);
+				slice.progressListener = progressListener;
+				slice.metrics = metrics;
+				slice.windowSize = windowSize;
+				slice.ackEvery = ackEvery;
+				slice.ackDelay = ackDelay;
+				slice.bytesReceived = bytesReceived;
+				slice.bytesExpected = bytesExpected;
+				slice.progressShared = true;
+				slices.add(slice);
+			}
+			
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			
+			for(int i = 0; i < count; i++)	{
+				final ClientController slice = slices.get(i);
+				final long offset = fileSize * i / count;
+				final long length = fileSize * (i + 1) / count - offset;
+				final int agreedPacket = packetSize;
+				final long whole = fileSize;
+				final long version = modified;
 				
-				if(i == lastPacketMissed)	{
-					packetMisses++;
-				} else {
-					lastPacketMissed = i;
-					packetMisses = 0;
-				}
+				results.add(threads.submit(new Callable<Void>() {
+					
+					@Override
+					public Void call() throws IOException {
+						try {
+							slice.requestSlice(outputFile, offset, length, whole, version, agreedPacket);
+						} catch (IOException e) {
+							//The file is no use without every slice, so stop the rest
+							for(ClientController other : slices)	{
+								other.killClient();
+							}
+							
+							throw e;
+						}
+						
+						return null;
+					}
+				}));
+			}
+			
+			IOException failure = null;
+			
+			for(Future<Void> result : results)	{
 				
-				//If we've missed the same packet 10 times, call it quits
-				if(packetMisses == 20) {
-					diagLog.append("Connection problem with server detected\n");
-					outputFile.close();
-					return;
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					
+					//The first failure is the cause, the rest were stopped because of it
+					if(failure == null)	{
+						failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+					}
+				} catch (InterruptedException e) {
+					throw new IOException("Transfer interrupted");
 				}
-				
-				i--; //Wait for packet again
-				e.printStackTrace();
+			}
+			
+			if(failure != null)	{
+				throw failure;
+			}
+			
+			outputFile.finish();
+			
+		} finally {
+			threads.shutdown();
+			outputFile.close();
+			
+			for(ClientController slice : slices)	{
+				slice.killClient();
 			}
 		}
 		
-		outputFile.close();
-		diagLog.append("Finished receiving: " + filename + "\n");
+		log.info("Finished receiving: " + filename);
 	}
 	
 	/**
-	 * Returns true if the packet specified has the same packet number as
-	 * the packet number specified.
-	 * @param packetNumber The number of the packet expected.
-	 * @param received The packet to be checked.
+	 * Fetches one slice of the file as a range over this controller's own
+	 * session, as one stream of a parallel transfer.
+	 * @param outputFile The whole file, shared with the other streams.
+	 * @param offset Where the slice starts in the file.
+	 * @param length The number of bytes in the slice.
+	 * @param wholeSize The size of the file the other streams are fetching.
+	 * @param version Its modification time.
+	 * @param largestPacket The largest data packet the server may send.
+	 * @throws IOException when the slice cannot be received, or the file changed.
 	 */
-	private boolean wasExpectedPacketReceived(int packetNumber, DatagramPacket received)	{
-		ByteBuffer buff = ByteBuffer.wrap(received.getData(), 0, Integer.SIZE);
-		return (buff.getInt() == packetNumber);
+	private void requestSlice(ChunkWriter outputFile, long offset, long length, long wholeSize, long version, int largestPacket) throws IOException	{
+		
+		//Only an empty file has an empty slice, and there is nothing to fetch
+		if(length == 0)	{
+			return;
+		}
+		
+		ByteBuffer request = newFileRequest(filename, largestPacket, Protocol.RANGES);
+		request.putLong(wholeSize);
+		request.putLong(version);
+		request.putLong(offset);
+		request.putLong(length);
+		
+		long numberOfBytes = getFileRequestAcknowledgment(sendFileRequestPacket(request, ipAddress, port), ipAddress, port);
+		
+		if(numberOfBytes == Protocol.FILE_CHANGED)	{
+			throw new IOException("File changed on the server during the transfer");
+		}
+		
+		if(numberOfBytes != length)	{
+			throw new IOException("Server is sending the wrong amount of data");
+		}
+		
+		RangeList slice = new RangeList();
+		slice.add(offset, length);
+		
+		receiveChunks(outputFile, slice, numberOfBytes, null, ipAddress, port);
 	}
 	
 	/**
-	 * Send a packet acknowledging the receipt of a specific packet.
-	 * @param packetNumber The number of the packet received.
+	 * Begins to receive the file specified from the server and writes the file
+	 * to the client's current working directory. Which packets are on disk is
+	 * saved to a journal now and then, and whenever the transfer stops short,
+	 * so a later attempt can resume it.
+	 * @param filename The name of the that is expected.
+	 * @param numberOfBytes The size of the file expected in bytes.
 	 * @param ipAddress The IP address of the server.
 	 * @param port The port the server is operating on.
-	 * @throws IOException when the packet fails to send.
-	 * @throws UnknownHostException when the IP address cannot be resolved.
+	 * @throws IOException when the client fails to receive the file.
 	 */
-	private void sendFilePacketAcknowledgment(int packetNumber, String ipAddress, int port) throws UnknownHostException, IOException	{
-		ByteBuffer buff = ByteBuffer.allocate(4);
-		buff.putInt(packetNumber);
-		Utils.sendPacket(clientSocket, buff.array(), InetAddress.getByName(ipAddress), port);
+	private void receiveFile(String filename, long numberOfBytes, String ipAddress, int port) throws IOException	{
+		
+		File file = new File(directory, filename);
+		File journalFile = ResumeJournal.journalFileFor(file);
+		ChunkWriter outputFile = new ChunkWriter(file, numberOfBytes, preallocate, resumed, durabilityPolicy);
+		
+		try {
+			receiveChunks(outputFile, null, numberOfBytes, resumable ? journalFile : null, ipAddress, port);
+			outputFile.finish();
+		} finally {
+			outputFile.close();
+		}
+		
+		journalFile.delete();
+		log.info("Finished receiving: " + filename);
 	}
-
+	
 	/**
-	 * Waits for a file request acknowledgment from the server to determine
-	 * if the server will service the request.
-	 * @return The size of the file requested in bytes.
-	 * @throws IOException if the server has indicated that the file cannot be found.
+	 * Receives the data packets of a transfer and writes them to their place
+	 * in the output file. Packets are accepted in any order as long as they
+	 * fall within the window.
+	 * @param outputFile Where the data goes.
+	 * @param ranges The ranges of the output file the data fills, one after
+	 * the other, or null if the data is the whole file.
+	 * @param numberOfBytes The number of bytes the server is sending.
+	 * @param journalFile Where to keep the resume journal, or null to keep none.
+	 * @param ipAddress The IP address of the server.
+	 * @param port The port the server is operating on.
+	 * @throws IOException when the client fails to receive the data.
 	 */
-	private long getFileRequestAcknowledgment() throws IOException {
+	private void receiveChunks(ChunkSink outputFile, RangeList ranges, long numberOfBytes, File journalFile, String ipAddress, int port) throws IOException	{
 		
-		long numberOfBytes = 0;
+		DatagramPacket filePacket;
 		
-		DatagramPacket acknowledgment = Utils.receivePacket(clientSocket, diagLog);
+		long numberOfPackets = Utils.getNumberOfPacketsToSend(numberOfBytes, chunkSize);
+		long base = 0; //Oldest packet that has not been received
+		long highest = -1; //Newest packet that has been received
+		long ackDue = 0;
+		long byteCount = 0;
+		RateLimit waitingLog = new RateLimit(WAITING_LOG_INTERVAL);
+		boolean firstArrived = false;
+		long lastHeard = System.nanoTime();
 		
-		ByteBuffer buff = ByteBuffer.wrap(acknowledgment.getData(), 0, Long.SIZE);
-		numberOfBytes = buff.getLong();
+		//Packets received ahead of base, indexed by packet number % windowSize
+		boolean[] window = new boolean[windowSize];
 		
-		if(numberOfBytes == -1) {
-			throw new IOException("File not found");
+		if(journalFile != null && resumed)	{
+			base = journal.getFirstMissing();
+			journal.restore(window);
+			highest = base - 1;
+			
+			for(int i = 1; i < windowSize; i++)	{
+				if(window[(int) ((base + i) % windowSize)])	{
+					highest = base + i;
+				}
+			}
+			
+			byteCount = Math.min(numberOfBytes, journal.getChunksReceived() * chunkSize);
+			log.info("Resuming from packet: " + (base + 1));
 		}
 		
-		diagLog.append("KB expected: " + (numberOfBytes / 1024.0) + "\n");
+		long journaledBytes = byteCount;
 		
-		return numberOfBytes;
+		if(!progressShared)	{
+			bytesReceived.set(byteCount);
+			bytesExpected = numberOfBytes;
+		}
+		
+		showProgress(bytesReceived.get(), bytesExpected, true);
+		
+		//Compressed chunks are inflated here before they are written, and lost ones rebuilt
+		Inflater inflater = new Inflater();
+		byte[] decoded = new byte[chunkSize];
+		ByteBuffer decodedView = ByteBuffer.wrap(decoded);
+		byte[] scratch = null;
+		
+		//Chunks go into the digest in order as the window moves past them, and the server's
+		//digest comes in one more packet after the data. The server can't hash what it
+		//doesn't send, so a resumed transfer is only checked packet by packet.
+		MessageDigest digest = (numberOfPackets > 0 && !resumed) ? Utils.newTransferDigest() : null;
+		long expected = numberOfPackets + ((digest != null) ? 1 : 0);
+		long digested = 0;
+		ByteBuffer readBack = (digest != null) ? ByteBuffer.allocate(chunkSize) : null;
+		byte[] serverDigest = null;
+		
+		prepareBuffers(ipAddress, port);
+		unacknowledged = 0;
+		recoveredSinceAck = 0;
+		
+		//Leave room in the socket for a full window so bursts aren't dropped here
+		clientSocket.setReceiveBufferSize(Math.max(clientSocket.getReceiveBufferSize(), windowSize * packetSize));
+		
+		try {
+			while(base < expected)	{
+				
+				try {
+					
+					long wait = ackDue - System.nanoTime();
+					
+					if(unacknowledged > 0 && wait <= 0)	{
+						sendFilePacketAcknowledgment(base, highest, window);
+					}
+					
+					if(unacknowledged > 0)	{
+						//Wake up in time to send the acknowledgment that is waiting
+						clientSocket.setSoTimeout((int) Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(wait + 999999), TimeUnit.NANOSECONDS.toMillis(rtt.getRto()))));
+					} else {
+						setTimeout();
+					}
+					
+					filePacket = Utils.receivePacket(clientSocket, received);
+					long arrived = System.nanoTime();
+					lastHeard = arrived;
+					metrics.onPacket(filePacket.getLength());
+					
+					if(!firstArrived)	{
+						metrics.onFirstByte(arrived - requestSentAt);
+						firstArrived = true;
+					}
+					
+					long packetNumber;
+					ByteBuffer data;
+					byte type = Protocol.getType(filePacket.getData(), filePacket.getLength());
+					boolean recovered = (type == Protocol.PARITY);
+					
+					//Damaged on the way, dropped like a lost packet so the server sends it again
+					if((type == Protocol.DATA || type == Protocol.PARITY || type == Protocol.DIGEST)
+							&& !checksum.verify(view(receivedView, 0, filePacket.getLength())))	{
+						metrics.onDamaged();
+						continue;
+					}
+					
+					if(recovered)	{
+						
+						if(scratch == null)	{
+							scratch = new byte[chunkSize];
+						}
+						
+						//Parity only helps if exactly one of the packets it covers is missing
+						packetNumber = recoverFromParity(filePacket, outputFile, ranges, base, window, numberOfPackets, numberOfBytes, decoded, scratch);
+						metrics.onParity(packetNumber >= 0);
+						
+						if(packetNumber < 0)	{
+							continue;
+						}
+						
+						data = view(decodedView, 0, (int) Math.min(chunkSize, numberOfBytes - packetNumber * chunkSize));
+						
+					} else {
+						packetNumber = getPacketNumber();
+						
+						//Anything past the window is dropped, the server will send it again
+						if(packetNumber < 0 || packetNumber >= expected || packetNumber >= base + windowSize)	{
+							continue;
+						}
+						
+						//Packets behind the window were already written but our acknowledgment got lost
+						if(packetNumber < base || window[(int) (packetNumber % windowSize)])	{
+							metrics.onDuplicate();
+							newestReceived = packetNumber;
+							newestArrived = arrived;
+							sendFilePacketAcknowledgment(base, highest, window);
+							rtt.resetBackoff();
+							continue;
+						}
+						
+						if(type == Protocol.DIGEST)	{
+							
+							//The server's digest is kept for the end rather than written
+							if(packetNumber != numberOfPackets || filePacket.getLength() != Protocol.DATA_HEADER_SIZE + Protocol.DIGEST_SIZE)	{
+								continue;
+							}
+							
+							serverDigest = Arrays.copyOfRange(filePacket.getData(), Protocol.DATA_HEADER_SIZE, filePacket.getLength());
+							data = null;
+							
+						} else {
+							//Last packet may not be full
+							data = decodeChunk(filePacket, (int) Math.min(chunkSize, numberOfBytes - packetNumber * chunkSize), inflater, decodedView);
+							
+							//Damaged, don't acknowledge it and the server will send it again
+							if(data == null)	{
+								metrics.onDamaged();
+								continue;
+							}
+						}
+					}
+					
+					int slot = (int) (packetNumber % windowSize);
+					int bytesToWrite = 0;
+					
+					if(data != null)	{
+						long position = packetNumber * chunkSize;
+						int start = data.position();
+						bytesToWrite = data.remaining();
+						long writeStarted = System.nanoTime();
+						
+						if(ranges == null)	{
+							outputFile.write(position, data);
+						} else {
+							writeToRanges(outputFile, ranges, position, data);
+						}
+						
+						metrics.onWrite(System.nanoTime() - writeStarted);
+						
+						//In order, so it goes into the digest now rather than being read back later
+						if(digest != null && packetNumber == digested)	{
+							data.position(start);
+							digest.update(data);
+							digested++;
+						}
+					}
+					
+					if(packetNumber != base)	{
+						metrics.onOutOfOrder();
+					}
+					
+					rtt.resetBackoff();
+					
+					window[slot] = true;
+					byteCount += bytesToWrite;
+					
+					//Slide the window past every packet that has been received
+					while(base < expected && window[(int) (base % windowSize)])	{
+						window[(int) (base % windowSize)] = false;
+						base++;
+					}
+					
+					if(digest != null)	{
+						digested = addToDigest(digest, digested, Math.min(base, numberOfPackets), outputFile, ranges, numberOfBytes, readBack);
+					}
+					
+					//A packet that opens or fills a gap is acknowledged at once, so the server hears of holes quickly
+					boolean inOrder = (packetNumber == highest + 1);
+					highest = Math.max(highest, packetNumber);
+					unacknowledged++;
+					recoveredSinceAck += recovered ? 1 : 0;
+					newestReceived = packetNumber;
+					newestArrived = arrived;
+					
+					if(!inOrder || unacknowledged >= ackEvery || base == expected)	{
+						sendFilePacketAcknowledgment(base, highest, window);
+					} else if(unacknowledged == 1)	{
+						ackDue = arrived + ackDelay;
+					}
+					
+					showProgress(bytesReceived.addAndGet(bytesToWrite), bytesExpected, false);
+					
+					if(journalFile != null && byteCount - journaledBytes >= JOURNAL_INTERVAL)	{
+						saveJournal(outputFile, base, window, numberOfPackets, journalFile);
+						journaledBytes = byteCount;
+					}
+					
+				} catch (SocketTimeoutException e) {
+					
+					//Only time to send the acknowledgment that was waiting
+					if(unacknowledged > 0)	{
+						continue;
+					}
+					
+					metrics.onTimeout();
+					
+					if(waitingLog.allow(System.nanoTime()))	{
+						long suppressed = waitingLog.getSuppressed();
+						log.info("Waiting for packet: " + (base + 1) + ((suppressed > 0) ? " (" + (suppressed + 1) + " timeouts)" : ""));
+					}
+					
+					//Give the server MAX_BACKOFFS timeouts, and GIVE_UP_AFTER at least, before calling it quits
+					if(!rtt.backoff() && System.nanoTime() - lastHeard >= RttEstimator.GIVE_UP_AFTER) {
+						throw new IOException("Connection problem with server detected");
+					}
+				}
+			}
+			
+		} finally {
+			
+			inflater.end();
+			
+			//Whatever made us stop, remember how far we got
+			if(journalFile != null && base < numberOfPackets)	{
+				try {
+					saveJournal(outputFile, base, window, numberOfPackets, journalFile);
+				} catch (IOException e) {
+					log.warn("Unable to save resume journal: " + e.getMessage());
+				}
+			}
+		}
+		
+		showProgress(bytesReceived.get(), bytesExpected, true);
+		lingerForRetransmissions(expected);
+		
+		if(digest != null && !MessageDigest.isEqual(digest.digest(), serverDigest))	{
+			
+			//Resuming would only keep whatever went wrong
+			if(journalFile != null)	{
+				journalFile.delete();
+			}
+			
+			throw new IOException("Data received does not match what the server sent");
+		}
 	}
 	
 	/**
-	 * Sends a packet to the server requesting a specific file.
-	 * @param fileName The name of the file being requested.
-	 * @param ipAddress The IP address of the server.
-	 * @param port The port the server is operating on.
-	 * @throws IOException when the packet is unable to be sent.
+	 * Adds the chunks the window has moved past to the digest, in order.
+	 * Chunks that arrived out of order are read back from the output file,
+	 * which has only just written them.
+	 * @param digest The digest of the chunks so far.
+	 * @param digested The number of chunks in the digest.
+	 * @param upTo The number of chunks that should be in the digest.
+	 * @param outputFile Where the data is being written.
+	 * @param ranges The ranges of the output file being filled, or null for the whole file.
+	 * @param numberOfBytes The number of bytes being sent.
+	 * @param readBack Room to read back one chunk.
+	 * @return The number of chunks in the digest.
+	 * @throws IOException when the output file cannot be read.
+	 */
+	private long addToDigest(MessageDigest digest, long digested, long upTo, ChunkSink outputFile, RangeList ranges,
+			long numberOfBytes, ByteBuffer readBack) throws IOException	{
+		
+		for(; digested < upTo; digested++)	{
+			long position = digested * chunkSize;
+			ByteBuffer chunk = view(readBack, 0, (int) Math.min(chunkSize, numberOfBytes - position));
+			readBack(outputFile, ranges, position, chunk);
+			chunk.flip();
+			digest.update(chunk);
+		}
+		
+		return digested;
+	}
+	
+	/**
+	 * Writes data that fills a list of ranges one after the other to the
+	 * ranges it belongs in.
+	 * @param outputFile Where the data goes.
+	 * @param ranges The ranges of the output file being filled.
+	 * @param position Where the data starts among the ranges.
+	 * @param data The bytes to write.
+	 * @throws IOException when the file cannot be written.
 	 */
-	private void sendFileRequestPacket(String fileName, String ipAddress, int port) throws IOException {
-		diagLog.append("Requesting file: " + fileName + "\n");
-		diagLog.append("From: " + ipAddress + " : " + Integer.toString(port) + "\n");
+	private void writeToRanges(ChunkSink outputFile, RangeList ranges, long position, ByteBuffer data) throws IOException	{
 		
-		byte[] nameData = new byte[1024];
-		nameData = fileName.getBytes();
-		Utils.sendPacket(clientSocket, nameData, ipAddress, port);
+		while(data.hasRemaining())	{
+			int range = ranges.find(position);
+			long within = position - ranges.getStart(range);
+			int count = (int) Math.min(data.remaining(), ranges.getLength(range) - within);
+			
+			ByteBuffer part = data.duplicate();
+			part.limit(part.position() + count);
+			outputFile.write(ranges.getOffset(range) + within, part);
+			
+			data.position(data.position() + count);
+			position += count;
+		}
 	}
 	
 	/**
-	 * Ensures the client shuts down appropriately.
-	 * Should be called before the client terminates
-	 * if the initialize method has been called.
+	 * Reads back bytes written to a list of ranges one after the other.
+	 * @param outputFile Where the data was written.
+	 * @param ranges The ranges of the output file being filled.
+	 * @param position Where the data starts among the ranges.
+	 * @param dst Where the bytes go, filled to its limit.
+	 * @throws IOException when the file cannot be read.
 	 */
-	public void killClient() {
-		clientSocket.close();
+	private void readFromRanges(ChunkSink outputFile, RangeList ranges, long position, ByteBuffer dst) throws IOException	{
+		
+		int limit = dst.limit();
+		
+		while(dst.position() < limit)	{
+			int range = ranges.find(position);
+			long within = position - ranges.getStart(range);
+			int count = (int) Math.min(limit - dst.position(), ranges.getLength(range) - within);
+			
+			dst.limit(dst.position() + count);
+			outputFile.read(ranges.getOffset(range) + within, dst);
+			dst.limit(limit);
+			position += count;
+		}
 	}
-
-	@Override
-	public void run() {
-		try {
-			requestFile(filename, ipAddress, port, packetSkip);
-		} catch (UnknownHostException e1) {
-			diagLog.append("Unable to determine local IP address\n");
-			e1.printStackTrace();
-		} catch (IOException e1) {
-			diagLog.append(e1.getMessage() + "\n");
-			e1.printStackTrace();
+	
+	/**
+	 * Reads back data that has already been written.
+	 * @param outputFile Where the data was written.
+	 * @param ranges The ranges of the output file being filled, or null for the whole file.
+	 * @param position Where the data starts in what is being sent.
+	 * @param dst Where the bytes go, filled to its limit.
+	 * @throws IOException when the file cannot be read.
+	 */
+	private void readBack(ChunkSink outputFile, RangeList ranges, long position, ByteBuffer dst) throws IOException	{
+		
+		if(ranges == null)	{
+			outputFile.read(position, dst);
+		} else {
+			readFromRanges(outputFile, ranges, position, dst);
 		}
+	}
+	
+	/**
+	 * Rebuilds the one packet a parity packet covers that hasn't arrived, by
+	 * XORing the parity with the other packets it covers, read back from the
+	 * output file.
+	 * @param parity The parity packet.
+	 * @param outputFile Where the data is being written.
+	 * @param ranges The ranges of the output file being filled, or null for the whole file.
+	 * @param base The oldest packet that has not been received.
+	 * @param window Packets received ahead of base, indexed by packet number % windowSize.
+	 * @param numberOfPackets The number of data packets being sent.
+	 * @param numberOfBytes The number of bytes being sent.
+	 * @param rebuilt Where the rebuilt data goes.
+	 * @param scratch Room to read back one packet's data.
+	 * @return The number of the packet rebuilt, or -1 if none could be.
+	 * @throws IOException when the output file cannot be read.
+	 */
+	private long recoverFromParity(DatagramPacket parity, ChunkSink outputFile, RangeList ranges, long base, boolean[] window,
+			long numberOfPackets, long numberOfBytes, byte[] rebuilt, byte[] scratch) throws IOException	{
 		
-		clientSocket.close();
+		byte[] packet = parity.getData();
+		
+		if(parity.getLength() < Protocol.PARITY_HEADER_SIZE)	{
+			return -1;
+		}
+		
+		long first = 0;
+		
+		for(int i = 1; i < 8; i++)	{
+			first = (first << 8) | (packet[i] & 0xFF);
+		}
+		
+		int stride = packet[8] & 0xFF;
+		int count = packet[Protocol.PARITY_HEADER_SIZE - 1] & 0xFF;
+		long missing = -1;
+		
+		for(int i = 0; i < count; i++)	{
+			long covered = first + (long) i * stride;
+			
+			//We can't tell which packets past the window we have
+			if(stride < 1 || covered >= numberOfPackets || covered >= base + windowSize)	{
+				return -1;
+			}
+			
+			if(covered >= base && !window[(int) (covered % windowSize)])	{
+				
+				if(missing >= 0)	{
+					return -1;
+				}
+				
+				missing = covered;
+			}
+		}
+		
+		if(missing < 0)	{
+			return -1;
+		}
+		
+		int length = (int) Math.min(chunkSize, numberOfBytes - missing * chunkSize);
+		
+		if(parity.getLength() - Protocol.PARITY_HEADER_SIZE < length)	{
+			return -1;
+		}
+		
+		System.arraycopy(packet, Protocol.PARITY_HEADER_SIZE, rebuilt, 0, length);
+		
+		for(int i = 0; i < count; i++)	{
+			long covered = first + (long) i * stride;
+			
+			if(covered == missing)	{
+				continue;
+			}
+			
+			long position = covered * chunkSize;
+			ByteBuffer other = ByteBuffer.wrap(scratch, 0, (int) Math.min(chunkSize, numberOfBytes - position));
+			readBack(outputFile, ranges, position, other);
+			
+			for(int j = 0; j < Math.min(length, other.limit()); j++)	{
+				rebuilt[j] ^= scratch[j];
+			}
+		}
+		
+		return missing;
+	}
+	
+	/**
+	 * Returns the data carried by a data packet, inflating it if the server
+	 * compressed it.
+	 * @param received The data packet.
+	 * @param length The number of bytes of data the packet should carry.
+	 * @param inflater Used to inflate compressed data.
+	 * @param decoded Where compressed data is inflated to, over an array of at least length bytes.
+	 * @return The data, or null if the packet is damaged.
+	 */
+	private ByteBuffer decodeChunk(DatagramPacket received, int length, Inflater inflater, ByteBuffer decoded)	{
+		
+		byte[] packet = received.getData();
+		int encoded = received.getLength() - Protocol.DATA_HEADER_SIZE;
+		
+		if(packet[Protocol.DATA_HEADER_SIZE - 1] == Protocol.RAW)	{
+			return (encoded >= length) ? view(receivedView, Protocol.DATA_HEADER_SIZE, length) : null;
+		}
+		
+		if(packet[Protocol.DATA_HEADER_SIZE - 1] != Protocol.DEFLATED)	{
+			return null;
+		}
+		
+		inflater.reset();
+		inflater.setInput(packet, Protocol.DATA_HEADER_SIZE, encoded);
+		
+		try {
+			int count = inflater.inflate(decoded.array(), 0, length);
+			
+			if(count != length || !inflater.finished())	{
+				return null;
+			}
+			
+		} catch (DataFormatException e) {
+			return null;
+		}
+		
+		return view(decoded, 0, length);
+	}
+	
+	/**
+	 * Points a view at part of the array it wraps, in place of wrapping the array again.
+	 * @param view The view.
+	 * @param offset Where the part starts in the array.
+	 * @param length The number of bytes in the part.
+	 * @return The view.
+	 */
+	private static ByteBuffer view(ByteBuffer view, int offset, int length)	{
+		view.clear();
+		view.position(offset);
+		view.limit(offset + length);
+		return view;
+	}
+	
+	/**
+	 * Tells the progress listener how far the transfer has got. Reports that
+	 * don't change the percentage, or come sooner than PROGRESS_INTERVAL after
+	 * the last, are skipped unless forced.
+	 * @param done The bytes received so far.
+	 * @param total The bytes expected.
+	 * @param force Whether to update regardless of the time since the last update.
+	 */
+	private void showProgress(long done, long total, boolean force)	{
+
+		if(progressListener == null)	{
+			return;
+		}
+
+		long now = System.nanoTime();
+
+		if(!force && now - nextProgressUpdate < 0)	{
+			return;
+		}
+
+		nextProgressUpdate = now + PROGRESS_INTERVAL;
+		int percent = (total > 0) ? (int) ((100.0 * done) / total) : 100;
+
+		if(percent == shownPercent && !force)	{
+			return;
+		}
+
+		shownPercent = percent;
+		progressListener.onProgress(done, total);
+	}
+
+	/**
+	 * Sets up the packets reused for the data received and the acknowledgments
+	 * sent, once the packet size is known. The server's address is only looked
+	 * up once rather than for every acknowledgment.
+	 * @param ipAddress The IP address of the server.
+	 * @param port The port the server is operating on.
+	 * @throws UnknownHostException when the IP address cannot be resolved.
+	 */
+	private void prepareBuffers(String ipAddress, int port) throws UnknownHostException	{
+		
+		if(received == null || received.getData().length < packetSize)	{
+			byte[] buffer = new byte[packetSize];
+			received = new DatagramPacket(buffer, buffer.length);
+			receivedView = ByteBuffer.wrap(buffer);
+		}
+		
+		//Room for a bit for every packet the window can hold past the first missing one, never more than MIN_PACKET_SIZE
+		int ackSize = Protocol.ACK_HEADER_SIZE + (windowSize - 1 + 7) / 8;
+		
+		if(ackPacket == null || ack.length != ackSize)	{
+			ack = new byte[ackSize];
+			ackView = ByteBuffer.wrap(ack);
+			ackPacket = new DatagramPacket(ack, ack.length, InetAddress.getByName(ipAddress), port);
+		}
+	}
+	
+	/**
+	 * Forces the packets received so far to disk, then records them in the
+	 * journal, so the journal never lists a packet that could still be lost.
+	 * @param outputFile The file being received.
+	 * @param base The oldest packet that has not been received.
+	 * @param window Packets received ahead of base, indexed by packet number % windowSize.
+	 * @param numberOfPackets The number of data packets in the file.
+	 * @param journalFile Where the journal is kept.
+	 * @throws IOException when the file cannot be synced or the journal written.
+	 */
+	private void saveJournal(ChunkSink outputFile, long base, boolean[] window, long numberOfPackets, File journalFile) throws IOException	{
+		outputFile.sync();
+		journal.record(base, window);
+		
+		//The digest packet is never written, so it isn't something we have
+		journal.forgetPast((int) Math.min(windowSize, numberOfPackets - base));
+		journal.save(journalFile);
+	}
+	
+	/**
+	 * After the last packet has been written the server may still be re-sending
+	 * packets whose acknowledgments were lost. Keep acknowledging them until the
+	 * server goes quiet so it doesn't wait out its own timeouts.
+	 * @param numberOfPackets The number of packets in the transfer, counting the digest.
+	 * @throws IOException when an acknowledgment fails to send.
+	 */
+	private void lingerForRetransmissions(long numberOfPackets) throws IOException	{
+		
+		//The server re-sends after its own timeout, so wait a little longer than ours
+		clientSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(2 * rtt.getRto())));
+		
+		try {
+			while(true)	{
+				Utils.receivePacket(clientSocket, received);
+				long packetNumber = getPacketNumber();
+				
+				if(packetNumber >= 0 && packetNumber < numberOfPackets)	{
+					newestReceived = packetNumber;
+					newestArrived = System.nanoTime();
+					sendFilePacketAcknowledgment(numberOfPackets, numberOfPackets - 1, null);
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			//Server has stopped re-sending, nothing left to acknowledge
+		}
+	}
+	
+	/**
+	 * Returns the packet number stored in the header of the packet last
+	 * received, or -1 if it is not a data or digest packet.
+	 */
+	private long getPacketNumber()	{
+		
+		byte type = Protocol.getType(received.getData(), received.getLength());
+		
+		if(received.getLength() < Protocol.DATA_HEADER_SIZE || (type != Protocol.DATA && type != Protocol.DIGEST))	{
+			return -1;
+		}
+		
+		return receivedView.getLong(1);
+	}
+	
+	/**
+	 * Sets the number of packets past the next expected one that will be
+	 * accepted and held until they can be written in order. Every packet in
+	 * the window must fit the bitmap of one acknowledgment, which limits it
+	 * to Protocol.MAX_WINDOW_SIZE.
+	 * @param size The window size in packets, from 1 to Protocol.MAX_WINDOW_SIZE.
+	 */
+	public void setWindowSize(int size)	{
+		
+		if(size < 1 || size > Protocol.MAX_WINDOW_SIZE)	{
+			throw new IllegalArgumentException("Window size must be from 1 to " + Protocol.MAX_WINDOW_SIZE);
+		}
+		
+		windowSize = size;
+	}
+	
+	/**
+	 * Sets how often packets received are acknowledged. Each acknowledgment
+	 * covers every packet received so far, so fewer of them only delays
+	 * what the server learns, and packets that arrive out of order or twice
+	 * are still acknowledged at once.
+	 * @param packets The packets received for every acknowledgment sent, must be at least 1.
+	 * @param millis The longest a packet waits to be acknowledged, must not be negative.
+	 */
+	public void setAckFrequency(int packets, int millis)	{
+		
+		if(packets < 1)	{
+			throw new IllegalArgumentException("Packets per acknowledgment must be at least 1");
+		}
+		
+		if(millis < 0)	{
+			throw new IllegalArgumentException("Acknowledgment delay must not be negative");
+		}
+		
+		ackEvery = packets;
+		ackDelay = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+	
+	/**
+	 * Send a packet acknowledging every packet received so far: all of those
+	 * before base, and a bitmap of those after it up to the newest.
+	 * @param base The oldest packet that has not been received.
+	 * @param highest The newest packet that has been received.
+	 * @param window Packets received ahead of base, indexed by packet number % windowSize.
+	 * @throws IOException when the packet fails to send.
+	 */
+	private void sendFilePacketAcknowledgment(long base, long highest, boolean[] window) throws IOException	{
+		
+		int bits = (int) Math.max(0, Math.min(highest - base, (ack.length - Protocol.ACK_HEADER_SIZE) * 8));
+		int length = Protocol.ACK_HEADER_SIZE + (bits + 7) / 8;
+		
+		ackView.clear();
+		ackView.put(Protocol.ACK);
+		ackView.putLong(base);
+		ackView.putInt(0);
+		ackView.putLong(newestReceived);
+		ackView.putInt((int) Math.min(0xFFFFFFFFL, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - newestArrived)));
+		ackView.putShort((short) Math.min(0xFFFF, recoveredSinceAck));
+		Arrays.fill(ack, Protocol.ACK_HEADER_SIZE, length, (byte) 0);
+		
+		for(int i = 0; i < bits; i++)	{
+			if(window[(int) ((base + 1 + i) % windowSize)])	{
+				ack[Protocol.ACK_HEADER_SIZE + i / 8] |= 1 << (i % 8);
+			}
+		}
+		
+		checksum.seal(view(ackView, 0, length));
+		ackPacket.setLength(length);
+		clientSocket.send(ackPacket);
+		metrics.onAcknowledgment();
+		
+		unacknowledged = 0;
+		recoveredSinceAck = 0;
+	}
+
+	/**
+	 * Waits for a file request acknowledgment from the server to determine
+	 * if the server will service the request. The request is sent again each
+	 * time the retransmission timeout expires, and the round trip of a request
+	 * that was only sent once seeds the RTT estimate. Also records the packet
+	 * size the server will use and whether it is resuming an earlier attempt.
+	 * @param request The file request packet that was sent.
+	 * @param ipAddress The IP address of the server.
+	 * @param port The port the server is operating on.
+	 * @return The size of the file requested in bytes.
+	 * @throws IOException if the server has indicated that the file cannot be found
+	 * or the server never answers.
+	 */
+	private long getFileRequestAcknowledgment(byte[] request, String ipAddress, int port) throws IOException {
+		
+		long numberOfBytes = 0;
+		long sentAt = System.nanoTime();
+		boolean resent = false;
+		DatagramPacket acknowledgment;
+		requestSentAt = sentAt;
+		
+		while(true)	{
+			
+			try {
+				setTimeout();
+				acknowledgment = Utils.receivePacket(clientSocket, Protocol.MAX_PACKET_SIZE);
+			} catch (SocketTimeoutException e) {
+				
+				if(!rtt.backoff() && System.nanoTime() - sentAt >= RttEstimator.GIVE_UP_AFTER)	{
+					throw new IOException("Server is not responding");
+				}
+				
+				Utils.sendPacket(clientSocket, request, ipAddress, port);
+				resent = true;
+				continue;
+			}
+			
+			//Anything else is left over from an earlier transfer
+			if(acknowledgment.getLength() >= Protocol.RESPONSE_SIZE && Protocol.getType(acknowledgment.getData(), acknowledgment.getLength()) == Protocol.RESPONSE)	{
+				break;
+			}
+		}
+		
+		if(resent)	{
+			rtt.resetBackoff();
+		} else {
+			rtt.addSample(System.nanoTime() - sentAt);
+			metrics.onRtt(System.nanoTime() - sentAt);
+		}
+		
+		ByteBuffer buff = ByteBuffer.wrap(acknowledgment.getData(), 1, Protocol.RESPONSE_SIZE - 1);
+		numberOfBytes = buff.getLong();
+		
+		if(numberOfBytes == Protocol.FILE_NOT_FOUND) {
+			throw new IOException("File not found");
+		}
+		
+		if(numberOfBytes == Protocol.FILE_CHANGED)	{
+			return numberOfBytes;
+		}
+		
+		packetSize = buff.getInt();
+		
+		if(packetSize < Protocol.MIN_PACKET_SIZE || packetSize > Protocol.MAX_PACKET_SIZE)	{
+			throw new IOException("Server chose an invalid packet size: " + packetSize);
+		}
+		
+		chunkSize = packetSize - Protocol.DATA_HEADER_SIZE;
+		modified = buff.getLong();
+		boolean resumeAccepted = (buff.get() != 0);
+		fileSize = buff.getLong();
+		
+		//Only resume what the journal describes, whatever the server thinks
+		resumed = resumeAccepted && journal != null && journal.getFileSize() == numberOfBytes
+				&& journal.getModified() == modified && journal.getPacketSize() == packetSize;
+		
+		log.info("KB expected: " + (numberOfBytes / 1024.0));
+		log.info("Packet size: " + packetSize);
+		log.info("Round trip: " + rtt.toString());
+		
+		return numberOfBytes;
+	}
+	
+	/**
+	 * Starts a file request, leaving room after the file name for what
+	 * the mode needs.
+	 * @param fileName The name of the file being requested.
+	 * @param largestPacket The largest data packet the server may send.
+	 * @param mode What to send: Protocol.WHOLE_FILE, SIGNATURES or RANGES.
+	 * @return The request, positioned after the file name.
+	 * @throws IOException when the file name is too long.
+	 */
+	private ByteBuffer newFileRequest(String fileName, int largestPacket, byte mode) throws IOException	{
+		
+		byte[] name = fileName.getBytes();
+		
+		//Requests have to fit the smallest packet any path is expected to carry
+		if(name.length > Protocol.MIN_PACKET_SIZE - Protocol.REQUEST_HEADER_SIZE - Protocol.RESUME_HEADER_SIZE)	{
+			throw new IOException("File name too long");
+		}
+		
+		log.info("Requesting file: " + fileName);
+		
+		ByteBuffer buff = ByteBuffer.allocate(Protocol.MIN_PACKET_SIZE);
+		buff.put(Protocol.REQUEST);
+		buff.putInt(largestPacket);
+		buff.put(mode);
+		buff.putShort((short) name.length);
+		buff.put(name);
+		
+		return buff;
+	}
+	
+	/**
+	 * Sends a file request to the server.
+	 * @param request The request, positioned at its end.
+	 * @param ipAddress The IP address of the server.
+	 * @param port The port the server is operating on.
+	 * @return The request packet, in case it needs to be sent again.
+	 * @throws IOException when the packet is unable to be sent.
+	 */
+	private byte[] sendFileRequestPacket(ByteBuffer request, String ipAddress, int port) throws IOException {
+		
+		byte[] packet = new byte[request.position()];
+		System.arraycopy(request.array(), 0, packet, 0, packet.length);
+		
+		log.info("From: " + ipAddress + " : " + Integer.toString(port));
+		
+		Utils.sendPacket(clientSocket, packet, ipAddress, port);
+		
+		return packet;
+	}
+	
+	/**
+	 * Finds the largest packet that makes it to the server and back by sending
+	 * a probe of every candidate size at once and keeping the largest echo.
+	 * Waits for the largest candidate, or for twice as long as the first echo
+	 * took, whichever comes first. Falls back to the default packet size if
+	 * the server never answers.
+	 * @param ipAddress The IP address of the server.
+	 * @param port The port the server is operating on.
+	 * @return The largest packet size that made the round trip.
+	 * @throws IOException when the socket fails.
+	 */
+	private int probePacketSize(String ipAddress, int port) throws IOException	{
+		
+		SocketOption<Boolean> dontFragment = Utils.getDontFragmentOption();
+		
+		if(dontFragment != null)	{
+			try {
+				clientSocket.setOption(dontFragment, true);
+			} catch (UnsupportedOperationException e) {
+				log.info("Unable to set the don't fragment bit, probes may be fragmented");
+			}
+		}
+		
+		InetAddress server = InetAddress.getByName(ipAddress);
+		int largest = 0;
+		
+		for(int attempt = 0; attempt < 2 && largest == 0; attempt++)	{
+			
+			long sentAt = System.nanoTime();
+			int candidates = 0;
+			int biggest = 0;
+			
+			for(int size : Protocol.PROBE_SIZES)	{
+				
+				if(size > maxPacketSize)	{
+					continue;
+				}
+				
+				ByteBuffer probe = ByteBuffer.allocate(size);
+				probe.put(Protocol.PROBE);
+				probe.putInt(size);
+				
+				try {
+					Utils.sendPacket(clientSocket, probe.array(), server, port);
+					candidates++;
+					biggest = Math.max(biggest, size);
+				} catch (IOException e) {
+					//Larger than this host will send, try the next size down
+				}
+			}
+			
+			long deadline = sentAt + rtt.getRto();
+			boolean answered = false;
+			
+			while(candidates > 0 && largest < biggest)	{
+				
+				long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				
+				if(wait < 1)	{
+					break;
+				}
+				
+				DatagramPacket echo;
+				
+				try {
+					clientSocket.setSoTimeout((int) wait);
+					echo = Utils.receivePacket(clientSocket, Protocol.MAX_PACKET_SIZE);
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+				
+				//Only a probe that arrived whole counts
+				if(echo.getLength() < Protocol.PROBE_HEADER_SIZE || Protocol.getType(echo.getData(), echo.getLength()) != Protocol.PROBE
+						|| ByteBuffer.wrap(echo.getData(), 1, 4).getInt() != echo.getLength())	{
+					continue;
+				}
+				
+				largest = Math.max(largest, echo.getLength());
+				
+				//Larger probes should be close behind the first one, don't wait out the whole timeout
+				if(!answered)	{
+					long elapsed = System.nanoTime() - sentAt;
+					rtt.addSample(elapsed);
+					metrics.onRtt(elapsed);
+					deadline = Math.min(deadline, System.nanoTime() + elapsed + TimeUnit.MILLISECONDS.toNanos(1));
+					answered = true;
+				}
+			}
+		}
+		
+		if(largest == 0)	{
+			log.info("Server did not answer probes, using " + Protocol.DEFAULT_PACKET_SIZE + " byte packets");
+			return Math.min(maxPacketSize, Protocol.DEFAULT_PACKET_SIZE);
+		}
+		
+		log.info("Largest packet to reach the server: " + largest);
+		return largest;
+	}
+	
+	/**
+	 * Sets the socket to time out after the current retransmission timeout.
+	 * @throws SocketException when the timeout cannot be set.
+	 */
+	private void setTimeout() throws SocketException	{
+		clientSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(rtt.getRto())));
+	}
+	
+	/**
+	 * Returns the round trip time estimates for the server.
+	 */
+	public RttEstimator getRttEstimator()	{
+		return rtt;
+	}
+	
+	/**
+	 * Sets the largest packet the server will be asked to send.
+	 * @param size The packet size in bytes, between Protocol.MIN_PACKET_SIZE
+	 * and Protocol.MAX_PACKET_SIZE.
+	 */
+	public void setMaxPacketSize(int size)	{
+		
+		if(size < Protocol.MIN_PACKET_SIZE || size > Protocol.MAX_PACKET_SIZE)	{
+			throw new IllegalArgumentException("Packet size must be between " + Protocol.MIN_PACKET_SIZE + " and " + Protocol.MAX_PACKET_SIZE);
+		}
+		
+		maxPacketSize = size;
+	}
+	
+	/**
+	 * Sets whether the path to the server should be probed for the largest
+	 * packet it carries before the file is requested. The result never
+	 * exceeds the maximum packet size.
+	 * @param probe True to probe the path.
+	 */
+	public void setProbePath(boolean probe)	{
+		probePath = probe;
+	}
+	
+	/**
+	 * Sets whether an interrupted transfer should be resumed by a later
+	 * request for the same file, rather than started over.
+	 * @param resumable True to keep a resume journal next to the file.
+	 */
+	public void setResumable(boolean resumable)	{
+		this.resumable = resumable;
+	}
+	
+	/**
+	 * Sets whether an older copy of the file already in place should be
+	 * updated by fetching only the parts that changed, rather than all of it.
+	 * @param delta True to use delta transfers when an older copy exists.
+	 */
+	public void setDeltaTransfer(boolean delta)	{
+		this.delta = delta;
+	}
+	
+	/**
+	 * Sets how often the received file is forced out to disk.
+	 * @param policy The durability policy to follow.
+	 */
+	public void setDurabilityPolicy(DurabilityPolicy policy)	{
+		durabilityPolicy = policy;
+	}
+	
+	/**
+	 * Sets whether the output file should be sized to the announced file
+	 * size before any data arrives.
+	 * @param preallocate True to size the file up front.
+	 */
+	public void setPreallocate(boolean preallocate)	{
+		this.preallocate = preallocate;
+	}
+	
+	/**
+	 * Sets how many sessions a file is fetched over at once. Small files
+	 * get fewer, and a transfer being resumed gets one.
+	 * @param streams The number of streams, 1 to fetch files over a single session.
+	 */
+	public void setStreams(int streams)	{
+		
+		if(streams < 1)	{
+			throw new IllegalArgumentException("Number of streams must be at least 1");
+		}
+		
+		this.streams = streams;
+	}
+	
+	/**
+	 * Sets whether the file name is a list of files and directories, one per
+	 * line, to be fetched together over a single session.
+	 * @param batch True to fetch a batch.
+	 */
+	public void setBatch(boolean batch)	{
+		this.batch = batch;
+	}
+	
+	/**
+	 * Sets whether a batch includes the files in subdirectories of the directories named.
+	 * @param recursive True to go into subdirectories.
+	 */
+	public void setRecursive(boolean recursive)	{
+		this.recursive = recursive;
+	}
+	
+	/**
+	 * Sets the directory the file is written to. The name asked for is kept,
+	 * so a batch still lays its files out under it the way the server did.
+	 * @param directory The directory, or null for the working directory.
+	 */
+	public void setDirectory(File directory)	{
+		this.directory = directory;
+	}
+	
+	/**
+	 * Sets who is told how far the transfer has got. Called on the thread
+	 * doing the transfer, or on several for a parallel transfer, so a
+	 * listener that updates a user interface must hand the update over to
+	 * its own thread.
+	 * @param listener The listener, or null for none.
+	 */
+	public void setProgressListener(ProgressListener listener)	{
+		this.progressListener = listener;
+	}
+	
+	/**
+	 * Ensures the client shuts down appropriately.
+	 * Closing the socket makes a transfer under way fail.
+	 */
+	public synchronized void killClient() {
+		clientSocket.close();
+	}
+	
+	/**
+	 * Moves to a new socket for the next request of a transfer made of several.
+	 * The server tells sessions apart by the client's address and port, and
+	 * answers a request from one whose session is still running with that
+	 * session's response. The last session lingers if its final acknowledgment
+	 * was lost, so a request from the same port would get the old answer.
+	 * @throws SocketException when the socket could not be opened, or the client has been killed.
+	 */
+	private synchronized void openNewSocket() throws SocketException	{
+		
+		if(clientSocket.isClosed())	{
+			throw new SocketException("Socket closed");
+		}
+		
+		clientSocket.close();
+		clientSocket = new DatagramSocket();
+	}
+	
+	/**
+	 * Fetches the file, or batch, on the current thread. The socket is
+	 * closed once the transfer is over, whether or not it succeeded.
+	 * @throws UnknownHostException When IP address of the host cannot be determined.
+	 * @throws IOException When the transfer fails.
+	 */
+	public void transfer() throws UnknownHostException, IOException	{
+		
+		long started = System.nanoTime();
+		boolean completed = false;
+		metrics.transferStarted();
+		
+		try {
+			requestFile(filename, ipAddress, port);
+			completed = true;
+		} finally {
+			clientSocket.close();
+			metrics.transferEnded(completed, bytesReceived.get(), System.nanoTime() - started);
+		}
+	}
+	
+	/**
+	 * Returns what has been received so far.
+	 */
+	public ClientMetrics getMetrics()	{
+		return metrics;
+	}
+	
+	/**
+	 * Counts what is received in metrics shared with other controllers,
+	 * rather than in metrics of this controller's own.
+	 * @param metrics The metrics to count in.
+	 */
+	public void setMetrics(ClientMetrics metrics)	{
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Fetches the file, or batch, on a new thread.
+	 * @return Completes when the transfer is over, throwing an ExecutionException
+	 * with the cause if it failed. Cancelling it does not stop the transfer,
+	 * killClient does.
+	 */
+	public Future<Void> fetch()	{
+		
+		FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				transfer();
+				return null;
+			}
+		});
+		
+		new Thread(task, "Client").start();
+		return task;
+	}
+
+	@Override
+	public void run() {
+		try {
+			transfer();
+		} catch (UnknownHostException e1) {
+			log.error("Unable to determine local IP address", e1);
+		} catch (IOException e1) {
+			log.error(e1.getMessage(), e1);
+		}
 	}
 }
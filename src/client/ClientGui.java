@@ -9,7 +9,8 @@ import java.awt.Font;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.net.SocketException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 
 import javax.swing.Box;
 import javax.swing.JButton;
@@ -20,6 +21,7 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.border.EmptyBorder;
@@ -31,6 +33,11 @@ import com.jgoodies.forms.layout.FormLayout;
 import com.jgoodies.forms.layout.RowSpec;
 import javax.swing.JProgressBar;
 
+import proxy.Impairment;
+import proxy.ImpairmentProxy;
+import utils.Log;
+import utils.TextAreaSink;
+
 /**
  * GUI code for the client.
  * 
@@ -44,6 +51,9 @@ import javax.swing.JProgressBar;
 public class ClientGui extends JFrame {
 
 	private static final long serialVersionUID = 1L;
+	
+	//The share of packets lost each way when packet miss is checked
+	private static final double PACKET_MISS_LOSS = 0.05;
 	private JPanel contentPane;
 	private JTextField txtIpAddress;
 	private JTextField txtPortNumber;
@@ -51,6 +61,7 @@ public class ClientGui extends JFrame {
 	private static JTextArea txtDiagLog;
 	private static JCheckBox chkBPacketMiss;
 	private static JProgressBar progressBar;
+	private static Log log;
 
 	/**
 	 * Launch the application.
@@ -62,6 +73,7 @@ public class ClientGui extends JFrame {
 		
 		((DefaultCaret)txtDiagLog.getCaret()).setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
 		txtDiagLog.setEditable(false);
+		log = new Log(new TextAreaSink(txtDiagLog));
 		
 		EventQueue.invokeLater(new Runnable() {
 			public void run() {
@@ -172,15 +184,61 @@ public class ClientGui extends JFrame {
 		JButton btnConnect = new JButton("Connect");
 		btnConnect.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
+				ImpairmentProxy proxy = null;
+				
 				try {
-					Thread thread = new Thread(new ClientController(txtFileName.getText(), txtIpAddress.getText(), Integer.parseInt(txtPortNumber.getText()), chkBPacketMiss.isSelected(), txtDiagLog, progressBar));
+					String ipAddress = txtIpAddress.getText();
+					int port = Integer.parseInt(txtPortNumber.getText());
+					
+					//Packet miss sends the transfer through a local proxy that loses packets both ways
+					if(chkBPacketMiss.isSelected())	{
+						Impairment impairment = new Impairment();
+						impairment.setLoss(PACKET_MISS_LOSS);
+						proxy = new ImpairmentProxy(0, new InetSocketAddress(ipAddress, port), impairment, impairment, log);
+						proxy.start();
+						ipAddress = "127.0.0.1";
+						port = proxy.getPort();
+					}
+					
+					final ClientController client = new ClientController(txtFileName.getText(), ipAddress, port, log);
+					final ImpairmentProxy clientProxy = proxy;
+					
+					client.setProgressListener(new ProgressListener() {
+						@Override
+						public void onProgress(long bytesReceived, long bytesExpected) {
+							final int percent = (bytesExpected > 0) ? (int) ((100.0 * bytesReceived) / bytesExpected) : 100;
+							
+							SwingUtilities.invokeLater(new Runnable() {
+								@Override
+								public void run() {
+									progressBar.setValue(percent);
+								}
+							});
+						}
+					});
+					
+					progressBar.setValue(0);
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								client.run();
+							} finally {
+								if(clientProxy != null)	{
+									clientProxy.stop();
+								}
+							}
+						}
+					});
 					thread.start();
 				} catch (NumberFormatException e1) {
-					txtDiagLog.append("Invalid port number\n");
-					e1.printStackTrace();
-				} catch (SocketException e1) {
-					txtDiagLog.append("Unable to open socket\n");
-					e1.printStackTrace();
+					log.error("Invalid port number");
+				} catch (IOException e1) {
+					log.error("Unable to open socket", e1);
+					
+					if(proxy != null)	{
+						proxy.stop();
+					}
 				}
 			}
 		});
@@ -0,0 +1,355 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import utils.Histogram;
+import utils.Metrics;
+
+/**
+ * Counts what a client receives. Every ClientController has its own unless
+ * given one to share, so a program running many transfers can see them all
+ * in one place. The streams of a parallel transfer share their parent's.
+ * Safe to update from several threads without locking.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class ClientMetrics extends Metrics<ClientMetrics.Snapshot> implements ClientMetricsMBean {
+
+	private static final double MILLIS = 1e6;
+	private static final double MICROS = 1e3;
+
+	private AtomicInteger activeTransfers = new AtomicInteger();
+	private LongAdder transfersCompleted = new LongAdder();
+	private LongAdder transfersFailed = new LongAdder();
+	private LongAdder bytesReceived = new LongAdder();
+	private LongAdder packetsReceived = new LongAdder();
+	private LongAdder duplicatePackets = new LongAdder();
+	private LongAdder outOfOrderPackets = new LongAdder();
+	private LongAdder parityPacketsReceived = new LongAdder();
+	private LongAdder recoveredPackets = new LongAdder();
+	private LongAdder damagedPackets = new LongAdder();
+	private LongAdder acknowledgmentsSent = new LongAdder();
+	private LongAdder timeouts = new LongAdder();
+
+	//In nanoseconds, apart from throughput which is in bytes per second
+	private Histogram rtt = new Histogram();
+	private Histogram timeToFirstByte = new Histogram();
+	private Histogram diskWrite = new Histogram();
+	private Histogram throughput = new Histogram();
+
+	void transferStarted() {
+		activeTransfers.incrementAndGet();
+	}
+
+	/**
+	 * Counts a transfer that is over.
+	 * @param completed Whether everything asked for arrived.
+	 * @param bytes The bytes of file data the transfer ended up with.
+	 * @param elapsed How long the transfer took in nanoseconds.
+	 */
+	void transferEnded(boolean completed, long bytes, long elapsed) {
+
+		activeTransfers.decrementAndGet();
+
+		if(!completed)	{
+			transfersFailed.increment();
+			return;
+		}
+
+		transfersCompleted.increment();
+
+		if(bytes > 0 && elapsed > 0)	{
+			throughput.record((long) (bytes * 1e9 / elapsed));
+		}
+	}
+
+	/**
+	 * Counts a data or parity packet received.
+	 * @param bytes The size of the packet.
+	 */
+	void onPacket(int bytes) {
+		packetsReceived.increment();
+		bytesReceived.add(bytes);
+	}
+
+	void onDuplicate() {
+		duplicatePackets.increment();
+	}
+
+	void onOutOfOrder() {
+		outOfOrderPackets.increment();
+	}
+
+	/**
+	 * Counts a parity packet received.
+	 * @param recovered Whether it rebuilt a lost packet.
+	 */
+	void onParity(boolean recovered) {
+		parityPacketsReceived.increment();
+
+		if(recovered)	{
+			recoveredPackets.increment();
+		}
+	}
+
+	void onDamaged() {
+		damagedPackets.increment();
+	}
+
+	void onAcknowledgment() {
+		acknowledgmentsSent.increment();
+	}
+
+	void onTimeout() {
+		timeouts.increment();
+	}
+
+	void onRtt(long sample) {
+		rtt.record(sample);
+	}
+
+	void onFirstByte(long elapsed) {
+		timeToFirstByte.record(elapsed);
+	}
+
+	void onWrite(long elapsed) {
+		diskWrite.record(elapsed);
+	}
+
+	@Override
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	@Override
+	public int getActiveTransfers() {
+		return activeTransfers.get();
+	}
+
+	@Override
+	public long getTransfersCompleted() {
+		return transfersCompleted.sum();
+	}
+
+	@Override
+	public long getTransfersFailed() {
+		return transfersFailed.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	@Override
+	public long getDuplicatePackets() {
+		return duplicatePackets.sum();
+	}
+
+	@Override
+	public long getOutOfOrderPackets() {
+		return outOfOrderPackets.sum();
+	}
+
+	@Override
+	public long getParityPacketsReceived() {
+		return parityPacketsReceived.sum();
+	}
+
+	@Override
+	public long getRecoveredPackets() {
+		return recoveredPackets.sum();
+	}
+
+	@Override
+	public long getDamagedPackets() {
+		return damagedPackets.sum();
+	}
+
+	@Override
+	public long getAcknowledgmentsSent() {
+		return acknowledgmentsSent.sum();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	@Override
+	public double getRttMedianMillis() {
+		return rtt.snapshot().getPercentile(0.5) / MILLIS;
+	}
+
+	@Override
+	public double getTimeToFirstByteMedianMillis() {
+		return timeToFirstByte.snapshot().getPercentile(0.5) / MILLIS;
+	}
+
+	@Override
+	public double getDiskWriteMedianMicros() {
+		return diskWrite.snapshot().getPercentile(0.5) / MICROS;
+	}
+
+	@Override
+	public double getDiskWriteP99Micros() {
+		return diskWrite.snapshot().getPercentile(0.99) / MICROS;
+	}
+
+	@Override
+	public double getThroughputMedianKBps() {
+		return throughput.snapshot().getPercentile(0.5) / 1024.0;
+	}
+
+	/**
+	 * A client's metrics at one moment.
+	 */
+	public static class Snapshot {
+		private long time = System.nanoTime();
+		private int activeTransfers;
+		private long transfersCompleted;
+		private long transfersFailed;
+		private long bytesReceived;
+		private long packetsReceived;
+		private long duplicatePackets;
+		private long outOfOrderPackets;
+		private long parityPacketsReceived;
+		private long recoveredPackets;
+		private long damagedPackets;
+		private long acknowledgmentsSent;
+		private long timeouts;
+		private Histogram.Snapshot rtt;
+		private Histogram.Snapshot timeToFirstByte;
+		private Histogram.Snapshot diskWrite;
+		private Histogram.Snapshot throughput;
+
+		Snapshot(ClientMetrics metrics) {
+			this.activeTransfers = metrics.activeTransfers.get();
+			this.transfersCompleted = metrics.transfersCompleted.sum();
+			this.transfersFailed = metrics.transfersFailed.sum();
+			this.bytesReceived = metrics.bytesReceived.sum();
+			this.packetsReceived = metrics.packetsReceived.sum();
+			this.duplicatePackets = metrics.duplicatePackets.sum();
+			this.outOfOrderPackets = metrics.outOfOrderPackets.sum();
+			this.parityPacketsReceived = metrics.parityPacketsReceived.sum();
+			this.recoveredPackets = metrics.recoveredPackets.sum();
+			this.damagedPackets = metrics.damagedPackets.sum();
+			this.acknowledgmentsSent = metrics.acknowledgmentsSent.sum();
+			this.timeouts = metrics.timeouts.sum();
+			this.rtt = metrics.rtt.snapshot();
+			this.timeToFirstByte = metrics.timeToFirstByte.snapshot();
+			this.diskWrite = metrics.diskWrite.snapshot();
+			this.throughput = metrics.throughput.snapshot();
+		}
+
+		/**
+		 * Returns the rate bytes arrived at between an earlier snapshot and this one.
+		 * @param earlier The earlier snapshot.
+		 */
+		public double getBytesPerSecondSince(Snapshot earlier) {
+			long elapsed = time - earlier.time;
+			return (elapsed <= 0) ? 0 : (bytesReceived - earlier.bytesReceived) * 1e9 / elapsed;
+		}
+
+		/**
+		 * Returns when the snapshot was taken, from System.nanoTime.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public int getActiveTransfers() {
+			return activeTransfers;
+		}
+
+		public long getTransfersCompleted() {
+			return transfersCompleted;
+		}
+
+		public long getTransfersFailed() {
+			return transfersFailed;
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		public long getPacketsReceived() {
+			return packetsReceived;
+		}
+
+		public long getDuplicatePackets() {
+			return duplicatePackets;
+		}
+
+		public long getOutOfOrderPackets() {
+			return outOfOrderPackets;
+		}
+
+		public long getParityPacketsReceived() {
+			return parityPacketsReceived;
+		}
+
+		public long getRecoveredPackets() {
+			return recoveredPackets;
+		}
+
+		public long getDamagedPackets() {
+			return damagedPackets;
+		}
+
+		public long getAcknowledgmentsSent() {
+			return acknowledgmentsSent;
+		}
+
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		/**
+		 * Returns the round trip times measured, in nanoseconds.
+		 */
+		public Histogram.Snapshot getRtt() {
+			return rtt;
+		}
+
+		/**
+		 * Returns the times from a request to its first data packet, in nanoseconds.
+		 */
+		public Histogram.Snapshot getTimeToFirstByte() {
+			return timeToFirstByte;
+		}
+
+		/**
+		 * Returns the times taken to write each chunk received, in nanoseconds.
+		 */
+		public Histogram.Snapshot getDiskWrite() {
+			return diskWrite;
+		}
+
+		/**
+		 * Returns the rates completed transfers ran at, in bytes per second.
+		 */
+		public Histogram.Snapshot getThroughput() {
+			return throughput;
+		}
+
+		@Override
+		public String toString() {
+			return "active=" + activeTransfers + " completed=" + transfersCompleted + " failed=" + transfersFailed
+					+ " bytes=" + bytesReceived + " packets=" + packetsReceived + " duplicate=" + duplicatePackets
+					+ " outOfOrder=" + outOfOrderPackets + " parity=" + parityPacketsReceived + " recovered=" + recoveredPackets
+					+ " damaged=" + damagedPackets + " acks=" + acknowledgmentsSent + " timeouts=" + timeouts
+					+ " rttMs[" + rtt.toString(MILLIS) + "] ttfbMs[" + timeToFirstByte.toString(MILLIS)
+					+ "] writeUs[" + diskWrite.toString(MICROS) + "] KBps[" + throughput.toString(1024) + "]";
+		}
+	}
+}
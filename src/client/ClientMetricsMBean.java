@@ -0,0 +1,47 @@
+package client;
+
+/**
+ * The attributes of a client's metrics as JMX tools see them. Counts are
+ * totals since the metrics were created; latencies come from histograms and
+ * are only as precise as the bucket they fall in.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public interface ClientMetricsMBean {
+
+	int getActiveTransfers();
+
+	long getTransfersCompleted();
+
+	long getTransfersFailed();
+
+	long getBytesReceived();
+
+	long getPacketsReceived();
+
+	long getDuplicatePackets();
+
+	long getOutOfOrderPackets();
+
+	long getParityPacketsReceived();
+
+	long getRecoveredPackets();
+
+	long getDamagedPackets();
+
+	long getAcknowledgmentsSent();
+
+	long getTimeouts();
+
+	double getRttMedianMillis();
+
+	double getTimeToFirstByteMedianMillis();
+
+	double getDiskWriteMedianMicros();
+
+	double getDiskWriteP99Micros();
+
+	double getThroughputMedianKBps();
+}
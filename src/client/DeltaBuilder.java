@@ -0,0 +1,261 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.BlockSignatures;
+import utils.RangeList;
+import utils.RollingChecksum;
+
+/**
+ * Rebuilds a file the server has changed from the older copy the client
+ * already holds. Every block of the new file (as described by its block
+ * signatures) that turns up anywhere in the old copy is copied across, at
+ * any offset, by sliding a RollingChecksum along the old copy one byte at a
+ * time. Only the rest has to come from the server.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class DeltaBuilder {
+
+	//How much of the old copy is held at once while it is scanned
+	private static final int SCAN_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private long fileSize;
+	private long modified;
+	private int blockSize;
+	private int numberOfBlocks;
+
+	private int[] weak;
+	private byte[][] strong;
+
+	//Blocks that share a weak checksum, keyed by it
+	private Map<Integer, List<Integer>> byWeak = new HashMap<Integer, List<Integer>>();
+
+	//Blocks of the new file already copied from the old one
+	private boolean[] found;
+	private long bytesFound;
+
+	/**
+	 * Reads the block signatures of the new file.
+	 * @param signatures The signatures as the server sent them.
+	 * @throws IOException when the signatures can't be read or don't make sense.
+	 */
+	public DeltaBuilder(File signatures) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(signatures)));
+
+		try {
+			fileSize = in.readLong();
+			modified = in.readLong();
+			blockSize = in.readInt();
+
+			if(fileSize < 0 || blockSize < 1)	{
+				throw new IOException("Invalid block signatures");
+			}
+
+			long blocks = BlockSignatures.getNumberOfBlocks(fileSize, blockSize);
+
+			if(blocks > Integer.MAX_VALUE || signatures.length() != BlockSignatures.HEADER_SIZE + blocks * BlockSignatures.ENTRY_SIZE)	{
+				throw new IOException("Invalid block signatures");
+			}
+
+			numberOfBlocks = (int) blocks;
+			weak = new int[numberOfBlocks];
+			strong = new byte[numberOfBlocks][BlockSignatures.STRONG_SIZE];
+			found = new boolean[numberOfBlocks];
+
+			for(int i = 0; i < numberOfBlocks; i++)	{
+				weak[i] = in.readInt();
+				in.readFully(strong[i]);
+
+				//Only full blocks can be found by sliding a full block along the old copy
+				if(getBlockLength(i) == blockSize)	{
+					List<Integer> same = byWeak.get(weak[i]);
+
+					if(same == null)	{
+						same = new ArrayList<Integer>(1);
+						byWeak.put(weak[i], same);
+					}
+
+					same.add(i);
+				}
+			}
+
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Copies every block of the new file found in the old copy to its place
+	 * in the new file.
+	 * @param oldCopy The copy the client already has.
+	 * @param output The new file, sized to the new file size.
+	 * @return The ranges of the new file that were not found and must come from the server.
+	 * @throws IOException when either file can't be read or written.
+	 */
+	public RangeList copyMatches(File oldCopy, ChunkWriter output) throws IOException {
+
+		InputStream in = new FileInputStream(oldCopy);
+
+		try {
+			scan(in, output);
+		} finally {
+			in.close();
+		}
+
+		RangeList missing = new RangeList();
+
+		for(int i = 0; i < numberOfBlocks; i++)	{
+
+			if(!found[i])	{
+				missing.add((long) i * blockSize, getBlockLength(i));
+			}
+		}
+
+		return missing;
+	}
+
+	/**
+	 * Slides a block sized window along the old copy. Wherever its weak
+	 * checksum and then its MD5 match blocks of the new file, they are
+	 * written out and the window jumps past the match.
+	 * @param in The old copy.
+	 * @param output The new file.
+	 * @throws IOException when either file can't be read or written.
+	 */
+	private void scan(InputStream in, ChunkWriter output) throws IOException {
+
+		if(byWeak.isEmpty())	{
+			return;
+		}
+
+		byte[] buffer = new byte[Math.max(SCAN_BUFFER_SIZE, 2 * blockSize)];
+		RollingChecksum checksum = new RollingChecksum();
+		MessageDigest digest = BlockSignatures.newStrongDigest();
+
+		int start = 0; //Front of the window
+		int end = 0; //End of the bytes read so far
+		boolean fresh = true; //True when the checksum has to be computed from scratch
+
+		while(true)	{
+
+			//Keep a whole block past the front of the window in the buffer
+			if(end - start <= blockSize)	{
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				start = 0;
+
+				int count;
+
+				while(end < buffer.length && (count = in.read(buffer, end, buffer.length - end)) > 0)	{
+					end += count;
+				}
+
+				if(end < blockSize)	{
+					return;
+				}
+			}
+
+			if(fresh)	{
+				checksum.reset(buffer, start, blockSize);
+				fresh = false;
+			}
+
+			if(copyIfFound(checksum.getValue(), buffer, start, digest, output))	{
+				start += blockSize;
+				fresh = true;
+				continue;
+			}
+
+			if(start + blockSize == end)	{
+				return; //End of the old copy
+			}
+
+			checksum.roll(buffer[start], buffer[start + blockSize]);
+			start++;
+		}
+	}
+
+	/**
+	 * Writes the block at the front of the window to every place it belongs
+	 * in the new file that hasn't been filled yet.
+	 * @param value The weak checksum of the window.
+	 * @param buffer The buffer holding the window.
+	 * @param start Where the window starts in the buffer.
+	 * @param digest The digest to compute the strong checksum with.
+	 * @param output The new file.
+	 * @return True if the window matched at least one block.
+	 * @throws IOException when the new file can't be written.
+	 */
+	private boolean copyIfFound(int value, byte[] buffer, int start, MessageDigest digest, ChunkWriter output) throws IOException {
+
+		List<Integer> candidates = byWeak.get(value);
+
+		if(candidates == null)	{
+			return false;
+		}
+
+		byte[] hash = null;
+		boolean matched = false;
+
+		for(int block : candidates)	{
+
+			if(found[block])	{
+				continue;
+			}
+
+			//Only pay for the MD5 once the weak checksum has matched
+			if(hash == null)	{
+				digest.reset();
+				digest.update(buffer, start, blockSize);
+				hash = digest.digest();
+			}
+
+			if(Arrays.equals(hash, strong[block]))	{
+				output.write((long) block * blockSize, buffer, start, blockSize);
+				found[block] = true;
+				bytesFound += blockSize;
+				matched = true;
+			}
+		}
+
+		return matched;
+	}
+
+	/**
+	 * Returns the number of bytes in a block, the last one may be short.
+	 * @param block The number of the block.
+	 */
+	private int getBlockLength(int block) {
+		return (int) Math.min(blockSize, fileSize - (long) block * blockSize);
+	}
+
+	/**
+	 * Returns how many bytes of the new file were found in the old copy.
+	 */
+	public long getBytesFound() {
+		return bytesFound;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+}
@@ -0,0 +1,77 @@
+package client;
+
+/**
+ * Decides how often a received file is forced out to disk.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class DurabilityPolicy {
+
+	private static final long MEGABYTE = 1024 * 1024;
+
+	private static final DurabilityPolicy NONE = new DurabilityPolicy(Long.MAX_VALUE, false);
+	private static final DurabilityPolicy AT_END = new DurabilityPolicy(Long.MAX_VALUE, true);
+
+	private long syncInterval;
+	private boolean syncAtEnd;
+
+	private DurabilityPolicy(long syncInterval, boolean syncAtEnd) {
+		this.syncInterval = syncInterval;
+		this.syncAtEnd = syncAtEnd;
+	}
+
+	/**
+	 * Never forces the file to disk, leaving it to the operating system.
+	 */
+	public static DurabilityPolicy none() {
+		return NONE;
+	}
+
+	/**
+	 * Forces the file to disk once, after the last chunk has been written.
+	 */
+	public static DurabilityPolicy atEnd() {
+		return AT_END;
+	}
+
+	/**
+	 * Forces the file to disk every time the number of megabytes specified
+	 * has been written since the last time, and once more at the end.
+	 * @param megabytes How much may be written between syncs, at least 1.
+	 */
+	public static DurabilityPolicy everyMegabytes(int megabytes) {
+
+		if(megabytes < 1) {
+			throw new IllegalArgumentException("Sync interval must be at least 1MB");
+		}
+
+		return new DurabilityPolicy(megabytes * MEGABYTE, true);
+	}
+
+	/**
+	 * Returns how many bytes may be written between syncs,
+	 * or Long.MAX_VALUE if the file is never synced mid-transfer.
+	 */
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Returns true if the file should be synced once it is complete.
+	 */
+	public boolean isSyncAtEnd() {
+		return syncAtEnd;
+	}
+
+	@Override
+	public String toString() {
+
+		if(syncInterval != Long.MAX_VALUE) {
+			return "sync every " + (syncInterval / MEGABYTE) + "MB";
+		}
+
+		return syncAtEnd ? "sync at end" : "no sync";
+	}
+}
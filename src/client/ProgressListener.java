@@ -0,0 +1,19 @@
+package client;
+
+/**
+ * Told how far a transfer has got. Reports are throttled by the
+ * ClientController, so a listener can afford to do some work in each.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public interface ProgressListener {
+
+	/**
+	 * Called on the thread doing the transfer.
+	 * @param bytesReceived The bytes of the transfer received so far.
+	 * @param bytesExpected The bytes the transfer is expected to take, 0 if there are none.
+	 */
+	void onProgress(long bytesReceived, long bytesExpected);
+}
@@ -0,0 +1,249 @@
+package client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Remembers which chunks of a partly received file are already on disk, so
+ * an interrupted transfer can pick up where it stopped instead of starting
+ * from byte 0.
+ *
+ * The client only ever holds chunks in a window past the oldest missing one,
+ * so that chunk's number and one bit for each chunk in the window describe
+ * everything received. The journal also records the size, modification time
+ * and packet size the server gave, so a file that changed on the server is
+ * never resumed.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class ResumeJournal {
+
+	//Marks a journal file, and its layout version
+	private static final int MAGIC = 0x52534d31;
+
+	private long fileSize;
+	private long modified;
+	private int packetSize;
+
+	//Oldest chunk not on disk, and which chunks past it are, indexed from it
+	private long firstMissing;
+	private boolean[] received = new boolean[0];
+
+	/**
+	 * @param fileSize The size of the file in bytes, as the server reported it.
+	 * @param modified The server's modification time for the file.
+	 * @param packetSize The size of the data packets the chunks were sent in.
+	 */
+	public ResumeJournal(long fileSize, long modified, int packetSize) {
+		this.fileSize = fileSize;
+		this.modified = modified;
+		this.packetSize = packetSize;
+	}
+
+	/**
+	 * Returns the journal kept for the file specified.
+	 * @param file The file being received.
+	 */
+	public static File journalFileFor(File file) {
+		return new File(file.getPath() + ".resume");
+	}
+
+	/**
+	 * Reads a journal back, or returns null if there is none or it can't be read.
+	 * @param journal The journal file.
+	 */
+	public static ResumeJournal load(File journal) {
+
+		if(!journal.isFile())	{
+			return null;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(journal));
+
+			try {
+
+				if(in.readInt() != MAGIC)	{
+					return null;
+				}
+
+				ResumeJournal loaded = new ResumeJournal(in.readLong(), in.readLong(), in.readInt());
+				loaded.firstMissing = in.readLong();
+
+				int length = in.readInt();
+
+				if(length < 0 || loaded.firstMissing < 0)	{
+					return null;
+				}
+
+				loaded.received = new boolean[length];
+
+				for(int i = 0; i < length; i++)	{
+					loaded.received[i] = in.readBoolean();
+				}
+
+				return loaded;
+
+			} finally {
+				in.close();
+			}
+
+		} catch (EOFException e) {
+			return null; //Cut short, start over
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the journal out. The new copy replaces the old one in a single
+	 * rename once it is safely on disk, so a crash leaves one or the other.
+	 * The chunks it lists must already have been forced to disk.
+	 * @param journal The journal file.
+	 * @throws IOException when the journal cannot be written.
+	 */
+	public void save(File journal) throws IOException {
+
+		File temp = new File(journal.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+
+		try {
+			DataOutputStream out = new DataOutputStream(file);
+			out.writeInt(MAGIC);
+			out.writeLong(fileSize);
+			out.writeLong(modified);
+			out.writeInt(packetSize);
+			out.writeLong(firstMissing);
+			out.writeInt(received.length);
+
+			for(boolean chunk : received)	{
+				out.writeBoolean(chunk);
+			}
+
+			out.flush();
+			file.getFD().sync();
+
+		} finally {
+			file.close();
+		}
+
+		Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Records the client's window.
+	 * @param base The oldest chunk that has not been received.
+	 * @param window Chunks received past base, indexed by chunk number % window.length.
+	 */
+	public void record(long base, boolean[] window) {
+
+		firstMissing = base;
+
+		if(received.length != window.length)	{
+			received = new boolean[window.length];
+		}
+
+		for(int i = 0; i < window.length; i++)	{
+			received[i] = window[(int) ((base + i) % window.length)];
+		}
+	}
+
+	/**
+	 * Fills the client's window with the chunks received past the first
+	 * missing one. Chunks that don't fit the window are forgotten and will
+	 * be received again.
+	 * @param window Chunks received past the first missing one, indexed by
+	 * chunk number % window.length.
+	 */
+	public void restore(boolean[] window) {
+
+		for(int i = 0; i < window.length; i++)	{
+			window[(int) ((firstMissing + i) % window.length)] = (i < received.length) && received[i];
+		}
+
+		forgetPast(window.length);
+	}
+
+	/**
+	 * Forgets the chunks that are more than count past the first missing one.
+	 * @param count How many chunks past the first missing one to keep.
+	 */
+	public void forgetPast(int count)	{
+
+		for(int i = count; i < received.length; i++)	{
+			received[i] = false;
+		}
+	}
+
+	/**
+	 * Appends the resume set to a file request: the identity of the file, the
+	 * first missing chunk and a bitmap of the chunks after it, cut short to the
+	 * space left in the request. Chunks left out of the bitmap are forgotten,
+	 * so the client expects exactly the chunks the server will send.
+	 * @param request The request, positioned after the file name.
+	 */
+	public void writeResumeSet(ByteBuffer request) {
+
+		request.putLong(fileSize);
+		request.putLong(modified);
+		request.putInt(packetSize);
+		request.putLong(firstMissing);
+
+		int bits = Math.min(received.length, request.remaining() * 8);
+		forgetPast(bits);
+
+		byte[] bitmap = new byte[(bits + 7) / 8];
+
+		for(int i = 0; i < bits; i++)	{
+
+			if(received[i])	{
+				bitmap[i / 8] |= (1 << (i % 8));
+			}
+		}
+
+		request.put(bitmap);
+	}
+
+	/**
+	 * Returns how many chunks are known to be on disk.
+	 */
+	public long getChunksReceived() {
+
+		long count = firstMissing;
+
+		for(boolean chunk : received)	{
+
+			if(chunk)	{
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	public long getFirstMissing() {
+		return firstMissing;
+	}
+}
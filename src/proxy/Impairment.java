@@ -0,0 +1,189 @@
+package proxy;
+
+/**
+ * What the proxy does to the packets going one way. Losses are decided
+ * first, then the packet waits its turn on a link of the given rate, then
+ * it is delayed. Everything is off until set.
+ *
+ * Bursty loss follows a Gilbert model: the link moves into a burst with
+ * the given probability before each packet and loses every packet until
+ * the burst ends, which on average takes the given number of packets.
+ * Random loss applies between bursts.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class Impairment {
+
+	private double loss = 0;
+	private double burstProbability = 0;
+	private double burstLength = 1;
+	private int delay = 0;
+	private int jitter = 0;
+	private double reorder = 0;
+	private int reorderDelay = 10;
+	private double duplicate = 0;
+	private double corrupt = 0;
+	private long rate = 0;
+	private int queueLimit = 256 * 1024;
+
+	/**
+	 * Loses each packet with the given probability.
+	 * @param loss Between 0 and 1.
+	 */
+	public void setLoss(double loss) {
+		this.loss = probability("Loss", loss);
+	}
+
+	/**
+	 * Loses packets in bursts.
+	 * @param probability The chance of a burst starting before each packet, between 0 and 1.
+	 * @param meanLength The average number of packets a burst loses, at least 1.
+	 */
+	public void setBurstLoss(double probability, double meanLength) {
+
+		if(meanLength < 1)	{
+			throw new IllegalArgumentException("Bursts must be at least a packet long: " + meanLength);
+		}
+
+		this.burstProbability = probability("Burst probability", probability);
+		this.burstLength = meanLength;
+	}
+
+	/**
+	 * Delays every packet by a fixed amount, as a long path would.
+	 * @param millis The one way delay in milliseconds.
+	 */
+	public void setDelay(int millis) {
+		this.delay = nonNegative("Delay", millis);
+	}
+
+	/**
+	 * Adds or takes away up to the given amount from each packet's delay, at
+	 * random. Packets can overtake one another when the jitter is larger than
+	 * the gap between them, as they do on a real path.
+	 * @param millis The most the delay varies by in milliseconds.
+	 */
+	public void setJitter(int millis) {
+		this.jitter = nonNegative("Jitter", millis);
+	}
+
+	/**
+	 * Holds packets back so later ones overtake them.
+	 * @param probability The chance of a packet being held back, between 0 and 1.
+	 * @param millis How long it is held back for in milliseconds.
+	 */
+	public void setReorder(double probability, int millis) {
+		this.reorder = probability("Reorder", probability);
+		this.reorderDelay = nonNegative("Reorder delay", millis);
+	}
+
+	/**
+	 * Delivers packets twice.
+	 * @param probability The chance of a packet arriving twice, between 0 and 1.
+	 */
+	public void setDuplicate(double probability) {
+		this.duplicate = probability("Duplicate", probability);
+	}
+
+	/**
+	 * Flips a bit in packets, at random, as a faulty link or NIC would when
+	 * the UDP checksum is off or misses it.
+	 * @param probability The chance of a packet being damaged, between 0 and 1.
+	 */
+	public void setCorrupt(double probability) {
+		this.corrupt = probability("Corrupt", probability);
+	}
+
+	/**
+	 * Limits the rate packets leave at. Packets queue for the link, and are
+	 * lost once more than the queue limit is waiting.
+	 * @param bytesPerSecond The rate, 0 for no limit.
+	 */
+	public void setRate(long bytesPerSecond) {
+
+		if(bytesPerSecond < 0)	{
+			throw new IllegalArgumentException("Rate can't be negative: " + bytesPerSecond);
+		}
+
+		this.rate = bytesPerSecond;
+	}
+
+	/**
+	 * Sets how many bytes can wait for a rate limited link before packets are lost.
+	 * @param bytes The size of the queue.
+	 */
+	public void setQueueLimit(int bytes) {
+		this.queueLimit = nonNegative("Queue limit", bytes);
+	}
+
+	public double getLoss() {
+		return loss;
+	}
+
+	public double getBurstProbability() {
+		return burstProbability;
+	}
+
+	public double getBurstLength() {
+		return burstLength;
+	}
+
+	public int getDelay() {
+		return delay;
+	}
+
+	public int getJitter() {
+		return jitter;
+	}
+
+	public double getReorder() {
+		return reorder;
+	}
+
+	public int getReorderDelay() {
+		return reorderDelay;
+	}
+
+	public double getDuplicate() {
+		return duplicate;
+	}
+
+	public double getCorrupt() {
+		return corrupt;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public int getQueueLimit() {
+		return queueLimit;
+	}
+
+	@Override
+	public String toString() {
+		return "loss=" + loss + " burst=" + burstProbability + "x" + burstLength + " delay=" + delay + "ms jitter=" + jitter
+				+ "ms reorder=" + reorder + "@" + reorderDelay + "ms duplicate=" + duplicate + " corrupt=" + corrupt + " rate=" + rate
+				+ "B/s queue=" + queueLimit + "B";
+	}
+
+	private static double probability(String name, double value) {
+
+		if(!(value >= 0 && value <= 1))	{
+			throw new IllegalArgumentException(name + " must be between 0 and 1: " + value);
+		}
+
+		return value;
+	}
+
+	private static int nonNegative(String name, int value) {
+
+		if(value < 0)	{
+			throw new IllegalArgumentException(name + " can't be negative: " + value);
+		}
+
+		return value;
+	}
+}
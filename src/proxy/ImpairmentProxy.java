@@ -0,0 +1,515 @@
+package proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import utils.Log;
+
+/**
+ * Relays UDP between clients and a server, doing to the packets what a
+ * poor network would. Clients send to the proxy rather than the server;
+ * each client gets a socket of its own towards the server, so the server
+ * still sees one address per client. Packets from clients to the server
+ * are impaired by the upstream settings and packets back by the downstream
+ * ones.
+ *
+ * One thread does everything: packets are impaired as they arrive and
+ * wait in a queue ordered by when they are due out.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class ImpairmentProxy {
+
+	//Packets are sent at most this late
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+	//Clients that send and receive nothing for this long are forgotten
+	private static final long IDLE = TimeUnit.SECONDS.toNanos(60);
+
+	//Socket buffers large enough that the proxy itself loses nothing
+	private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private static final int MAX_DATAGRAM = 65536;
+
+	private DatagramChannel front;
+	private InetSocketAddress server;
+	private Link upstream;
+	private Link downstream;
+	private Log log;
+	private Selector selector;
+	private Thread proxyThread;
+	private volatile boolean running = true;
+
+	//Only touched by the proxy's thread
+	private Map<SocketAddress, Flow> flows = new HashMap<SocketAddress, Flow>();
+	private PriorityQueue<Delivery> pending = new PriorityQueue<Delivery>();
+	private long sequence = 0;
+
+	/**
+	 * One client and its socket towards the server.
+	 */
+	private static class Flow {
+		SocketAddress client;
+		DatagramChannel channel;
+		long lastActive;
+
+		Flow(SocketAddress client, DatagramChannel channel) {
+			this.client = client;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * A packet waiting to go out.
+	 */
+	private static class Delivery implements Comparable<Delivery> {
+		byte[] data;
+		Flow flow;
+		Link link;
+		long due;
+		long sequence;
+
+		Delivery(byte[] data, Flow flow, Link link, long due, long sequence) {
+			this.data = data;
+			this.flow = flow;
+			this.link = link;
+			this.due = due;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Delivery other) {
+
+			//Packets due at the same moment leave in the order they arrived
+			if(due != other.due)	{
+				return (due < other.due) ? -1 : 1;
+			}
+
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/**
+	 * One direction of the proxy: its settings, the state of its bursts and
+	 * its link, and what it has done so far. Counters are only written by the
+	 * proxy's thread.
+	 */
+	private static class Link {
+		String name;
+		Impairment impairment;
+		Random random = new Random();
+		boolean inBurst = false;
+		long linkFree = 0;
+
+		volatile long packets;
+		volatile long lost;
+		volatile long queueDropped;
+		volatile long reordered;
+		volatile long duplicated;
+		volatile long corrupted;
+		volatile long delivered;
+
+		Link(String name, Impairment impairment) {
+			this.name = name;
+			this.impairment = impairment;
+		}
+
+		@Override
+		public String toString() {
+			return name + " packets=" + packets + " lost=" + lost + " queueDropped=" + queueDropped + " reordered=" + reordered
+					+ " duplicated=" + duplicated + " corrupted=" + corrupted + " delivered=" + delivered;
+		}
+	}
+
+	/**
+	 * Opens the proxy's socket.
+	 * @param port The port clients should send to, 0 for any free port.
+	 * @param server The address and port of the server.
+	 * @param upstream What to do to packets going to the server.
+	 * @param downstream What to do to packets coming back from it.
+	 * @param log Where diagnostic information should be logged. Left open when the proxy is stopped.
+	 * @throws IOException when the socket could not be opened.
+	 */
+	public ImpairmentProxy(int port, InetSocketAddress server, Impairment upstream, Impairment downstream, Log log) throws IOException	{
+
+		if(server.isUnresolved())	{
+			throw new IOException("Unknown host: " + server.getHostString());
+		}
+
+		this.server = server;
+		this.upstream = new Link("up", upstream);
+		this.downstream = new Link("down", downstream);
+		this.log = log;
+
+		front = DatagramChannel.open();
+		front.socket().bind(new InetSocketAddress(port));
+		front.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_SIZE);
+		front.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_SIZE);
+		log.info("Proxying port " + getPort() + " to " + server);
+		log.info("Upstream: " + upstream);
+		log.info("Downstream: " + downstream);
+	}
+
+	/**
+	 * Makes the impairments repeat from one run to the next. Call before the proxy starts.
+	 * @param seed The seed for both directions' random numbers.
+	 */
+	public void setSeed(long seed) {
+		upstream.random.setSeed(seed);
+		downstream.random.setSeed(~seed);
+	}
+
+	/**
+	 * Relays packets on the calling thread until the proxy is stopped.
+	 * @throws IOException when the proxy's socket fails.
+	 */
+	public void run() throws IOException	{
+
+		selector = Selector.open();
+
+		ByteBuffer packet = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+		long nextSweep = System.nanoTime() + IDLE;
+
+		try {
+			front.configureBlocking(false);
+			front.register(selector, SelectionKey.OP_READ);
+
+			while(running)	{
+
+				Delivery next = pending.peek();
+
+				if(next == null)	{
+					selector.select(TimeUnit.NANOSECONDS.toMillis(IDLE));
+				} else {
+					long delay = next.due - System.nanoTime();
+
+					if(delay < TICK)	{
+						selector.selectNow();
+					} else {
+						selector.select(TimeUnit.NANOSECONDS.toMillis(delay));
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while(keys.hasNext())	{
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if(key.isValid() && key.isReadable())	{
+						if(key.attachment() == null)	{
+							receiveFromClients(packet);
+						} else {
+							receiveFromServer((Flow) key.attachment(), packet);
+						}
+					}
+				}
+
+				long now = System.nanoTime();
+				sendDue(now);
+
+				if(now - nextSweep >= 0)	{
+					forgetIdle(now);
+					nextSweep = now + IDLE;
+				}
+			}
+
+		} catch (ClosedChannelException e) {
+			//Closing the socket is how the proxy is told to stop
+		} catch (ClosedSelectorException e) {
+			//Stopped while selecting
+		} finally {
+			for(Flow flow : flows.values())	{
+				flow.channel.close();
+			}
+
+			flows.clear();
+			pending.clear();
+			selector.close();
+		}
+	}
+
+	/**
+	 * Relays packets on a thread of the proxy's own and returns at once.
+	 * A failure that stops the proxy is logged.
+	 */
+	public void start()	{
+
+		proxyThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ImpairmentProxy.this.run();
+				} catch (IOException e) {
+					log.error("Proxy stopped: " + e.getMessage(), e);
+				}
+			}
+		}, "Proxy");
+
+		proxyThread.setDaemon(true);
+		proxyThread.start();
+	}
+
+	/**
+	 * Stops relaying, drops whatever is still waiting to go out and logs
+	 * what the proxy did.
+	 */
+	public void stop()	{
+
+		running = false;
+
+		try {
+			front.close();
+		} catch (IOException e) {
+			log.error("Unable to close proxy socket", e);
+		}
+
+		if(selector != null)	{
+			selector.wakeup();
+		}
+
+		if(proxyThread != null && proxyThread != Thread.currentThread())	{
+			try {
+				proxyThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		log.info("Proxy stopped: " + getSummary());
+	}
+
+	/**
+	 * Returns the port clients should send to.
+	 */
+	public int getPort()	{
+		return front.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns what each direction has done so far.
+	 */
+	public String getSummary()	{
+		return upstream + " | " + downstream;
+	}
+
+	/**
+	 * Takes every packet waiting on the proxy's own socket.
+	 * @param packet Where each packet is received into.
+	 * @throws IOException when the socket fails.
+	 */
+	private void receiveFromClients(ByteBuffer packet) throws IOException	{
+
+		while(true)	{
+			packet.clear();
+			SocketAddress client = front.receive(packet);
+
+			if(client == null)	{
+				return;
+			}
+
+			Flow flow = flows.get(client);
+
+			if(flow == null)	{
+				flow = openFlow(client);
+			}
+
+			packet.flip();
+			impair(upstream, flow, packet, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Takes every packet the server has sent to one client.
+	 * @param flow The client.
+	 * @param packet Where each packet is received into.
+	 */
+	private void receiveFromServer(Flow flow, ByteBuffer packet)	{
+
+		try {
+			while(true)	{
+				packet.clear();
+
+				if(flow.channel.receive(packet) == null)	{
+					return;
+				}
+
+				packet.flip();
+				impair(downstream, flow, packet, System.nanoTime());
+			}
+		} catch (IOException e) {
+			//Usually nothing listening on the server's port, which the client will notice
+			log.debug("Unable to receive from server for " + flow.client + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Opens the socket that carries a new client's packets to the server.
+	 * @param client The client's address and port.
+	 * @throws IOException when the socket could not be opened.
+	 */
+	private Flow openFlow(SocketAddress client) throws IOException	{
+
+		DatagramChannel channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_SIZE);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_SIZE);
+		channel.connect(server);
+		channel.configureBlocking(false);
+
+		Flow flow = new Flow(client, channel);
+		channel.register(selector, SelectionKey.OP_READ, flow);
+		flows.put(client, flow);
+
+		log.debug("New client " + client + " on port " + channel.socket().getLocalPort());
+
+		return flow;
+	}
+
+	/**
+	 * Decides what happens to a packet going one way: whether it is lost,
+	 * when it is due out, whether it is damaged and whether it goes out twice.
+	 * @param link The direction it is going.
+	 * @param flow The client it belongs to.
+	 * @param packet The packet, between its position and limit.
+	 * @param now The current time in nanoseconds.
+	 */
+	private void impair(Link link, Flow flow, ByteBuffer packet, long now)	{
+
+		Impairment impairment = link.impairment;
+		Random random = link.random;
+		int size = packet.remaining();
+
+		flow.lastActive = now;
+		link.packets++;
+
+		//A burst ends on average after the mean length, and only starts between bursts
+		if(link.inBurst)	{
+			link.inBurst = random.nextDouble() >= 1.0 / impairment.getBurstLength();
+		} else if(impairment.getBurstProbability() > 0)	{
+			link.inBurst = random.nextDouble() < impairment.getBurstProbability();
+		}
+
+		if(link.inBurst || (impairment.getLoss() > 0 && random.nextDouble() < impairment.getLoss()))	{
+			link.lost++;
+			return;
+		}
+
+		//The packet leaves once everything queued ahead of it has, unless the queue is full
+		long departs = now;
+
+		if(impairment.getRate() > 0)	{
+			long start = Math.max(now, link.linkFree);
+			long queued = (long) ((start - now) * (impairment.getRate() / 1e9));
+
+			if(queued + size > impairment.getQueueLimit() && start > now)	{
+				link.queueDropped++;
+				return;
+			}
+
+			link.linkFree = start + (long) (size * 1e9 / impairment.getRate());
+			departs = link.linkFree;
+		}
+
+		long due = departs + TimeUnit.MILLISECONDS.toNanos(impairment.getDelay());
+
+		if(impairment.getJitter() > 0)	{
+			due += (long) ((random.nextDouble() * 2 - 1) * TimeUnit.MILLISECONDS.toNanos(impairment.getJitter()));
+			due = Math.max(due, departs);
+		}
+
+		if(impairment.getReorder() > 0 && random.nextDouble() < impairment.getReorder())	{
+			due += TimeUnit.MILLISECONDS.toNanos(impairment.getReorderDelay());
+			link.reordered++;
+		}
+
+		byte[] data = new byte[size];
+		packet.get(data);
+
+		if(size > 0 && impairment.getCorrupt() > 0 && random.nextDouble() < impairment.getCorrupt())	{
+			data[random.nextInt(size)] ^= (byte) (1 << random.nextInt(8));
+			link.corrupted++;
+		}
+
+		pending.add(new Delivery(data, flow, link, due, sequence++));
+
+		if(impairment.getDuplicate() > 0 && random.nextDouble() < impairment.getDuplicate())	{
+			pending.add(new Delivery(data, flow, link, due, sequence++));
+			link.duplicated++;
+		}
+	}
+
+	/**
+	 * Sends every packet that is due. A packet the socket has no room for
+	 * counts as lost.
+	 * @param now The current time in nanoseconds.
+	 * @throws IOException when the proxy's own socket fails.
+	 */
+	private void sendDue(long now) throws IOException	{
+
+		while(!pending.isEmpty() && pending.peek().due - now <= 0)	{
+			Delivery delivery = pending.poll();
+			ByteBuffer data = ByteBuffer.wrap(delivery.data);
+			int sent;
+
+			if(delivery.link == downstream)	{
+				sent = front.send(data, delivery.flow.client);
+			} else if(delivery.flow.channel.isOpen())	{
+				try {
+					sent = delivery.flow.channel.write(data);
+				} catch (IOException e) {
+					log.debug("Unable to send to server for " + delivery.flow.client + ": " + e.getMessage());
+					sent = 0;
+				}
+			} else {
+				sent = 0;
+			}
+
+			if(sent > 0)	{
+				delivery.link.delivered++;
+			} else {
+				delivery.link.lost++;
+			}
+		}
+	}
+
+	/**
+	 * Closes the sockets of clients that have gone quiet.
+	 * @param now The current time in nanoseconds.
+	 */
+	private void forgetIdle(long now)	{
+
+		Iterator<Flow> iterator = flows.values().iterator();
+
+		while(iterator.hasNext())	{
+			Flow flow = iterator.next();
+
+			if(now - flow.lastActive > IDLE)	{
+				iterator.remove();
+
+				try {
+					flow.channel.close();
+				} catch (IOException e) {
+					log.debug("Unable to close socket for " + flow.client);
+				}
+
+				log.debug("Forgot idle client " + flow.client);
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package proxy;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+
+import utils.Log;
+import utils.WriterSink;
+
+/**
+ * Runs the impairment proxy from the command line until the process is
+ * stopped, then logs what it did. Options apply to both directions unless
+ * written as --up-OPTION or --down-OPTION. Run with no arguments for the
+ * options.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class ProxyCli {
+
+	private static final String USAGE =
+			"Usage: ProxyCli [options] port server-host server-port\n"
+			+ "  --loss P                        lose each packet with probability P\n"
+			+ "  --burst P:LENGTH                start a burst of loss with probability P, LENGTH packets long on average\n"
+			+ "  --delay MS                      one way delay\n"
+			+ "  --jitter MS                     vary the delay by up to this much either way\n"
+			+ "  --reorder P:MS                  hold packets back by MS with probability P\n"
+			+ "  --duplicate P                   deliver packets twice with probability P\n"
+			+ "  --corrupt P                     flip a bit in packets with probability P\n"
+			+ "  --rate KBPS                     limit the link to this many kilobytes a second\n"
+			+ "  --queue KB                      how much can wait for a rate limited link\n"
+			+ "  --up-OPTION, --down-OPTION      apply an option to packets to or from the server only\n"
+			+ "  --seed N                        make the impairments repeatable\n"
+			+ "  --log FILE                      log to a file rather than standard error\n"
+			+ "  --debug                         log every client seen\n";
+
+	/**
+	 * Starts the proxy.
+	 * @param args The options, proxy port and server, see USAGE.
+	 */
+	public static void main(String[] args) {
+
+		String[] positional = new String[3];
+		int numberOfPositional = 0;
+		String logFile = null;
+		boolean debug = false;
+		Long seed = null;
+		Impairment upstream = new Impairment();
+		Impairment downstream = new Impairment();
+
+		try {
+			for(int i = 0; i < args.length; i++)	{
+
+				if(args[i].equals("--log"))	{
+					logFile = value(args, ++i);
+				} else if(args[i].equals("--debug"))	{
+					debug = true;
+				} else if(args[i].equals("--seed"))	{
+					seed = Long.parseLong(value(args, ++i));
+				} else if(args[i].startsWith("--up-"))	{
+					apply(upstream, "--" + args[i].substring(5), value(args, ++i));
+				} else if(args[i].startsWith("--down-"))	{
+					apply(downstream, "--" + args[i].substring(7), value(args, ++i));
+				} else if(args[i].startsWith("--"))	{
+					String option = args[i];
+					String value = value(args, ++i);
+					apply(upstream, option, value);
+					apply(downstream, option, value);
+				} else if(numberOfPositional < positional.length)	{
+					positional[numberOfPositional++] = args[i];
+				} else {
+					throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+				}
+			}
+
+			if(numberOfPositional < positional.length)	{
+				throw new IllegalArgumentException("A port, server host and server port are needed");
+			}
+
+			Integer.parseInt(positional[0]);
+			Integer.parseInt(positional[2]);
+
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		final Log log;
+
+		try {
+			log = new Log(new WriterSink((logFile != null) ? new FileWriter(logFile, true) : new OutputStreamWriter(System.err), logFile != null),
+					debug ? Log.Level.DEBUG : Log.Level.INFO);
+		} catch (IOException e) {
+			System.err.println("Unable to open log file: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		final ImpairmentProxy proxy;
+
+		try {
+			proxy = new ImpairmentProxy(Integer.parseInt(positional[0]),
+					new InetSocketAddress(positional[1], Integer.parseInt(positional[2])), upstream, downstream, log);
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			log.close();
+			System.exit(1);
+			return;
+		}
+
+		if(seed != null)	{
+			proxy.setSeed(seed);
+		}
+
+		//Stop the proxy so what it did gets logged
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				proxy.stop();
+				log.close();
+			}
+		}, "Shutdown-thread"));
+
+		try {
+			proxy.run();
+		} catch (IOException e) {
+			log.error("Proxy stopped: " + e.getMessage(), e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Applies one option to one direction.
+	 * @param impairment The direction's settings.
+	 * @param option The option naming the setting.
+	 * @param value The value given for it.
+	 * @throws IllegalArgumentException when the option or value is not valid.
+	 */
+	private static void apply(Impairment impairment, String option, String value) {
+
+		if(option.equals("--loss"))	{
+			impairment.setLoss(Double.parseDouble(value));
+		} else if(option.equals("--burst"))	{
+			String[] parts = pair(option, value);
+			impairment.setBurstLoss(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
+		} else if(option.equals("--delay"))	{
+			impairment.setDelay(Integer.parseInt(value));
+		} else if(option.equals("--jitter"))	{
+			impairment.setJitter(Integer.parseInt(value));
+		} else if(option.equals("--reorder"))	{
+			String[] parts = pair(option, value);
+			impairment.setReorder(Double.parseDouble(parts[0]), Integer.parseInt(parts[1]));
+		} else if(option.equals("--duplicate"))	{
+			impairment.setDuplicate(Double.parseDouble(value));
+		} else if(option.equals("--corrupt"))	{
+			impairment.setCorrupt(Double.parseDouble(value));
+		} else if(option.equals("--rate"))	{
+			impairment.setRate(Long.parseLong(value) * 1024);
+		} else if(option.equals("--queue"))	{
+			impairment.setQueueLimit(Integer.parseInt(value) * 1024);
+		} else {
+			throw new IllegalArgumentException("Unknown option: " + option);
+		}
+	}
+
+	/**
+	 * Splits a value of the form A:B.
+	 * @param option The option the value was given for.
+	 * @param value The value.
+	 * @throws IllegalArgumentException when the value is not a pair.
+	 */
+	private static String[] pair(String option, String value) {
+
+		String[] parts = value.split(":");
+
+		if(parts.length != 2)	{
+			throw new IllegalArgumentException(option + " needs two values separated by a colon");
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Returns the value following an option.
+	 * @param args The arguments.
+	 * @param i Where the value should be.
+	 * @throws IllegalArgumentException when there is no value.
+	 */
+	private static String value(String[] args, int i) {
+
+		if(i >= args.length)	{
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		}
+
+		return args[i];
+	}
+}
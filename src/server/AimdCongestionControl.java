@@ -0,0 +1,49 @@
+package server;
+
+/**
+ * Loss based congestion control in the style of TCP Reno. The window
+ * doubles every round trip until the first loss (slow start), then grows
+ * by one packet per round trip and is halved on every loss.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class AimdCongestionControl implements CongestionControl {
+
+	private static final double INITIAL_WINDOW = 10;
+	private static final double MIN_WINDOW = 2;
+
+	private double window = INITIAL_WINDOW;
+	private double threshold = Double.MAX_VALUE;
+
+	@Override
+	public int getWindow() {
+		return (int) window;
+	}
+
+	@Override
+	public boolean isSlowStart() {
+		return window < threshold;
+	}
+
+	@Override
+	public void onAck(long rtt, boolean limited, long now) {
+
+		if(!limited) {
+			return;
+		}
+
+		if(isSlowStart()) {
+			window += 1;
+		} else {
+			window += 1 / window;
+		}
+	}
+
+	@Override
+	public void onLoss(long now) {
+		threshold = Math.max(MIN_WINDOW, window / 2);
+		window = threshold;
+	}
+}
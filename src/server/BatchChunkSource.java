@@ -0,0 +1,275 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.Protocol;
+import utils.Utils;
+
+/**
+ * Serves a batch of files as one stream, so they all go out over a single
+ * session with nothing between them but their bytes. The stream starts
+ * with a manifest naming every file with its size and modification time,
+ * followed by the contents of each file in manifest order. See Protocol.
+ *
+ * Files are only opened once the session gets to them. Up to a window's
+ * worth of those read most recently are kept open, so retransmissions and
+ * parity that reach back across a file boundary don't open and map the
+ * same files over and over.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class BatchChunkSource implements ChunkSource {
+
+	//Files kept open at once, so each packet of a window can reach back into a different one
+	private static final int OPEN_FILES = Utils.DEFAULT_WINDOW_SIZE;
+
+	private OpenFiles openFiles;
+	private ByteBuffer manifest;
+
+	private File[] files;
+	private long[] lengths;
+
+	//Where each file starts in the stream
+	private long[] starts;
+	private long size;
+
+	//Files read from recently, keyed by their number in the manifest, least recently read first
+	private Map<Integer, ChunkSource> open = new LinkedHashMap<Integer, ChunkSource>(OPEN_FILES * 2, 0.75f, true);
+
+	/**
+	 * Lists the files named and builds the manifest.
+	 * @param openFiles Where the files are opened.
+	 * @param directory The directory the names are looked up in, or null for the working directory.
+	 * @param names The files and directories asked for, one per line.
+	 * @param recursive True to include the files in subdirectories of the directories named.
+	 * @throws IOException when a name can't be found, leads outside the directory or the manifest is too large.
+	 */
+	public BatchChunkSource(OpenFiles openFiles, File directory, String names, boolean recursive) throws IOException {
+		this.openFiles = openFiles;
+
+		List<File> found = new ArrayList<File>();
+		List<String> paths = new ArrayList<String>();
+		Path root = Utils.resolveWithin(directory, ".").toPath();
+
+		for(String name : names.split("\n"))	{
+			name = name.trim();
+
+			if(name.isEmpty())	{
+				continue;
+			}
+
+			File file = Utils.resolveWithin(directory, name);
+
+			if(file.isDirectory())	{
+				list(file, name, recursive, root, found, paths);
+			} else if(file.isFile())	{
+				found.add(file);
+				paths.add(name);
+			} else {
+				throw new IOException("File not found: " + name);
+			}
+		}
+
+		files = found.toArray(new File[found.size()]);
+		lengths = new long[files.length];
+		starts = new long[files.length];
+
+		long manifestSize = Protocol.MANIFEST_HEADER_SIZE;
+		byte[][] encoded = new byte[files.length][];
+
+		for(int i = 0; i < files.length; i++)	{
+			encoded[i] = paths.get(i).getBytes(StandardCharsets.UTF_8);
+			manifestSize += Protocol.MANIFEST_ENTRY_SIZE + encoded[i].length;
+		}
+
+		if(manifestSize > Integer.MAX_VALUE)	{
+			throw new IOException("Too many files in one batch");
+		}
+
+		manifest = ByteBuffer.allocate((int) manifestSize);
+		manifest.putInt(files.length);
+		size = manifestSize;
+
+		for(int i = 0; i < files.length; i++)	{
+			lengths[i] = files[i].length();
+			starts[i] = size;
+			size += lengths[i];
+
+			manifest.putShort((short) encoded[i].length);
+			manifest.put(encoded[i]);
+			manifest.putLong(lengths[i]);
+			manifest.putLong(files[i].lastModified());
+		}
+
+		manifest.flip();
+	}
+
+	/**
+	 * Adds the files in a directory, in name order so a batch is always sent the same way.
+	 * @param directory The directory.
+	 * @param path The path of the directory as the client will see it.
+	 * @param recursive True to add the files in its subdirectories too.
+	 * @param root The directory files are served from. Links leading out of it are skipped.
+	 * @param found Where the files go.
+	 * @param paths Where their paths as the client will see them go.
+	 * @throws IOException when a link can't be followed.
+	 */
+	private static void list(File directory, String path, boolean recursive, Path root, List<File> found, List<String> paths) throws IOException {
+
+		File[] children = directory.listFiles();
+
+		if(children == null)	{
+			return; //Can't be read
+		}
+
+		Arrays.sort(children);
+
+		for(File child : children)	{
+			String childPath = path + "/" + child.getName();
+
+			if(Files.isSymbolicLink(child.toPath()) && !child.getCanonicalFile().toPath().startsWith(root))	{
+				continue;
+			}
+
+			if(child.isFile())	{
+				found.add(child);
+				paths.add(childPath);
+			} else if(recursive && child.isDirectory())	{
+				list(child, childPath, true, root, found, paths);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes in the manifest at the front of the stream.
+	 */
+	public int getManifestSize() {
+		return manifest.limit();
+	}
+
+	/**
+	 * Returns the number of files in the batch.
+	 */
+	public int getNumberOfFiles() {
+		return files.length;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized int read(long position, ByteBuffer dst) throws IOException {
+
+		int total = 0;
+		int limit = dst.limit();
+
+		try {
+			//Manifest first
+			if(position < manifest.limit() && dst.hasRemaining())	{
+				ByteBuffer from = manifest.duplicate();
+				from.position((int) position);
+				from.limit((int) Math.min(manifest.limit(), position + dst.remaining()));
+
+				total += from.remaining();
+				position += from.remaining();
+				dst.put(from);
+			}
+
+			while(dst.hasRemaining() && position < size)	{
+
+				int index = find(position);
+				long within = position - starts[index];
+				int count = (int) Math.min(dst.remaining(), lengths[index] - within);
+
+				//Stop at the end of the file, the next one is read from elsewhere
+				dst.limit(dst.position() + count);
+				getFile(index).read(within, dst);
+
+				//A file that shrank since the manifest was taken is padded out to the size it gave
+				while(dst.hasRemaining())	{
+					dst.put((byte) 0);
+				}
+
+				dst.limit(limit);
+				position += count;
+				total += count;
+			}
+
+		} finally {
+			dst.limit(limit);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Returns the file holding the position specified in the stream, past the manifest.
+	 * Empty files are never returned since they hold no position.
+	 * @param position The position in the stream.
+	 */
+	private int find(long position) {
+
+		int index = Arrays.binarySearch(starts, position);
+
+		if(index < 0)	{
+			return -index - 2;
+		}
+
+		//Several files start here if the ones before it are empty
+		while(index + 1 < starts.length && starts[index + 1] == position)	{
+			index++;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns the source of the file specified, opening it if it isn't open
+	 * already and closing the one read least recently if too many are.
+	 * @param index The number of the file in the manifest.
+	 * @throws IOException when the file can't be opened.
+	 */
+	private ChunkSource getFile(int index) throws IOException {
+
+		ChunkSource source = open.get(index);
+
+		if(source == null)	{
+
+			if(open.size() >= OPEN_FILES)	{
+				Iterator<ChunkSource> eldest = open.values().iterator();
+				openFiles.release(eldest.next());
+				eldest.remove();
+			}
+
+			source = openFiles.acquire(files[index]);
+			open.put(index, source);
+		}
+
+		return source;
+	}
+
+	@Override
+	public synchronized void close() {
+
+		for(ChunkSource source : open.values())	{
+			openFiles.release(source);
+		}
+
+		open.clear();
+	}
+}
@@ -0,0 +1,62 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Hands out buffers of one size and takes them back for reuse, so packets
+ * that have to be passed between threads don't each need a buffer of their
+ * own. Safe to use from several threads. Holds on to a bounded number of
+ * buffers; any more given back are left to the garbage collector.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class BufferPool {
+
+	private int bufferSize;
+
+	//Array backed, so giving a buffer back doesn't allocate
+	private ArrayBlockingQueue<ByteBuffer> buffers;
+
+	/**
+	 * @param bufferSize The size of every buffer in bytes.
+	 * @param capacity The most buffers to keep for reuse.
+	 */
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(capacity);
+	}
+
+	/**
+	 * Returns a cleared buffer, reused if one is waiting.
+	 */
+	public ByteBuffer take() {
+
+		ByteBuffer buffer = buffers.poll();
+
+		if(buffer == null)	{
+			return ByteBuffer.allocate(bufferSize);
+		}
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back once nothing refers to it any more. Buffers of
+	 * another size are ignored.
+	 * @param buffer The buffer.
+	 */
+	public void give(ByteBuffer buffer) {
+
+		if(buffer.capacity() == bufferSize)	{
+			buffers.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
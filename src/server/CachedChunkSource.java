@@ -0,0 +1,47 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serves a file through the ChunkCache shared by every session, reading
+ * from the file itself only for blocks the cache doesn't hold.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class CachedChunkSource implements ChunkSource {
+
+	private ChunkSource file;
+	private ChunkCache cache;
+	private ChunkCache.FileVersion version;
+
+	/**
+	 * @param file The file, closed along with this source.
+	 * @param cache The cache to serve it through.
+	 * @param version The version of the file being served.
+	 */
+	public CachedChunkSource(ChunkSource file, ChunkCache cache, ChunkCache.FileVersion version) {
+		this.file = file;
+		this.cache = cache;
+		this.version = version;
+
+		cache.checkVersion(version);
+	}
+
+	@Override
+	public long size() {
+		return file.size();
+	}
+
+	@Override
+	public int read(long position, ByteBuffer dst) throws IOException {
+		return cache.read(version, file, position, dst);
+	}
+
+	@Override
+	public void close() {
+		file.close();
+	}
+}
@@ -0,0 +1,67 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serves a file with positional FileChannel reads. Costs a system call per
+ * chunk but no address space, so it suits files too large or too cold to map.
+ * Positional reads don't move the channel's position, so sessions can share it.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class ChannelChunkSource implements ChunkSource {
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long size;
+
+	/**
+	 * Opens the file for reading.
+	 * @param file The file to serve.
+	 * @throws IOException when the file cannot be opened.
+	 */
+	public ChannelChunkSource(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		size = channel.size();
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public int read(long position, ByteBuffer dst) throws IOException {
+
+		int total = 0;
+
+		while(dst.hasRemaining() && position < size)	{
+			int count = channel.read(dst, position);
+
+			if(count == -1)	{
+				break;
+			}
+
+			position += count;
+			total += count;
+		}
+
+		return total;
+	}
+
+	@Override
+	public void close() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+			//Only ever read from, so nothing is lost if closing fails
+		}
+	}
+}
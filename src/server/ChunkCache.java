@@ -0,0 +1,374 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the most recently read blocks of served files in memory, shared by
+ * every session, so repeat and concurrent transfers of popular files are
+ * sent without going back to disk. Blocks live outside the heap in direct
+ * buffers, which are recycled once the cache is full so it never holds more
+ * than its capacity. The least recently used block is evicted first. A read
+ * that finds every buffer being filled by another session waits for one.
+ *
+ * Blocks are keyed by the file's path, size and modification time, so a file
+ * that changes is never served from the blocks of its old contents. Blocks of
+ * the old contents are dropped as soon as the change is seen. A file is only
+ * remembered while some of its blocks are cached.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class ChunkCache {
+
+	//Size of a cached block, independent of any session's packet size so they all share blocks
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	private int maxBlocks;
+	private int allocated;
+
+	//Blocks in least recently used order
+	private LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<BlockKey, Block>(16, 0.75f, true);
+
+	//Buffers of evicted blocks, ready to be reused
+	private List<ByteBuffer> free = new ArrayList<ByteBuffer>();
+
+	//The version of each file with blocks cached, by path
+	private Map<String, CachedFile> versions = new HashMap<String, CachedFile>();
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/**
+	 * Identifies one version of a file.
+	 */
+	static class FileVersion {
+		final String path;
+		final long length;
+		final long modified;
+
+		FileVersion(String path, long length, long modified) {
+			this.path = path;
+			this.length = length;
+			this.modified = modified;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+
+			if(!(other instanceof FileVersion))	{
+				return false;
+			}
+
+			FileVersion version = (FileVersion) other;
+			return path.equals(version.path) && length == version.length && modified == version.modified;
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode() * 31 + Long.hashCode(length) * 17 + Long.hashCode(modified);
+		}
+	}
+
+	private static class BlockKey {
+		final FileVersion file;
+		final long index;
+
+		BlockKey(FileVersion file, long index) {
+			this.file = file;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+
+			if(!(other instanceof BlockKey))	{
+				return false;
+			}
+
+			BlockKey key = (BlockKey) other;
+			return index == key.index && file.equals(key.file);
+		}
+
+		@Override
+		public int hashCode() {
+			return file.hashCode() * 31 + Long.hashCode(index);
+		}
+	}
+
+	private static class Block {
+		ByteBuffer data;
+		int length;
+	}
+
+	private static class CachedFile {
+		FileVersion version;
+		int blocks;
+
+		CachedFile(FileVersion version) {
+			this.version = version;
+		}
+	}
+
+	/**
+	 * @param capacity The most bytes of file data to keep, at least BLOCK_SIZE.
+	 */
+	ChunkCache(long capacity) {
+
+		if(capacity < BLOCK_SIZE)	{
+			throw new IllegalArgumentException("Cache must hold at least " + BLOCK_SIZE + " bytes");
+		}
+
+		maxBlocks = (int) Math.min(Integer.MAX_VALUE, capacity / BLOCK_SIZE);
+	}
+
+	/**
+	 * Drops the blocks of any other version of a file about to be served.
+	 * @param version The file as it is now.
+	 */
+	synchronized void checkVersion(FileVersion version) {
+
+		CachedFile known = versions.get(version.path);
+
+		if(known == null || known.version.equals(version))	{
+			return;
+		}
+
+		//Only blocks of the known version are ever cached, so every block of the path goes
+		Iterator<Map.Entry<BlockKey, Block>> entries = blocks.entrySet().iterator();
+
+		while(entries.hasNext())	{
+			Map.Entry<BlockKey, Block> entry = entries.next();
+
+			if(entry.getKey().file.path.equals(version.path))	{
+				free.add(entry.getValue().data);
+				entries.remove();
+				invalidations++;
+			}
+		}
+
+		versions.remove(version.path);
+		notifyAll();
+	}
+
+	/**
+	 * Copies bytes of a file into dst, from the cache where possible and
+	 * from the file where not. Blocks read from the file are kept.
+	 * @param version The version of the file being read.
+	 * @param file Where to read blocks that aren't cached.
+	 * @param position The offset in the file of the first byte to copy.
+	 * @param dst The buffer to copy into, starting at its position.
+	 * @return The number of bytes copied.
+	 * @throws IOException when the file cannot be read.
+	 */
+	int read(FileVersion version, ChunkSource file, long position, ByteBuffer dst) throws IOException {
+
+		int total = 0;
+
+		while(dst.hasRemaining() && position < version.length)	{
+			long index = position / BLOCK_SIZE;
+			int within = (int) (position % BLOCK_SIZE);
+			int count = readBlock(new BlockKey(version, index), file, within, dst);
+
+			if(count == 0)	{
+				break;
+			}
+
+			position += count;
+			total += count;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Copies bytes from one block into dst, loading the block if it isn't cached.
+	 * @param key The block.
+	 * @param file Where to read the block if it isn't cached.
+	 * @param within Where to start in the block.
+	 * @param dst The buffer to copy into.
+	 * @return The number of bytes copied.
+	 * @throws IOException when the file cannot be read, or the wait for a buffer is interrupted.
+	 */
+	private int readBlock(BlockKey key, ChunkSource file, int within, ByteBuffer dst) throws IOException {
+
+		ByteBuffer data;
+
+		synchronized(this)	{
+			Block block = blocks.get(key);
+
+			//Copied while holding the lock, so the block can't be recycled underneath us
+			if(block != null)	{
+				hits++;
+				return copy(block.data, block.length, within, dst);
+			}
+
+			misses++;
+			data = takeBuffer();
+		}
+
+		//Read outside the lock so one session's disk read doesn't hold up the rest.
+		//The buffer isn't in the cache yet, so no one else can see it.
+		int length = -1;
+		int count;
+
+		try {
+			data.clear();
+			length = file.read(key.index * BLOCK_SIZE, data);
+			count = copy(data, length, within, dst);
+
+		} finally {
+			keepBlock(key, data, length);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Caches a block just read, or returns its buffer if it can't be kept.
+	 * @param key The block.
+	 * @param data The block's buffer.
+	 * @param length The number of bytes in the block, or -1 if it couldn't be read.
+	 */
+	private synchronized void keepBlock(BlockKey key, ByteBuffer data, int length) {
+
+		CachedFile known = versions.get(key.file.path);
+
+		//Another session may have loaded the same block meanwhile, or the file changed
+		if(length < 0 || blocks.containsKey(key) || (known != null && !known.version.equals(key.file)))	{
+			free.add(data);
+			notifyAll();
+			return;
+		}
+
+		if(known == null)	{
+			known = new CachedFile(key.file);
+			versions.put(key.file.path, known);
+		}
+
+		Block block = new Block();
+		block.data = data;
+		block.length = length;
+		blocks.put(key, block);
+		known.blocks++;
+
+		//A cached block can be evicted for a session waiting on a buffer
+		notifyAll();
+	}
+
+	/**
+	 * Returns a buffer for a new block, evicting the least recently used
+	 * block if the cache is full, or waiting for one if every buffer is
+	 * being filled by another session. Called holding the lock.
+	 * @throws InterruptedIOException when interrupted while waiting.
+	 */
+	private ByteBuffer takeBuffer() throws InterruptedIOException {
+
+		while(free.isEmpty() && allocated >= maxBlocks && blocks.isEmpty())	{
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the chunk cache");
+			}
+		}
+
+		if(!free.isEmpty())	{
+			return free.remove(free.size() - 1);
+		}
+
+		if(allocated < maxBlocks)	{
+			allocated++;
+			return ByteBuffer.allocateDirect(BLOCK_SIZE);
+		}
+
+		Iterator<Map.Entry<BlockKey, Block>> oldest = blocks.entrySet().iterator();
+		Map.Entry<BlockKey, Block> entry = oldest.next();
+		oldest.remove();
+		evictions++;
+
+		//Forget the file along with its last block
+		CachedFile known = versions.get(entry.getKey().file.path);
+
+		if(--known.blocks == 0)	{
+			versions.remove(entry.getKey().file.path);
+		}
+
+		return entry.getValue().data;
+	}
+
+	/**
+	 * Copies part of a block into dst.
+	 * @param data The block's buffer.
+	 * @param length The number of bytes in the block.
+	 * @param within Where to start in the block.
+	 * @param dst The buffer to copy into.
+	 * @return The number of bytes copied.
+	 */
+	private static int copy(ByteBuffer data, int length, int within, ByteBuffer dst) {
+
+		if(within >= length)	{
+			return 0;
+		}
+
+		ByteBuffer from = data.duplicate();
+		from.limit(Math.min(length, within + dst.remaining()));
+		from.position(within);
+
+		int count = from.remaining();
+		dst.put(from);
+
+		return count;
+	}
+
+	/**
+	 * Returns how many block reads were served from memory.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns how many block reads had to go to disk.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns how many blocks were evicted to make room for others.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns how many blocks were dropped because their file changed.
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * Returns how many bytes of file data the cache holds.
+	 */
+	public synchronized long getSize() {
+		return (long) blocks.size() * BLOCK_SIZE;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " invalidations=" + invalidations
+				+ " cached=" + (getSize() / 1024) + "KB";
+	}
+}
@@ -0,0 +1,113 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates chunks one at a time, so every packet can be decoded on its own
+ * and a retransmission never depends on what was sent before it. A chunk
+ * that doesn't shrink enough is sent as it is, and after each such chunk
+ * compression is skipped for twice as many chunks as the time before, so
+ * content that is already compressed costs next to no CPU.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class ChunkCompressor {
+
+	//A chunk must shrink to this fraction of its size to be sent compressed
+	private static final double MAX_RATIO = 0.9;
+
+	//Most chunks skipped before compression is tried again
+	private static final int MAX_SKIP = 256;
+
+	private Deflater deflater;
+	private int skip;
+	private int nextSkip = 1;
+
+	private long bytesIn;
+	private long bytesOut;
+
+	/**
+	 * @param level The Deflater compression level.
+	 */
+	public ChunkCompressor(int level) {
+		deflater = new Deflater(level);
+	}
+
+	/**
+	 * Returns true if the next chunk should be offered to compress.
+	 * Counts down the chunks being skipped.
+	 */
+	public boolean shouldTry() {
+
+		if(skip > 0)	{
+			skip--;
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Compresses the chunk into dst if it shrinks enough.
+	 * @param chunk The chunk, left untouched.
+	 * @param dst Where the compressed chunk goes, starting at its position.
+	 * @return True if dst holds the compressed chunk, false if it should be
+	 * sent as it is, in which case dst is left as it was.
+	 */
+	public boolean compress(ByteBuffer chunk, ByteBuffer dst) {
+
+		int start = dst.position();
+		int limit = dst.limit();
+		int from = chunk.position();
+		int length = chunk.remaining();
+
+		//Give up as soon as the output passes what would be worth sending
+		dst.limit(start + Math.min(dst.remaining(), (int) (length * MAX_RATIO)));
+
+		deflater.reset();
+		deflater.setInput(chunk);
+		deflater.finish();
+
+		while(!deflater.finished() && dst.hasRemaining())	{
+			deflater.deflate(dst);
+		}
+
+		//The deflater reads through the chunk, put it back
+		chunk.position(from);
+
+		boolean compressed = deflater.finished();
+		dst.limit(limit);
+
+		bytesIn += length;
+
+		if(compressed)	{
+			bytesOut += dst.position() - start;
+			nextSkip = 1;
+		} else {
+			bytesOut += length;
+			dst.position(start);
+			skip = nextSkip;
+			nextSkip = Math.min(MAX_SKIP, nextSkip * 2);
+		}
+
+		return compressed;
+	}
+
+	/**
+	 * Returns the bytes sent for every byte offered, over every chunk
+	 * offered so far.
+	 */
+	public double getRatio() {
+		return (bytesIn == 0) ? 1 : (double) bytesOut / bytesIn;
+	}
+
+	/**
+	 * Frees the deflater.
+	 */
+	public void end() {
+		deflater.end();
+	}
+}
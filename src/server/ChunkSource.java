@@ -0,0 +1,38 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the bytes of a file being served. Any part of the file
+ * can be read at any time, so retransmissions and concurrent sessions on
+ * the same file never depend on a shared stream position.
+ *
+ * Implementations must be safe to read from several threads at once.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+interface ChunkSource {
+
+	/**
+	 * Returns the size of the file in bytes.
+	 */
+	long size();
+
+	/**
+	 * Copies bytes starting at the position specified into dst until dst is
+	 * full or the end of the file is reached.
+	 * @param position The offset in the file of the first byte to copy.
+	 * @param dst The buffer to copy into, starting at its position.
+	 * @return The number of bytes copied.
+	 * @throws IOException when the file cannot be read.
+	 */
+	int read(long position, ByteBuffer dst) throws IOException;
+
+	/**
+	 * Releases the file. Called once no session is reading from it.
+	 */
+	void close();
+}
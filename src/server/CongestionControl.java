@@ -0,0 +1,42 @@
+package server;
+
+/**
+ * Decides how many packets a session may have in flight, so a transfer
+ * finds the bandwidth available to it without flooding the links it shares.
+ * Each session gets its own instance.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+interface CongestionControl {
+
+	/**
+	 * Returns the number of packets that may be unacknowledged at once.
+	 */
+	int getWindow();
+
+	/**
+	 * Returns true while the window is still growing exponentially.
+	 */
+	boolean isSlowStart();
+
+	/**
+	 * Called for every packet acknowledged for the first time.
+	 * @param rtt The round trip time of the packet in nanoseconds, or -1 if
+	 * it was re-sent and can't be timed or was not the packet the
+	 * acknowledgment was sent for.
+	 * @param limited True if the congestion window was full when the packet
+	 * was acknowledged. A window that isn't being used shouldn't grow.
+	 * @param now The current time in nanoseconds.
+	 */
+	void onAck(long rtt, boolean limited, long now);
+
+	/**
+	 * Called once per loss event, when packets go unacknowledged
+	 * for longer than the retransmission timeout or acknowledgments
+	 * show later packets arriving without them.
+	 * @param now The current time in nanoseconds.
+	 */
+	void onLoss(long now);
+}
@@ -0,0 +1,85 @@
+package server;
+
+/**
+ * Delay based congestion control in the style of TCP Vegas. Once per round
+ * trip it compares the smallest round trip seen (the path with empty queues)
+ * with the latest one to estimate how many of its packets are sitting in
+ * router queues, and keeps that number between ALPHA and BETA. Backs off
+ * before queues overflow, so it loses fewer packets and leaves more room for
+ * other traffic than AIMD, but yields to loss based flows that share a queue.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class DelayCongestionControl implements CongestionControl {
+
+	private static final double INITIAL_WINDOW = 10;
+	private static final double MIN_WINDOW = 2;
+
+	//Target range for the number of our packets queued along the path
+	private static final double ALPHA = 2;
+	private static final double BETA = 4;
+
+	//Queued packets that end slow start
+	private static final double GAMMA = 1;
+
+	private double window = INITIAL_WINDOW;
+	private boolean slowStart = true;
+
+	private long baseRtt = Long.MAX_VALUE;
+	private long roundMinRtt = Long.MAX_VALUE;
+	private long roundEnd;
+
+	@Override
+	public int getWindow() {
+		return (int) window;
+	}
+
+	@Override
+	public boolean isSlowStart() {
+		return slowStart;
+	}
+
+	@Override
+	public void onAck(long rtt, boolean limited, long now) {
+
+		if(rtt <= 0) {
+			return;
+		}
+
+		baseRtt = Math.min(baseRtt, rtt);
+		roundMinRtt = Math.min(roundMinRtt, rtt);
+
+		//Only adjust once per round trip, using the best sample from it
+		if(now < roundEnd) {
+			return;
+		}
+
+		double queued = window * (roundMinRtt - baseRtt) / roundMinRtt;
+
+		if(slowStart) {
+
+			if(queued > GAMMA) {
+				slowStart = false;
+				window = Math.max(MIN_WINDOW, window * baseRtt / roundMinRtt + 1);
+			} else if(limited) {
+				window *= 2;
+			}
+
+		} else if(queued < ALPHA && limited) {
+			window += 1;
+		} else if(queued > BETA) {
+			window = Math.max(MIN_WINDOW, window - 1);
+		}
+
+		roundEnd = now + roundMinRtt;
+		roundMinRtt = Long.MAX_VALUE;
+	}
+
+	@Override
+	public void onLoss(long now) {
+		slowStart = false;
+		window = Math.max(MIN_WINDOW, window / 2);
+	}
+}
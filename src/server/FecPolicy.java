@@ -0,0 +1,103 @@
+package server;
+
+/**
+ * Decides how many parity packets follow each group of data packets.
+ * Parity packet i of a group is the XOR of every M'th data packet starting
+ * with packet i, where M is the number of parity packets, so the client can
+ * rebuild any run of up to M lost packets in a row without waiting for
+ * them to be sent again.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class FecPolicy {
+
+	//A parity packet can cover at most this many data packets, and at most this far apart
+	//since the distance between them goes out in one byte
+	public static final int MAX_COVERED = 255;
+
+	private static final FecPolicy NONE = new FecPolicy(0, 0, false);
+
+	private int groupSize;
+	private int parityPackets;
+	private boolean adaptive;
+
+	private FecPolicy(int groupSize, int parityPackets, boolean adaptive) {
+		this.groupSize = groupSize;
+		this.parityPackets = parityPackets;
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Sends no parity, lost packets are always sent again.
+	 */
+	public static FecPolicy none() {
+		return NONE;
+	}
+
+	/**
+	 * Sends the same number of parity packets after every group.
+	 * @param groupSize The number of data packets in a group.
+	 * @param parityPackets The number of parity packets per group, between 1
+	 * and groupSize and at most MAX_COVERED. A group may be at most MAX_COVERED
+	 * times this.
+	 */
+	public static FecPolicy fixed(int groupSize, int parityPackets) {
+
+		if(parityPackets < 1 || parityPackets > groupSize || parityPackets > MAX_COVERED || groupSize > parityPackets * MAX_COVERED)	{
+			throw new IllegalArgumentException("Invalid group of " + groupSize + " with " + parityPackets + " parity packets");
+		}
+
+		return new FecPolicy(groupSize, parityPackets, false);
+	}
+
+	/**
+	 * Sends about twice as many parity packets per group as the measured loss
+	 * rate says will be lost, and none at all while nothing is being lost.
+	 * @param groupSize The number of data packets in a group, between 1 and MAX_COVERED.
+	 * @param maxParityPackets The most parity packets per group, between 1 and groupSize.
+	 */
+	public static FecPolicy adaptive(int groupSize, int maxParityPackets) {
+
+		if(groupSize < 1 || groupSize > MAX_COVERED || maxParityPackets < 1 || maxParityPackets > groupSize)	{
+			throw new IllegalArgumentException("Invalid group of " + groupSize + " with up to " + maxParityPackets + " parity packets");
+		}
+
+		return new FecPolicy(groupSize, maxParityPackets, true);
+	}
+
+	/**
+	 * Returns true if any parity is ever sent.
+	 */
+	public boolean isEnabled() {
+		return groupSize > 0;
+	}
+
+	public int getGroupSize() {
+		return groupSize;
+	}
+
+	/**
+	 * Returns the number of parity packets to send after a group.
+	 * @param lossRate The fraction of data packets currently being lost.
+	 */
+	public int getParityPackets(double lossRate) {
+
+		if(!adaptive)	{
+			return parityPackets;
+		}
+
+		return Math.min(parityPackets, (int) Math.ceil(2 * groupSize * lossRate));
+	}
+
+	@Override
+	public String toString() {
+
+		if(!isEnabled())	{
+			return "no parity";
+		}
+
+		return (adaptive ? "up to " : "") + parityPackets + " parity per " + groupSize + " packets";
+	}
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serves a file out of memory mapped regions. Reading a chunk is a copy
+ * out of the page cache with no system call and no allocation, and every
+ * session reading the same file shares the same mapping.
+ *
+ * Reading a mapping past the end of a file that was cut short after it was
+ * mapped faults. The JVM reports the fault as an InternalError, and from
+ * compiled code it can surface a little later in unrelated code, so it
+ * can't be caught per read and ends the thread driving the sessions.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class MappedChunkSource implements ChunkSource {
+
+	//A single mapping can't be larger than 2GB, so big files get several
+	private static final int REGION_SIZE = 1 << 30;
+
+	private long size;
+	private MappedByteBuffer[] regions;
+
+	/**
+	 * Maps the whole file read-only.
+	 * @param file The file to serve.
+	 * @throws IOException when the file cannot be opened or mapped.
+	 */
+	public MappedChunkSource(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+			size = channel.size();
+			regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+
+			for(int i = 0; i < regions.length; i++)	{
+				long start = (long) i * REGION_SIZE;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+			}
+
+		} finally {
+			//The mappings stay valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public int read(long position, ByteBuffer dst) {
+
+		int total = 0;
+
+		//A chunk may straddle the boundary between two regions
+		while(dst.hasRemaining() && position < size)	{
+			int region = (int) (position / REGION_SIZE);
+			int offset = (int) (position % REGION_SIZE);
+
+			int count = Math.min(regions[region].capacity() - offset, dst.remaining());
+
+			//An absolute copy leaves the shared mapping's position alone, so no view is needed
+			dst.put(dst.position(), regions[region], offset, count);
+			dst.position(dst.position() + count);
+			position += count;
+			total += count;
+		}
+
+		return total;
+	}
+
+	@Override
+	public void close() {
+		//Mappings are released when they are garbage collected
+		regions = null;
+	}
+}
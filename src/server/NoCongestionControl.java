@@ -0,0 +1,30 @@
+package server;
+
+/**
+ * Leaves the window wide open, so only the flow control window limits
+ * how many packets are in flight. Suits dedicated links.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class NoCongestionControl implements CongestionControl {
+
+	@Override
+	public int getWindow() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean isSlowStart() {
+		return false;
+	}
+
+	@Override
+	public void onAck(long rtt, boolean limited, long now) {
+	}
+
+	@Override
+	public void onLoss(long now) {
+	}
+}
@@ -0,0 +1,103 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Keeps one ChunkSource open per served file, so concurrent sessions on the
+ * same file share it instead of each opening (and mapping) the file again.
+ * A source is closed when the last session using it releases it. If the file
+ * changes on disk, new sessions get a fresh source while the old one stays
+ * with the sessions already reading it.
+ *
+ * With a ChunkCache every source reads through it, so a file keeps being
+ * served from memory after the last session on it has released it.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class OpenFiles {
+
+	private ServerController.FileAccess access;
+	private ChunkCache cache;
+	private Map<String, Entry> byPath = new HashMap<String, Entry>();
+	private Map<ChunkSource, Entry> bySource = new IdentityHashMap<ChunkSource, Entry>();
+
+	private static class Entry {
+		String path;
+		ChunkSource source;
+		long length;
+		long modified;
+		int users;
+	}
+
+	/**
+	 * @param access How files should be read.
+	 * @param cache The cache files are read through, or null to always read them from disk.
+	 */
+	public OpenFiles(ServerController.FileAccess access, ChunkCache cache) {
+		this.access = access;
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns a source for the file, opening it if no session has it open.
+	 * Every call must be matched by a call to release.
+	 * @param file The file to be served.
+	 * @throws IOException when the file cannot be opened.
+	 */
+	public synchronized ChunkSource acquire(File file) throws IOException {
+
+		String path = file.getCanonicalPath();
+		Entry entry = byPath.get(path);
+
+		//A file that changed since it was opened gets a source of its own
+		if(entry != null && (entry.length != file.length() || entry.modified != file.lastModified()))	{
+			byPath.remove(path);
+			entry = null;
+		}
+
+		if(entry == null)	{
+			entry = new Entry();
+			entry.path = path;
+			entry.length = file.length();
+			entry.modified = file.lastModified();
+			entry.source = (access == ServerController.FileAccess.MAPPED) ? new MappedChunkSource(file) : new ChannelChunkSource(file);
+
+			if(cache != null)	{
+				entry.source = new CachedChunkSource(entry.source, cache, new ChunkCache.FileVersion(path, entry.source.size(), entry.modified));
+			}
+
+			byPath.put(path, entry);
+			bySource.put(entry.source, entry);
+		}
+
+		entry.users++;
+		return entry.source;
+	}
+
+	/**
+	 * Gives back a source returned by acquire, closing it if no one else is using it.
+	 * @param source The source that is no longer needed.
+	 */
+	public synchronized void release(ChunkSource source) {
+
+		Entry entry = bySource.get(source);
+
+		if(entry == null || --entry.users > 0)	{
+			return;
+		}
+
+		bySource.remove(source);
+
+		if(byPath.get(entry.path) == entry)	{
+			byPath.remove(entry.path);
+		}
+
+		source.close();
+	}
+}
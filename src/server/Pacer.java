@@ -0,0 +1,65 @@
+package server;
+
+/**
+ * Spreads a session's packets evenly over the round trip instead of sending
+ * the whole window back to back, which keeps bursts from overflowing router
+ * queues. The rate is the congestion window per smoothed round trip, with
+ * some headroom so the window rather than the pacer is the real limit.
+ *
+ * Packets that are sent late may catch up by at most maxBurst nanoseconds
+ * worth of packets, which is what lets a timer with millisecond ticks keep
+ * up with pacing intervals of a few microseconds.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class Pacer {
+
+	//How much faster than window per round trip to send
+	private static final double SLOW_START_GAIN = 2.0;
+	private static final double GAIN = 1.25;
+
+	private long maxBurst;
+	private long interval;
+	private long nextSend = Long.MIN_VALUE;
+
+	/**
+	 * @param maxBurst How far behind schedule, in nanoseconds, sending may catch up.
+	 */
+	public Pacer(long maxBurst) {
+		this.maxBurst = maxBurst;
+	}
+
+	/**
+	 * Recomputes the gap between packets.
+	 * @param srtt The smoothed round trip time in nanoseconds, 0 if not yet known.
+	 * @param window The congestion window in packets.
+	 * @param slowStart True while the window is growing exponentially.
+	 */
+	public void update(long srtt, int window, boolean slowStart) {
+
+		//Nothing to pace against until the first round trip is measured
+		if(srtt <= 0) {
+			interval = 0;
+			return;
+		}
+
+		interval = (long) (srtt / (Math.max(1, window) * (slowStart ? SLOW_START_GAIN : GAIN)));
+	}
+
+	/**
+	 * Returns the earliest time in nanoseconds at which the next packet may go out.
+	 */
+	public long getNextSendTime() {
+		return nextSend;
+	}
+
+	/**
+	 * Records that a packet was sent.
+	 * @param now The current time in nanoseconds.
+	 */
+	public void onSend(long now) {
+		nextSend = Math.max(nextSend, now - maxBurst) + interval;
+	}
+}
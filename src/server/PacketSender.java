@@ -0,0 +1,26 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Something a ServerSession can hand its outgoing packets to.
+ * Implemented by the engines that drive the sessions.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+interface PacketSender {
+
+	/**
+	 * Sends the remaining bytes of the buffer as a single packet.
+	 * @param packet The packet to send.
+	 * @param target The address and port of the client.
+	 * @return True if the packet was sent, false if the socket had no
+	 * room for it and it should be tried again later.
+	 * @throws IOException when the packet fails to send.
+	 */
+	boolean send(ByteBuffer packet, SocketAddress target) throws IOException;
+}
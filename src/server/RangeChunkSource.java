@@ -0,0 +1,72 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import utils.RangeList;
+
+/**
+ * Serves a list of byte ranges of a file one after another, as if they
+ * were a file of their own. Used to send only the parts of a file a client
+ * is missing.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class RangeChunkSource implements ChunkSource {
+
+	private ChunkSource file;
+	private RangeList ranges;
+
+	/**
+	 * @param file The file the ranges are read from. Stays open, the caller closes it.
+	 * @param ranges The ranges to serve, all inside the file.
+	 */
+	public RangeChunkSource(ChunkSource file, RangeList ranges) {
+		this.file = file;
+		this.ranges = ranges;
+	}
+
+	@Override
+	public long size() {
+		return ranges.size();
+	}
+
+	@Override
+	public int read(long position, ByteBuffer dst) throws IOException {
+
+		int total = 0;
+		int limit = dst.limit();
+
+		try {
+			while(dst.hasRemaining() && position < ranges.size())	{
+
+				int range = ranges.find(position);
+				long within = position - ranges.getStart(range);
+
+				//Stop at the end of the range, the next one is somewhere else in the file
+				dst.limit((int) Math.min(limit, dst.position() + ranges.getLength(range) - within));
+				int count = file.read(ranges.getOffset(range) + within, dst);
+				dst.limit(limit);
+
+				if(count == 0)	{
+					break;
+				}
+
+				position += count;
+				total += count;
+			}
+
+		} finally {
+			dst.limit(limit);
+		}
+
+		return total;
+	}
+
+	@Override
+	public void close() {
+		//The file belongs to the caller
+	}
+}
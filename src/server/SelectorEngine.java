@@ -0,0 +1,304 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import utils.Log;
+import utils.Protocol;
+
+/**
+ * Drives every session from a single thread. The channel is non-blocking
+ * and registered with a Selector; retransmission deadlines live on a timer
+ * wheel, so a timeout costs a bucket lookup rather than an exception and
+ * thousands of sessions share one thread.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class SelectorEngine implements TransferEngine, PacketSender {
+
+	//Timers fire at most this late
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int WHEEL_SIZE = 4096;
+
+	private ServerController controller;
+	private DatagramChannel channel;
+	private Log log;
+	private Selector selector;
+	private SelectionKey key;
+	private volatile boolean running = true;
+
+	//Sessions currently being serviced, keyed by client address and port
+	private Map<SocketAddress, Slot> slots = new HashMap<SocketAddress, Slot>();
+	private TimerWheel<Slot> timers;
+
+	//Sessions that were refused by a full socket and are waiting for room
+	private Set<Slot> blocked = new LinkedHashSet<Slot>();
+
+	//Reused to hold the blocked sessions while they are let go
+	private List<Slot> waiting = new ArrayList<Slot>();
+
+	/**
+	 * A session and the deadline it is currently filed under on the wheel.
+	 */
+	private static class Slot {
+		ServerSession session;
+		long scheduled = Long.MAX_VALUE;
+
+		Slot(ServerSession session) {
+			this.session = session;
+		}
+	}
+
+	public SelectorEngine(ServerController controller, DatagramChannel channel, Log log) {
+		this.controller = controller;
+		this.channel = channel;
+		this.log = log;
+	}
+
+	@Override
+	public void run() throws IOException {
+
+		selector = Selector.open();
+		channel.configureBlocking(false);
+		key = channel.register(selector, SelectionKey.OP_READ);
+		timers = new TimerWheel<Slot>(TICK, WHEEL_SIZE, System.nanoTime());
+
+		ByteBuffer packet = ByteBuffer.allocateDirect(Protocol.MAX_PACKET_SIZE);
+		List<Slot> expired = new ArrayList<Slot>();
+
+		try {
+			while(running)	{
+
+				long delay = timers.getDelay(System.nanoTime());
+
+				if(delay < 0)	{
+					selector.select();
+				} else if(delay < TICK)	{
+					selector.selectNow();
+				} else {
+					selector.select(TimeUnit.NANOSECONDS.toMillis(delay));
+				}
+
+				selector.selectedKeys().clear();
+				long now = System.nanoTime();
+
+				if(key.isValid() && key.isReadable())	{
+					receivePackets(packet);
+				}
+
+				if(key.isValid() && key.isWritable())	{
+					resumeBlocked(now);
+				}
+
+				timers.expire(now, expired);
+
+				for(int i = 0; i < expired.size(); i++)	{
+					fireTimer(expired.get(i), now);
+				}
+
+				expired.clear();
+			}
+
+		} catch (ClosedChannelException e) {
+			//Closing the channel is how the engine is told to stop
+		} catch (ClosedSelectorException e) {
+			//Shut down while selecting
+		} finally {
+			for(Slot slot : slots.values())	{
+				slot.session.close();
+			}
+
+			slots.clear();
+			selector.close();
+		}
+	}
+
+	@Override
+	public boolean send(ByteBuffer packet, SocketAddress target) throws IOException {
+
+		if(channel.send(packet, target) > 0)	{
+			return true;
+		}
+
+		//The socket buffer is full, wake the session once it drains
+		Slot slot = slots.get(target);
+
+		if(slot != null)	{
+			blocked.add(slot);
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		return false;
+	}
+
+	@Override
+	public void shutdown() {
+		running = false;
+
+		if(selector != null)	{
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Reads every packet waiting on the channel and hands each to its session.
+	 * A file request from a client without a session starts a new one.
+	 * Each packet is stamped with its own time so round trips measured by the
+	 * sessions aren't skewed by how long the batch took.
+	 * @param packet The buffer to read packets into.
+	 * @throws IOException when the channel fails.
+	 */
+	private void receivePackets(ByteBuffer packet) throws IOException {
+
+		while(true)	{
+			packet.clear();
+			SocketAddress from = channel.receive(packet);
+
+			if(from == null)	{
+				return;
+			}
+
+			packet.flip();
+			long now = System.nanoTime();
+			Slot slot = slots.get(from);
+
+			try {
+
+				if(packet.hasRemaining() && packet.get(0) == Protocol.PROBE)	{
+					controller.answerProbe(packet, from, this);
+					continue;
+
+				} else if(slot != null)	{
+					slot.session.onPacket(packet, now);
+
+				} else if(packet.hasRemaining() && packet.get(0) == Protocol.REQUEST)	{
+					slot = new Slot(controller.newSession(packet, from, this));
+					slots.put(from, slot);
+					slot.session.start(now);
+
+				} else {
+					continue; //Left over from a finished session
+				}
+
+			} catch (IOException e) {
+				abort(slot, e);
+				continue;
+			}
+
+			reschedule(slot);
+		}
+	}
+
+	/**
+	 * Lets every session that was refused by a full socket try again.
+	 * @param now The current time in nanoseconds.
+	 */
+	private void resumeBlocked(long now) {
+
+		key.interestOps(SelectionKey.OP_READ);
+
+		waiting.addAll(blocked);
+		blocked.clear();
+
+		for(int i = 0; i < waiting.size(); i++)	{
+			Slot slot = waiting.get(i);
+
+			try {
+				slot.session.onWritable(now);
+			} catch (IOException e) {
+				abort(slot, e);
+				continue;
+			}
+
+			reschedule(slot);
+		}
+
+		waiting.clear();
+	}
+
+	/**
+	 * Handles a session's entry coming off the timer wheel. The entry may be
+	 * stale if the session's deadline moved later since it was filed.
+	 * @param slot The session whose timer fired.
+	 * @param now The current time in nanoseconds.
+	 */
+	private void fireTimer(Slot slot, long now) {
+
+		if(slots.get(slot.session.getClient()) != slot)	{
+			return; //Session already finished
+		}
+
+		if(slot.scheduled > now)	{
+			return; //Stale entry, the session is filed under a later deadline too
+		}
+
+		slot.scheduled = Long.MAX_VALUE;
+
+		try {
+			slot.session.onTimer(now);
+		} catch (IOException e) {
+			abort(slot, e);
+			return;
+		}
+
+		reschedule(slot);
+	}
+
+	/**
+	 * Removes a finished session, or files it on the timer wheel if its
+	 * deadline is earlier than the one it is already filed under.
+	 * @param slot The session that just handled an event.
+	 */
+	private void reschedule(Slot slot) {
+
+		if(slot.session.isFinished())	{
+			finish(slot);
+			return;
+		}
+
+		long deadline = slot.session.getDeadline();
+
+		if(deadline < slot.scheduled)	{
+			slot.scheduled = deadline;
+			timers.schedule(slot, deadline);
+		}
+	}
+
+	/**
+	 * Drops a session after it failed.
+	 * @param slot The session that failed.
+	 * @param e The reason it failed.
+	 */
+	private void abort(Slot slot, IOException e) {
+		log.error("Transfer to " + slot.session.getClient().toString() + " failed: " + e.getMessage(), e);
+		finish(slot);
+	}
+
+	/**
+	 * Releases a session and forgets about it.
+	 * @param slot The session that is done.
+	 */
+	private void finish(Slot slot) {
+		slot.session.close();
+		blocked.remove(slot);
+
+		if(slots.get(slot.session.getClient()) == slot)	{
+			slots.remove(slot.session.getClient());
+		}
+	}
+}
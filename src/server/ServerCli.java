@@ -0,0 +1,240 @@
+package server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.TimeUnit;
+
+import utils.Log;
+import utils.Protocol;
+import utils.SnapshotListener;
+import utils.WriterSink;
+
+/**
+ * Runs the server from the command line, with no user interface, until
+ * the process is stopped. Run with no arguments for the options.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class ServerCli {
+
+	private static final String USAGE =
+			"Usage: ServerCli [options] port\n"
+			+ "  --engine SELECTOR|THREAD_PER_SESSION\n"
+			+ "  --access POSITIONAL|MAPPED      MAPPED is faster, but a served file truncated while mapped stops the server\n"
+			+ "  --congestion NONE|AIMD|DELAY\n"
+			+ "  --no-pacing\n"
+			+ "  --compression NONE|DEFLATE\n"
+			+ "  --fec fixed:K:M|adaptive:K:M    M parity packets, or up to M, for every K packets\n"
+			+ "  --cache BYTES                   memory for the shared chunk cache\n"
+			+ "  --dir DIRECTORY                 serve files from here rather than the working directory\n"
+			+ "  --window PACKETS                at most " + Protocol.MAX_WINDOW_SIZE + ", all one acknowledgment can describe\n"
+			+ "  --max-packet BYTES\n"
+			+ "  --jmx                           register the server's metrics as an MBean\n"
+			+ "  --stats SECONDS                 log a summary of the metrics this often\n"
+			+ "  --log FILE                      log to a file rather than standard error\n"
+			+ "  --debug                         log every packet\n";
+
+	/**
+	 * Starts the server.
+	 * @param args The options and port, see USAGE.
+	 */
+	public static void main(String[] args) {
+
+		String port = null;
+		String logFile = null;
+		boolean debug = false;
+
+		//Settings are applied once the server exists, in the order given
+		String[] settings = new String[args.length];
+		int numberOfSettings = 0;
+
+		try {
+			for(int i = 0; i < args.length; i++)	{
+
+				if(args[i].equals("--log"))	{
+					logFile = value(args, ++i);
+				} else if(args[i].equals("--debug"))	{
+					debug = true;
+				} else if(args[i].equals("--no-pacing") || args[i].equals("--jmx"))	{
+					settings[numberOfSettings++] = args[i];
+				} else if(args[i].startsWith("--"))	{
+					settings[numberOfSettings++] = args[i];
+					settings[numberOfSettings++] = value(args, ++i);
+				} else if(port == null)	{
+					port = args[i];
+				} else {
+					throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+				}
+			}
+
+			if(port == null)	{
+				throw new IllegalArgumentException("No port given");
+			}
+
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		final Log log;
+
+		try {
+			log = new Log(new WriterSink((logFile != null) ? new FileWriter(logFile, true) : new OutputStreamWriter(System.err), logFile != null),
+					debug ? Log.Level.DEBUG : Log.Level.INFO);
+		} catch (IOException e) {
+			System.err.println("Unable to open log file: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		final ServerController server;
+
+		try {
+			server = new ServerController(port, log);
+
+			for(int i = 0; i < numberOfSettings; i++)	{
+
+				if(settings[i].equals("--no-pacing"))	{
+					server.setPacing(false);
+				} else if(settings[i].equals("--jmx"))	{
+					server.setJmxEnabled(true);
+				} else if(settings[i].equals("--stats"))	{
+					reportStats(server, log, Long.parseLong(settings[++i]));
+				} else {
+					apply(server, settings[i], settings[++i]);
+				}
+			}
+
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			log.close();
+			System.exit(2);
+			return;
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			log.close();
+			System.exit(1);
+			return;
+		}
+
+		//Ensure the controller can shutdown properly
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				log.info("Shutting down...");
+				server.killServer();
+				log.close();
+			}
+		}, "Shutdown-thread"));
+
+		try {
+			server.acceptRequests();
+		} catch (IOException e) {
+			log.error("Unable to receive requests: " + e.getMessage(), e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Logs a summary of the server's metrics at a fixed interval.
+	 * @param server The server.
+	 * @param log Where to log the summary.
+	 * @param seconds The time between summaries.
+	 */
+	private static void reportStats(ServerController server, final Log log, long seconds) {
+
+		if(seconds < 1)	{
+			throw new IllegalArgumentException("Stats interval must be at least 1");
+		}
+
+		server.getMetrics().report(new SnapshotListener<ServerMetrics.Snapshot>() {
+			private ServerMetrics.Snapshot last;
+
+			@Override
+			public void onSnapshot(ServerMetrics.Snapshot snapshot) {
+				double rate = (last == null) ? 0 : snapshot.getBytesPerSecondSince(last);
+				last = snapshot;
+				log.info(String.format("Sending at %.0fKB/s, ", rate / 1024) + snapshot.toString());
+			}
+		}, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Applies one setting to the server.
+	 * @param server The server.
+	 * @param option The option naming the setting.
+	 * @param value The value given for it.
+	 * @throws IllegalArgumentException when the option or value is not valid.
+	 */
+	private static void apply(ServerController server, String option, String value) {
+
+		if(option.equals("--engine"))	{
+			server.setEngine(ServerController.Engine.valueOf(value));
+		} else if(option.equals("--access"))	{
+			server.setFileAccess(ServerController.FileAccess.valueOf(value));
+		} else if(option.equals("--congestion"))	{
+			server.setCongestionControl(ServerController.Congestion.valueOf(value));
+		} else if(option.equals("--compression"))	{
+			server.setCompression(ServerController.Compression.valueOf(value));
+		} else if(option.equals("--fec"))	{
+			server.setForwardErrorCorrection(parseFec(value));
+		} else if(option.equals("--cache"))	{
+			server.setCacheSize(Long.parseLong(value));
+		} else if(option.equals("--dir"))	{
+			server.setDirectory(new File(value));
+		} else if(option.equals("--window"))	{
+			server.setWindowSize(Integer.parseInt(value));
+		} else if(option.equals("--max-packet"))	{
+			server.setMaxPacketSize(Integer.parseInt(value));
+		} else {
+			throw new IllegalArgumentException("Unknown option: " + option);
+		}
+	}
+
+	/**
+	 * Parses a forward error correction setting, fixed:K:M or adaptive:K:M.
+	 * @param value The setting.
+	 * @throws IllegalArgumentException when the setting is not valid.
+	 */
+	private static FecPolicy parseFec(String value) {
+
+		String[] parts = value.split(":");
+
+		if(parts.length != 3)	{
+			throw new IllegalArgumentException("FEC must be fixed:K:M or adaptive:K:M");
+		}
+
+		int groupSize = Integer.parseInt(parts[1]);
+		int parityPackets = Integer.parseInt(parts[2]);
+
+		if(parts[0].equals("fixed"))	{
+			return FecPolicy.fixed(groupSize, parityPackets);
+		} else if(parts[0].equals("adaptive"))	{
+			return FecPolicy.adaptive(groupSize, parityPackets);
+		}
+
+		throw new IllegalArgumentException("FEC must be fixed:K:M or adaptive:K:M");
+	}
+
+	/**
+	 * Returns the value following an option.
+	 * @param args The arguments.
+	 * @param i Where the value should be.
+	 * @throws IllegalArgumentException when there is no value.
+	 */
+	private static String value(String[] args, int i) {
+
+		if(i >= args.length)	{
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		}
+
+		return args[i];
+	}
+}
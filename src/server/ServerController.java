@@ -1,232 +1,472 @@
 package server;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
 
-import javax.swing.JTextArea;
+import javax.management.JMException;
 
+import utils.Log;
+import utils.Protocol;
 import utils.Utils;
 
 /**
  * The ServerController contains methods required
  * to listen for file requests from clients and
  * to service those requests.
- * 
+ *
+ * Every client address and port gets its own ServerSession.
+ * The sessions are driven either by a single selector thread
+ * (the default) or by a thread each. See Protocol for the
+ * packet layouts.
+ *
+ * acceptRequests serves on the calling thread until the server
+ * is killed; start serves on a thread of the server's own.
+ *
  * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
  *
  */
 
 public class ServerController {
-	
-	//Rules of engagement:
-
-	//Client sends request for a file
-	//Server acknowledges receipt of request with either file not found or
-	//a packet indicating how many packets will be send to transfer the file
-	//The client will then listen for that many packets and send back acknowledgments
-	//for each packet received.
-	
-	//Step 1: File request and packet counts are confirmed
-	
-	//Client file name request
-	//1024 bytes
-	//0 - 1023 -- File name
-	
-	//Server file request response packet
-	//4 bytes
-	//0 - 7 -- Number of bytes to be sent (-1 if file not found)
-	
-	//Step 2: Server receives client acceptance, begins to send packets
-	
-	//Server data packet structure
-	//1024 bytes
-	//0 - 3 -- PacketNumber
-	//4 - 1023 -- Data
-	
-	//Client acknowledgment packet
-	//4 bytes
-	//0 - 3 -- Packet number received
-	
-	private static DatagramSocket serverSocket;
-	private static JTextArea diagLog;
-	
-	/**
-	 * Sets the ServerController to listen for incoming file requests
-	 * from a client.
-	 * @param log The UI component on which diagnostic information should be displayed.
-	 * @throws IOException when an error occurs while receiving a file request packet.
-	 */
-	public static void acceptRequest(String port, JTextArea log) throws NumberFormatException, IOException	{
-		
-		diagLog = log;
-		int portNumber = Integer.parseInt(port);
-		
-		
-		try {
-			serverSocket = new DatagramSocket(portNumber);
-			diagLog.append("Opened socket on port: " + Integer.toString(portNumber) + "\n");
-		
-		} catch (SocketException e) {
-			diagLog.append(e.getMessage() + "\n");
-			e.printStackTrace();
-		}
-		
-		while(true) {
-			serverSocket.setSoTimeout(0);
-			//Listen for requests
-			//Receive a file request and acknowledge it
-			DatagramPacket request = Utils.receivePacket(serverSocket, diagLog);			
-			
+
+	/**
+	 * The ways the server can drive its sessions.
+	 */
+	public enum Engine {
+		//One thread multiplexes every session with a Selector
+		SELECTOR,
+		//Every session gets a thread of its own
+		THREAD_PER_SESSION
+	}
+
+	/**
+	 * The ways the server can read the files it serves.
+	 */
+	public enum FileAccess {
+		//Map the file into memory and copy chunks out of the mapping. Saves a system call
+		//per chunk, but a file cut short while it is mapped faults the thread reading it,
+		//which takes down every session on a selector. Only for files never truncated in place
+		MAPPED,
+		//Positional FileChannel reads, one system call per chunk
+		POSITIONAL
+	}
+
+	/**
+	 * The ways the server can limit how much each session has in flight.
+	 */
+	public enum Congestion {
+		//Only the flow control window applies
+		NONE,
+		//Halve the window on loss, grow it by a packet per round trip
+		AIMD,
+		//Keep queueing delay along the path small
+		DELAY
+	}
+
+	/**
+	 * The ways the server can encode the chunks it sends.
+	 */
+	public enum Compression {
+		//Send every chunk as it is
+		NONE,
+		//Deflate each chunk on its own at the fastest level
+		DEFLATE
+	}
+
+	private DatagramChannel serverChannel;
+	private Log log;
+	private Thread acceptThread;
+	private int windowSize = Utils.DEFAULT_WINDOW_SIZE;
+	private int maxPacketSize = Protocol.MAX_PACKET_SIZE;
+	private Engine engineType = Engine.SELECTOR;
+	private FileAccess fileAccess = FileAccess.POSITIONAL;
+	private Congestion congestion = Congestion.AIMD;
+	private boolean pacing = true;
+	private Compression compression = Compression.NONE;
+	private FecPolicy fec = FecPolicy.none();
+	private OpenFiles openFiles;
+	private long cacheSize = 0;
+	private ChunkCache cache;
+	private ServerMetrics metrics = new ServerMetrics();
+	private boolean jmx = false;
+	private File directory;
+	private volatile TransferEngine engine;
+
+	//Batches are listed here, so walking a large tree never holds up the engine's thread
+	private ExecutorService listingThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "Batch-listing");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Opens the server socket on the port specified.
+	 * @param port The port the server should listen on.
+	 * @param log Where diagnostic information should be logged. Left open when the server is killed.
+	 * @throws NumberFormatException when the port is not a number.
+	 * @throws IOException when the socket could not be opened.
+	 */
+	public ServerController(String port, Log log) throws NumberFormatException, IOException	{
+		this(Integer.parseInt(port), log);
+	}
+
+	/**
+	 * Opens the server socket on the port specified.
+	 * @param port The port the server should listen on, 0 for any free port.
+	 * @param log Where diagnostic information should be logged. Left open when the server is killed.
+	 * @throws IOException when the socket could not be opened.
+	 */
+	public ServerController(int port, Log log) throws IOException	{
+
+		this.log = log;
+
+		serverChannel = DatagramChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		log.info("Opened socket on port: " + Integer.toString(getPort()));
+
+		//Let probes that don't fit the path get dropped rather than fragmented
+		SocketOption<Boolean> dontFragment = Utils.getDontFragmentOption();
+
+		if(dontFragment != null)	{
 			try {
-				
-				File file = sendFileRequestAcknowledgment(request);
-				sendFile(file, request);
-				
-			} catch (IOException e) {
-				diagLog.append(e.getMessage() + "\n");
-				e.printStackTrace();
-				sendBadFileAcknowledgment(request);	
+				serverChannel.setOption(dontFragment, true);
+			} catch (UnsupportedOperationException e) {
+				log.info("Unable to set the don't fragment bit");
 			}
 		}
 	}
-	
-	/**
-	 * Gets the File object that represents the file specified.
-	 * @param filename The path of the file.
-	 * @return The File object representing the file specified.
-	 * @throws IOException when the path is empty or null, if the file could not be found
-	 * or if the file is a directory.
-	 */
-	private static File getFile(String filename) throws IOException {
-		
-		if(Utils.isNullOrEmptyString(filename)) {
-			throw new IOException("Client did not specify filename");
-		}
-		
-		File file = new File(filename);
-		
-		if(!file.exists())	{
-			throw new IOException("File not found");
-		}
-		
-		if(file.isDirectory()) {
-			throw new IOException("Client requested directory");
-		}
-		
-		return file;
-	}
-	
-	/**
-	 * Reads the specified file and begins sending packets to the client.
-	 * @param file The file to be sent to the client.
-	 * @param request The packet containing the original file request from the client.
-	 * @throws IOException when the file either cannot be read or fails to send.
-	 */
-	private static void sendFile(File file, DatagramPacket request) throws IOException {
-		int numberOfPackets = Utils.getNumberOfPacketsToSend(file);
-		
-		FileInputStream inputStream = new FileInputStream(file);
-		
-		byte[] packetData;
-		ByteBuffer buff;
-		
-		//Set the time for acknowledgments to come in
-		serverSocket.setSoTimeout(1500);
-		
-		for(int i = 0; i < numberOfPackets; i++)	{
-			
-			packetData = new byte[1024];
-			
-			//First four bytes are the packet number
-			buff = ByteBuffer.wrap(packetData, 0, 4);
-			buff.putInt(i);
-			
-			//Last 1020 bytes are the data
-			inputStream.read(packetData, 4, 1020);
-			
-			Utils.sendPacket(serverSocket, packetData, request.getAddress(), request.getPort());
-			diagLog.append("Sending packet: " + (i + 1) + "/" + numberOfPackets + "\n");
-			
-			//As long as we cannot confirm packet was received, re-send it
-			while(!wasPacketReceived(i))	{
-				Utils.sendPacket(serverSocket, packetData, request.getAddress(), request.getPort());
+
+	/**
+	 * Listens for incoming packets and hands each one to the session
+	 * of the client that sent it. A file request from a client without
+	 * a session starts a new one. Returns once the server is shut down.
+	 * @throws IOException when an error occurs while receiving a packet.
+	 */
+	public void acceptRequests() throws IOException	{
+
+		if(cacheSize > 0)	{
+			cache = new ChunkCache(cacheSize);
+		}
+
+		openFiles = new OpenFiles(fileAccess, cache);
+
+		if(jmx)	{
+			try {
+				metrics.register("type=Server,port=" + getPort());
+			} catch (JMException e) {
+				log.warn("Unable to register metrics with JMX: " + e.getMessage());
+			}
+		}
+
+		if(engineType == Engine.SELECTOR)	{
+			engine = new SelectorEngine(this, serverChannel, log);
+		} else {
+			engine = new ThreadedEngine(this, serverChannel, log);
+		}
+
+		try {
+			engine.run();
+		} catch (IOException e) {
+
+			//Closing the channel is how the server is told to stop
+			if(serverChannel.isOpen())	{
+				throw e;
 			}
 		}
-		
-		inputStream.close();
 	}
-	
+
 	/**
-	 * Verifies with the client that the packet specified was received.
-	 * @param packetNumber The number of the packet sent to the client.
-	 * @return True if an acknowledgment was received for the packet specified, false otherwise.
-	 * @throws IOException when the acknowledgment could not be received.
+	 * Serves requests on a thread of the server's own and returns at once.
+	 * A failure that stops the server is logged.
 	 */
-	private static boolean wasPacketReceived(int packetNumber) throws IOException {
-		
-		try {
-			
-			DatagramPacket acknowledgment = Utils.receivePacket(serverSocket, diagLog);
-			ByteBuffer buff = ByteBuffer.wrap(acknowledgment.getData());
-			
-			//If the acknowledgment is inaccurate, consider it bad
-			if(buff.getInt() != packetNumber)	{
-				return false;
+	public void start()	{
+
+		acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					acceptRequests();
+				} catch (IOException e) {
+					log.error("Unable to receive requests: " + e.getMessage(), e);
+				}
 			}
-			
-		} catch (SocketTimeoutException e) {
-			diagLog.append("No acknowledgment for packet: " + (packetNumber + 1) + "\n");
-			e.printStackTrace();
-			return false;
-		}
-		
-		return true;
-	}
-	
-	/**
-	 * Sends an acknowledgment to the client indicating that the file
-	 * requested could not be found.
-	 * @param request The packet containing the original file request from the client.
-	 * @throws IOException when the packet is unable to be sent.
-	 */
-	private static void sendBadFileAcknowledgment(DatagramPacket request) throws IOException	{
-		ByteBuffer buff = ByteBuffer.allocate(8);
-		buff.putLong(-1); //Tell the client no data is coming
-		Utils.sendPacket(serverSocket, buff.array(), request.getAddress(), request.getPort());
-	}
-	
-	/**
-	 * Sends an acknowledgment to the client indicating that the file request
-	 * will be serviced and the size of the file to be transfered in bytes.
-	 * @param request The packet containing the original file request from the client.
-	 * @return The File object representing the file requested by the client.
-	 * @throws IOException when the file cannot be obtained or the packet cannot be sent.
-	 */
-	private static File sendFileRequestAcknowledgment(DatagramPacket request) throws IOException {
-		
-		String filename = new String(request.getData()).trim();
-		
-		diagLog.append("Received request for: " + filename + "\n");
-		diagLog.append("From: " + request.getAddress().toString() + " : " + Integer.toString(request.getPort()) + "\n");
-		File file = getFile(filename);
-		
-		ByteBuffer buff = ByteBuffer.allocate(8);
-		buff.putLong(file.length());
-		Utils.sendPacket(serverSocket, buff.array(), request.getAddress(), request.getPort());
-		
-		return file;
-	}
-	
+		}, "Server");
+
+		acceptThread.start();
+	}
+
+	/**
+	 * Returns the port the server is listening on.
+	 */
+	public int getPort()	{
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Creates the session that will service a new file request.
+	 * @param request The file request packet, positioned at its type byte.
+	 * @param client The address and port of the client that sent it.
+	 * @param sender Where the session's outgoing packets should go.
+	 */
+	ServerSession newSession(ByteBuffer request, SocketAddress client, PacketSender sender) {
+		return new ServerSession(this, request, client, sender);
+	}
+
+	/**
+	 * Echoes a path probe back to the client that sent it. The reply is the
+	 * same size as the probe, so a probe can never be used to make the server
+	 * send more than it received.
+	 * @param probe The probe packet, positioned at its type byte.
+	 * @param client The address and port of the client that sent it.
+	 * @param sender Where the reply should go.
+	 * @throws IOException when the reply fails to send.
+	 */
+	void answerProbe(ByteBuffer probe, SocketAddress client, PacketSender sender) throws IOException {
+
+		if(probe.remaining() < Protocol.PROBE_HEADER_SIZE || probe.remaining() > maxPacketSize)	{
+			return;
+		}
+
+		try {
+			sender.send(probe, client);
+		} catch (IOException e) {
+			//Too large for this host to send, which is an answer in itself
+		}
+	}
+
+	/**
+	 * Creates the congestion control for a new session.
+	 */
+	CongestionControl newCongestionControl() {
+
+		switch(congestion)	{
+		case AIMD:
+			return new AimdCongestionControl();
+		case DELAY:
+			return new DelayCongestionControl();
+		default:
+			return new NoCongestionControl();
+		}
+	}
+
+	/**
+	 * Creates the compressor for a new session, or returns null if chunks
+	 * are sent as they are.
+	 */
+	ChunkCompressor newCompressor() {
+
+		if(compression == Compression.DEFLATE)	{
+			return new ChunkCompressor(Deflater.BEST_SPEED);
+		}
+
+		return null;
+	}
+
+	Log getLog() {
+		return log;
+	}
+
+	OpenFiles getOpenFiles() {
+		return openFiles;
+	}
+
+	ExecutorService getListingThreads() {
+		return listingThreads;
+	}
+
+	int getWindowSize() {
+		return windowSize;
+	}
+
+	int getMaxPacketSize() {
+		return maxPacketSize;
+	}
+
+	boolean isPacing() {
+		return pacing;
+	}
+
+	FecPolicy getFecPolicy() {
+		return fec;
+	}
+
+	/**
+	 * Sets the number of packets that may be sent before the oldest
+	 * one has been acknowledged. Applies to sessions started afterwards.
+	 * Limited to Protocol.MAX_WINDOW_SIZE, the most one acknowledgment can
+	 * describe.
+	 * @param size The window size in packets, from 1 to Protocol.MAX_WINDOW_SIZE.
+	 */
+	public void setWindowSize(int size)	{
+
+		if(size < 1 || size > Protocol.MAX_WINDOW_SIZE)	{
+			throw new IllegalArgumentException("Window size must be from 1 to " + Protocol.MAX_WINDOW_SIZE);
+		}
+
+		windowSize = size;
+	}
+
+	/**
+	 * Sets the largest packet the server will send, whatever the client asks
+	 * for. Applies to sessions started afterwards.
+	 * @param size The packet size in bytes, between Protocol.MIN_PACKET_SIZE
+	 * and Protocol.MAX_PACKET_SIZE.
+	 */
+	public void setMaxPacketSize(int size)	{
+
+		if(size < Protocol.MIN_PACKET_SIZE || size > Protocol.MAX_PACKET_SIZE)	{
+			throw new IllegalArgumentException("Packet size must be between " + Protocol.MIN_PACKET_SIZE + " and " + Protocol.MAX_PACKET_SIZE);
+		}
+
+		maxPacketSize = size;
+	}
+
+	/**
+	 * Chooses how sessions find the bandwidth available to them.
+	 * Applies to sessions started afterwards.
+	 * @param type The congestion control to use.
+	 */
+	public void setCongestionControl(Congestion type)	{
+		congestion = type;
+	}
+
+	/**
+	 * Sets whether sessions spread their packets evenly over the round trip
+	 * rather than sending their window in one burst.
+	 * Applies to sessions started afterwards.
+	 * @param pacing True to pace packets.
+	 */
+	public void setPacing(boolean pacing)	{
+		this.pacing = pacing;
+	}
+
+	/**
+	 * Chooses how chunks are encoded. Chunks that don't compress are always
+	 * sent as they are. Applies to sessions started afterwards.
+	 * @param type The compression to use.
+	 */
+	public void setCompression(Compression type)	{
+		compression = type;
+	}
+
+	/**
+	 * Sets how much parity is sent along with the data so that clients can
+	 * rebuild lost packets without waiting for them to be sent again.
+	 * Applies to sessions started afterwards.
+	 * @param policy The forward error correction to use.
+	 */
+	public void setForwardErrorCorrection(FecPolicy policy)	{
+		fec = policy;
+	}
+
+	/**
+	 * Chooses how sessions are driven. Must be called before acceptRequests.
+	 * @param type The engine to use.
+	 */
+	public void setEngine(Engine type)	{
+		engineType = type;
+	}
+
+	/**
+	 * Chooses how served files are read. Must be called before acceptRequests.
+	 * POSITIONAL unless set, see FileAccess.MAPPED for why.
+	 * @param access The way files should be read.
+	 */
+	public void setFileAccess(FileAccess access)	{
+		fileAccess = access;
+	}
+
+	/**
+	 * Sets how much memory to keep recently read blocks of served files in,
+	 * so files many clients ask for are sent without going back to disk.
+	 * Must be called before acceptRequests.
+	 * @param bytes The size of the cache in bytes, or 0 for no cache.
+	 */
+	public void setCacheSize(long bytes)	{
+
+		if(bytes != 0 && bytes < ChunkCache.BLOCK_SIZE)	{
+			throw new IllegalArgumentException("Cache must be 0 or at least " + ChunkCache.BLOCK_SIZE + " bytes");
+		}
+
+		cacheSize = bytes;
+	}
+
+	/**
+	 * Sets the directory the names clients ask for are looked up in.
+	 * @param directory The directory, or null for the working directory.
+	 */
+	public void setDirectory(File directory)	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the directory files are served from, or null for the working directory.
+	 */
+	public File getDirectory()	{
+		return directory;
+	}
+
+	/**
+	 * Returns the cache served files are read through, with its hit, miss
+	 * and eviction counts, or null if there is none.
+	 */
+	public ChunkCache getChunkCache()	{
+		return cache;
+	}
+
+	/**
+	 * Returns what the server has done: totals, latencies and the sessions
+	 * being serviced. Counting starts when the server is created.
+	 */
+	public ServerMetrics getMetrics()	{
+		return metrics;
+	}
+
+	/**
+	 * Sets whether the server's metrics are registered as an MBean, named
+	 * filetransfer:type=Server,port=N, while it accepts requests.
+	 * @param enabled True to register them.
+	 */
+	public void setJmxEnabled(boolean enabled)	{
+		jmx = enabled;
+	}
+
 	/**
 	 * This method should be called when the server is being shut down.
+	 * If the server was started with start, waits for its thread to finish.
 	 */
-	public static void killServer() {
-		serverSocket.close();
+	public void killServer() {
+
+		if(engine != null)	{
+			engine.shutdown();
+		}
+
+		listingThreads.shutdownNow();
+		metrics.unregister();
+
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			log.error("Unable to close the server socket: " + e.getMessage());
+		}
+
+		if(acceptThread != null && acceptThread != Thread.currentThread())	{
+			try {
+				acceptThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 }
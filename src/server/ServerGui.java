@@ -11,6 +11,9 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.text.DefaultCaret;
 
+import utils.Log;
+import utils.TextAreaSink;
+
 public class ServerGui {
 	
 	private static JFrame frmServer;
@@ -21,20 +24,14 @@ public class ServerGui {
 	 */
 	public static void main(String[] args) {
 		
-		String port = (String)JOptionPane.showInputDialog(frmServer, "Enter port number:",
+		//The port can be given on the command line rather than asked for
+		String port = (args.length > 0) ? args[0] : (String)JOptionPane.showInputDialog(frmServer, "Enter port number:",
                 "Server", JOptionPane.PLAIN_MESSAGE, null, null, "");
 		
 		txtDiagLog = new JTextArea();
 		((DefaultCaret)txtDiagLog.getCaret()).setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
 		txtDiagLog.setEditable(false);
-		
-		//Ensure the controller can shutdown properly
-		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
-	        public void run() {
-	            txtDiagLog.append("Shutting down...\n");
-	            ServerController.killServer();
-	        }
-	    }, "Shutdown-thread"));
+		final Log log = new Log(new TextAreaSink(txtDiagLog));
 		
 		EventQueue.invokeLater(new Runnable() {
 			@SuppressWarnings("static-access")
@@ -48,13 +45,31 @@ public class ServerGui {
 			}
 		});
 		
+		final ServerController server;
+		
 		try {
-			ServerController.acceptRequest(port, txtDiagLog);
+			server = new ServerController(port, log);
 		} catch (NumberFormatException e)	{
-			txtDiagLog.append("Invalid port number\n");
+			log.error("Invalid port number");
+			return;
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			return;
+		}
+		
+		//Ensure the controller can shutdown properly
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+	        public void run() {
+	            log.info("Shutting down...");
+	            server.killServer();
+	            log.close();
+	        }
+	    }, "Shutdown-thread"));
+		
+		try {
+			server.acceptRequests();
 		} catch (IOException e) {
-			txtDiagLog.append("Unable to receive requests\n");
-			e.printStackTrace();
+			log.error("Unable to receive requests: " + e.getMessage(), e);
 		}
 	}
 
@@ -0,0 +1,399 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import utils.Histogram;
+import utils.Metrics;
+
+/**
+ * Counts what the server does across every session, and keeps track of
+ * the sessions being serviced. Counters are updated from the sessions'
+ * threads without locking and can be read at any time.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class ServerMetrics extends Metrics<ServerMetrics.Snapshot> implements ServerMetricsMBean {
+
+	private static final double MILLIS = 1e6;
+	private static final double MICROS = 1e3;
+
+	private Set<SessionMetrics> active = Collections.newSetFromMap(new ConcurrentHashMap<SessionMetrics, Boolean>());
+
+	LongAdder sessionsStarted = new LongAdder();
+	LongAdder sessionsCompleted = new LongAdder();
+	LongAdder sessionsFailed = new LongAdder();
+	LongAdder bytesSent = new LongAdder();
+	LongAdder packetsSent = new LongAdder();
+	LongAdder retransmissions = new LongAdder();
+	LongAdder parityPacketsSent = new LongAdder();
+	LongAdder acknowledgments = new LongAdder();
+	LongAdder duplicateAcknowledgments = new LongAdder();
+	LongAdder outOfOrderAcknowledgments = new LongAdder();
+
+	//In nanoseconds, apart from throughput which is in bytes per second
+	Histogram rtt = new Histogram();
+	Histogram timeToFirstByte = new Histogram();
+	Histogram diskRead = new Histogram();
+	Histogram throughput = new Histogram();
+
+	/**
+	 * Starts keeping track of a session.
+	 * @param session The session's metrics.
+	 */
+	void sessionStarted(SessionMetrics session) {
+		sessionsStarted.increment();
+		active.add(session);
+	}
+
+	/**
+	 * Stops keeping track of a session.
+	 * @param session The session's metrics.
+	 * @param completed Whether the client got everything it asked for.
+	 * @param bytesPerSecond The rate the session sent at, or -1 if it isn't known.
+	 */
+	void sessionEnded(SessionMetrics session, boolean completed, long bytesPerSecond) {
+
+		if(!active.remove(session))	{
+			return;
+		}
+
+		if(completed)	{
+			sessionsCompleted.increment();
+		} else {
+			sessionsFailed.increment();
+		}
+
+		if(bytesPerSecond >= 0)	{
+			throughput.record(bytesPerSecond);
+		}
+	}
+
+	@Override
+	public Snapshot snapshot() {
+
+		List<SessionSnapshot> sessions = new ArrayList<SessionSnapshot>();
+
+		for(SessionMetrics session : active)	{
+			sessions.add(session.snapshot());
+		}
+
+		return new Snapshot(this, sessions);
+	}
+
+	@Override
+	public int getActiveSessions() {
+		return active.size();
+	}
+
+	@Override
+	public long getSessionsStarted() {
+		return sessionsStarted.sum();
+	}
+
+	@Override
+	public long getSessionsCompleted() {
+		return sessionsCompleted.sum();
+	}
+
+	@Override
+	public long getSessionsFailed() {
+		return sessionsFailed.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	@Override
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+
+	@Override
+	public long getParityPacketsSent() {
+		return parityPacketsSent.sum();
+	}
+
+	@Override
+	public long getAcknowledgments() {
+		return acknowledgments.sum();
+	}
+
+	@Override
+	public long getDuplicateAcknowledgments() {
+		return duplicateAcknowledgments.sum();
+	}
+
+	@Override
+	public long getOutOfOrderAcknowledgments() {
+		return outOfOrderAcknowledgments.sum();
+	}
+
+	@Override
+	public double getRttMedianMillis() {
+		return rtt.snapshot().getPercentile(0.5) / MILLIS;
+	}
+
+	@Override
+	public double getRttP99Millis() {
+		return rtt.snapshot().getPercentile(0.99) / MILLIS;
+	}
+
+	@Override
+	public double getTimeToFirstByteMedianMillis() {
+		return timeToFirstByte.snapshot().getPercentile(0.5) / MILLIS;
+	}
+
+	@Override
+	public double getDiskReadMedianMicros() {
+		return diskRead.snapshot().getPercentile(0.5) / MICROS;
+	}
+
+	@Override
+	public double getDiskReadP99Micros() {
+		return diskRead.snapshot().getPercentile(0.99) / MICROS;
+	}
+
+	@Override
+	public double getThroughputMedianKBps() {
+		return throughput.snapshot().getPercentile(0.5) / 1024.0;
+	}
+
+	@Override
+	public String[] getSessions() {
+
+		List<String> lines = new ArrayList<String>();
+
+		for(SessionMetrics session : active)	{
+			lines.add(session.snapshot().toString());
+		}
+
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * The server's metrics at one moment.
+	 */
+	public static class Snapshot {
+		private long time = System.nanoTime();
+		private long sessionsStarted;
+		private long sessionsCompleted;
+		private long sessionsFailed;
+		private long bytesSent;
+		private long packetsSent;
+		private long retransmissions;
+		private long parityPacketsSent;
+		private long acknowledgments;
+		private long duplicateAcknowledgments;
+		private long outOfOrderAcknowledgments;
+		private Histogram.Snapshot rtt;
+		private Histogram.Snapshot timeToFirstByte;
+		private Histogram.Snapshot diskRead;
+		private Histogram.Snapshot throughput;
+		private List<SessionSnapshot> sessions;
+
+		Snapshot(ServerMetrics metrics, List<SessionSnapshot> sessions) {
+			this.sessionsStarted = metrics.sessionsStarted.sum();
+			this.sessionsCompleted = metrics.sessionsCompleted.sum();
+			this.sessionsFailed = metrics.sessionsFailed.sum();
+			this.bytesSent = metrics.bytesSent.sum();
+			this.packetsSent = metrics.packetsSent.sum();
+			this.retransmissions = metrics.retransmissions.sum();
+			this.parityPacketsSent = metrics.parityPacketsSent.sum();
+			this.acknowledgments = metrics.acknowledgments.sum();
+			this.duplicateAcknowledgments = metrics.duplicateAcknowledgments.sum();
+			this.outOfOrderAcknowledgments = metrics.outOfOrderAcknowledgments.sum();
+			this.rtt = metrics.rtt.snapshot();
+			this.timeToFirstByte = metrics.timeToFirstByte.snapshot();
+			this.diskRead = metrics.diskRead.snapshot();
+			this.throughput = metrics.throughput.snapshot();
+			this.sessions = Collections.unmodifiableList(sessions);
+		}
+
+		/**
+		 * Returns the rate bytes were sent at between an earlier snapshot and this one.
+		 * @param earlier The earlier snapshot.
+		 */
+		public double getBytesPerSecondSince(Snapshot earlier) {
+			long elapsed = time - earlier.time;
+			return (elapsed <= 0) ? 0 : (bytesSent - earlier.bytesSent) * 1e9 / elapsed;
+		}
+
+		/**
+		 * Returns when the snapshot was taken, from System.nanoTime.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public int getActiveSessions() {
+			return sessions.size();
+		}
+
+		public long getSessionsStarted() {
+			return sessionsStarted;
+		}
+
+		public long getSessionsCompleted() {
+			return sessionsCompleted;
+		}
+
+		public long getSessionsFailed() {
+			return sessionsFailed;
+		}
+
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		public long getPacketsSent() {
+			return packetsSent;
+		}
+
+		public long getRetransmissions() {
+			return retransmissions;
+		}
+
+		public long getParityPacketsSent() {
+			return parityPacketsSent;
+		}
+
+		public long getAcknowledgments() {
+			return acknowledgments;
+		}
+
+		public long getDuplicateAcknowledgments() {
+			return duplicateAcknowledgments;
+		}
+
+		public long getOutOfOrderAcknowledgments() {
+			return outOfOrderAcknowledgments;
+		}
+
+		/**
+		 * Returns the round trip times measured, in nanoseconds.
+		 */
+		public Histogram.Snapshot getRtt() {
+			return rtt;
+		}
+
+		/**
+		 * Returns the times from a request to its first data packet, in nanoseconds.
+		 */
+		public Histogram.Snapshot getTimeToFirstByte() {
+			return timeToFirstByte;
+		}
+
+		/**
+		 * Returns the times taken to read each chunk sent, in nanoseconds.
+		 */
+		public Histogram.Snapshot getDiskRead() {
+			return diskRead;
+		}
+
+		/**
+		 * Returns the rates completed sessions sent at, in bytes per second.
+		 */
+		public Histogram.Snapshot getThroughput() {
+			return throughput;
+		}
+
+		public List<SessionSnapshot> getSessions() {
+			return sessions;
+		}
+
+		@Override
+		public String toString() {
+			return "sessions=" + sessions.size() + " started=" + sessionsStarted + " completed=" + sessionsCompleted
+					+ " failed=" + sessionsFailed + " bytes=" + bytesSent + " packets=" + packetsSent
+					+ " resent=" + retransmissions + " parity=" + parityPacketsSent + " acks=" + acknowledgments
+					+ " duplicate=" + duplicateAcknowledgments + " outOfOrder=" + outOfOrderAcknowledgments
+					+ " rttMs[" + rtt.toString(MILLIS) + "] ttfbMs[" + timeToFirstByte.toString(MILLIS)
+					+ "] readUs[" + diskRead.toString(MICROS) + "] KBps[" + throughput.toString(1024) + "]";
+		}
+	}
+
+	/**
+	 * One session's metrics at one moment.
+	 */
+	public static class SessionSnapshot {
+		private String client;
+		private String filename;
+		private long elapsed;
+		private long bytesSent;
+		private long packetsSent;
+		private long retransmissions;
+		private long acknowledgments;
+		private long srtt;
+
+		SessionSnapshot(String client, String filename, long elapsed, long bytesSent, long packetsSent, long retransmissions,
+				long acknowledgments, long srtt) {
+			this.client = client;
+			this.filename = filename;
+			this.elapsed = elapsed;
+			this.bytesSent = bytesSent;
+			this.packetsSent = packetsSent;
+			this.retransmissions = retransmissions;
+			this.acknowledgments = acknowledgments;
+			this.srtt = srtt;
+		}
+
+		public String getClient() {
+			return client;
+		}
+
+		public String getFilename() {
+			return filename;
+		}
+
+		/**
+		 * Returns how long the session has been running, in nanoseconds.
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		public long getPacketsSent() {
+			return packetsSent;
+		}
+
+		public long getRetransmissions() {
+			return retransmissions;
+		}
+
+		public long getAcknowledgments() {
+			return acknowledgments;
+		}
+
+		/**
+		 * Returns the smoothed round trip time, in nanoseconds.
+		 */
+		public long getSrtt() {
+			return srtt;
+		}
+
+		@Override
+		public String toString() {
+			return client + " " + filename.replace('\n', ',') + " elapsed=" + (elapsed / 1000000) + "ms bytes=" + bytesSent
+					+ " packets=" + packetsSent + " resent=" + retransmissions + " acks=" + acknowledgments
+					+ String.format(" srtt=%.2fms", srtt / MILLIS);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package server;
+
+/**
+ * The attributes of the server's metrics as JMX tools see them. Counts are
+ * totals since the server started; latencies come from histograms and are
+ * only as precise as the bucket they fall in.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public interface ServerMetricsMBean {
+
+	int getActiveSessions();
+
+	long getSessionsStarted();
+
+	long getSessionsCompleted();
+
+	long getSessionsFailed();
+
+	long getBytesSent();
+
+	long getPacketsSent();
+
+	long getRetransmissions();
+
+	long getParityPacketsSent();
+
+	long getAcknowledgments();
+
+	long getDuplicateAcknowledgments();
+
+	long getOutOfOrderAcknowledgments();
+
+	double getRttMedianMillis();
+
+	double getRttP99Millis();
+
+	double getTimeToFirstByteMedianMillis();
+
+	double getDiskReadMedianMicros();
+
+	double getDiskReadP99Micros();
+
+	double getThroughputMedianKBps();
+
+	/**
+	 * Returns a line for every session being serviced.
+	 */
+	String[] getSessions();
+}
@@ -0,0 +1,1119 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import utils.Log;
+import utils.PacketChecksum;
+import utils.Protocol;
+import utils.RangeList;
+import utils.RateLimit;
+import utils.RttEstimator;
+import utils.Utils;
+
+/**
+ * A ServerSession services a single file request from a single client.
+ *
+ * The session never blocks and owns no thread. An engine calls start once,
+ * then onPacket for every packet the client sends and onTimer whenever
+ * getDeadline has passed, until isFinished returns true. Each session keeps
+ * its own window and timers and never sees another client's acknowledgments.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class ServerSession {
+
+	//How far behind its pacing schedule a session may catch up in one go
+	private static final long PACING_BURST = TimeUnit.MILLISECONDS.toNanos(1);
+
+	//Weight of each packet in the moving average of the loss rate
+	private static final double LOSS_GAIN = 1.0 / 64;
+
+	//Packets acknowledged after a missing one before it is taken as lost rather than late
+	private static final int REORDER_THRESHOLD = 3;
+
+	//Least time between the retransmissions a session reports
+	private static final long RETRANSMIT_LOG_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	//How often a session checks whether its batch has been listed
+	private static final long LISTING_POLL = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private Log log;
+	private PacketSender sender;
+	private OpenFiles openFiles;
+	private File directory;
+	private SocketAddress client;
+	private String filename;
+	private int windowSize;
+
+	//Size of the data packets and of the file data each one carries
+	private int packetSize;
+	private int chunkSize;
+
+	//The response sent to the request, kept in case the client asks again
+	private ByteBuffer response;
+
+	//Whole file, block signatures, byte ranges or a batch of files
+	private byte mode = Protocol.WHOLE_FILE;
+
+	//Whether a batch includes the files in subdirectories
+	private boolean recursive;
+
+	//A batch being listed off the engine's thread, and when to look at it next
+	private ExecutorService listingThreads;
+	private Future<BatchChunkSource> listing;
+	private long listingCheck;
+
+	//Byte ranges asked for, and the file they were worked out against
+	private RangeList ranges;
+	private long rangesFileSize;
+	private long rangesModified;
+
+	//What the client says it holds from an earlier attempt, if anything
+	private boolean resumeRequested;
+	private long resumeSize;
+	private long resumeModified;
+	private int resumePacketSize;
+	private long resumeFrom;
+	private boolean[] resumeBitmap;
+
+	//Packets the client already has that never need to be sent, when the resume set was accepted
+	private boolean resuming;
+
+	//The file being served, and what is actually sent from it
+	private ChunkSource file;
+	private ChunkSource source;
+	private long numberOfPackets;
+
+	//Data packets and the digest packet after them, if there is one
+	private long packetsToSend;
+
+	//Every chunk sent goes into the digest the first time it is sent, in order
+	private MessageDigest digest;
+	private long digested;
+	private byte[] digestValue;
+
+	//Limits how much is in flight and how fast it goes out
+	private CongestionControl congestion;
+	private Pacer pacer = new Pacer(PACING_BURST);
+	private boolean pacing;
+	private int inFlight;
+
+	//Packets that have been sent but not acknowledged, indexed by packet number % windowSize
+	private boolean[] window;
+	private long[] sendTimes;
+
+	//Packets that have been re-sent, which can't be timed (Karn's rule)
+	private boolean[] resent;
+
+	//Retransmission timeout, derived from the round trip times measured so far
+	private RttEstimator rtt = new RttEstimator();
+
+	//When the client last showed it was there, so a short stall on its side isn't given up on
+	private long lastHeard;
+
+	//Timeouts before this time belong to a loss that has already been backed off for
+	private long backoffUntil = Long.MIN_VALUE;
+
+	//Losses found from acknowledgments before this time belong to one the window has already shrunk for
+	private long recoveryUntil = Long.MIN_VALUE;
+
+	//Every packet re-sent, though only some are reported
+	private long retransmissions;
+	private RateLimit retransmitLog = new RateLimit(RETRANSMIT_LOG_INTERVAL);
+
+	//Packets are built here right before they are sent, re-reading the chunk for a retransmission
+	private ByteBuffer packet;
+	private PacketChecksum checksum = new PacketChecksum();
+
+	//Compresses chunks that shrink enough, or null to send every chunk as it is
+	private ChunkCompressor compressor;
+	private ByteBuffer chunk;
+
+	//Parity sent after each group of packets, the first packet no parity has covered yet,
+	//and the fraction of packets the client has been losing
+	private FecPolicy fec;
+	private long parityFrom;
+	private double lossRate;
+
+	private long base; //Oldest packet that has not been acknowledged
+	private long nextPacket; //Next packet that has never been sent
+	private boolean finished;
+	private boolean completed; //Finished because the client has everything
+
+	//Counts what the session does, from the time it starts
+	private ServerMetrics serverMetrics;
+	private SessionMetrics metrics;
+
+	/**
+	 * @param controller The server whose settings the session follows.
+	 * @param request The file request packet, positioned at its type byte.
+	 * @param client The address and port of the client that sent the request.
+	 * @param sender Where the session's outgoing packets should go.
+	 */
+	public ServerSession(ServerController controller, ByteBuffer request, SocketAddress client, PacketSender sender) {
+		//Use the largest packet both sides can handle
+		int requested = Protocol.MIN_PACKET_SIZE;
+		byte[] name = new byte[0];
+
+		if(request.remaining() >= Protocol.REQUEST_HEADER_SIZE)	{
+			request.get(); //Type
+			requested = request.getInt();
+			mode = request.get();
+			name = new byte[Math.min(request.getShort() & 0xFFFF, request.remaining())];
+			request.get(name);
+		}
+
+		if(mode == Protocol.WHOLE_FILE && request.remaining() >= Protocol.RESUME_HEADER_SIZE)	{
+			readResumeSet(request);
+		} else if(mode == Protocol.RANGES && request.remaining() >= Protocol.RANGES_HEADER_SIZE)	{
+			readRanges(request);
+		} else if(mode == Protocol.BATCH && request.hasRemaining())	{
+			recursive = (request.get() & Protocol.RECURSIVE) != 0;
+		}
+
+		this.filename = new String(name).trim();
+		this.packetSize = Math.max(Protocol.MIN_PACKET_SIZE, Math.min(requested, controller.getMaxPacketSize()));
+		this.chunkSize = packetSize - Protocol.DATA_HEADER_SIZE;
+		this.client = client;
+		this.windowSize = controller.getWindowSize();
+		this.openFiles = controller.getOpenFiles();
+		this.listingThreads = controller.getListingThreads();
+		this.directory = controller.getDirectory();
+		this.congestion = controller.newCongestionControl();
+		this.pacing = controller.isPacing();
+		this.compressor = controller.newCompressor();
+		this.fec = controller.getFecPolicy();
+		this.sender = sender;
+		this.log = controller.getLog();
+		this.serverMetrics = controller.getMetrics();
+		this.window = new boolean[windowSize];
+		this.sendTimes = new long[windowSize];
+		this.resent = new boolean[windowSize];
+	}
+
+	/**
+	 * Returns the address and port of the client this session is serving.
+	 */
+	public SocketAddress getClient() {
+		return client;
+	}
+
+	/**
+	 * Returns true once the session has nothing left to do.
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Returns the round trip time estimates for this session's client.
+	 */
+	public RttEstimator getRttEstimator() {
+		return rtt;
+	}
+
+	/**
+	 * Returns the time in nanoseconds at which onTimer should next be called,
+	 * or Long.MAX_VALUE if there is nothing to send and no packet is waiting
+	 * on an acknowledgment.
+	 */
+	public long getDeadline() {
+
+		if(listing != null)	{
+			return listingCheck;
+		}
+
+		long deadline = getRetransmitDeadline();
+
+		//A paced session wakes up again when its next packet is due
+		if(canSendNewPacket())	{
+			deadline = Math.min(deadline, pacer.getNextSendTime());
+		}
+
+		return deadline;
+	}
+
+	/**
+	 * Returns the time in nanoseconds at which the oldest unacknowledged
+	 * packet should be re-sent, or Long.MAX_VALUE if nothing is in flight.
+	 */
+	private long getRetransmitDeadline() {
+
+		long oldest = Long.MAX_VALUE;
+
+		for(long i = base; i < nextPacket; i++)	{
+			int slot = (int) (i % windowSize);
+
+			if(window[slot])	{
+				oldest = Math.min(oldest, sendTimes[slot]);
+			}
+		}
+
+		return (oldest == Long.MAX_VALUE) ? oldest : oldest + rtt.getRto();
+	}
+
+	/**
+	 * Answers the file request and sends the first window of packets. A
+	 * batch is listed off the engine's thread first, and answered from
+	 * onTimer once the listing is done.
+	 * @param now The current time in nanoseconds.
+	 * @throws IOException when a packet fails to send.
+	 */
+	public void start(long now) throws IOException {
+
+		log.info("Received request for: " + filename);
+		log.info("From: " + client.toString());
+		metrics = new SessionMetrics(serverMetrics, client.toString(), filename, now);
+
+		if(mode == Protocol.BATCH)	{
+			listing = listingThreads.submit(new Callable<BatchChunkSource>() {
+				@Override
+				public BatchChunkSource call() throws IOException {
+					return new BatchChunkSource(openFiles, directory, filename, recursive);
+				}
+			});
+
+			listingCheck = now + LISTING_POLL;
+			return;
+		}
+
+		begin(now, null);
+	}
+
+	/**
+	 * Answers the request now that what it asked for is known. A request for
+	 * a file that can't be served, or for ranges of a file that has changed
+	 * since, is answered with a bad file acknowledgment and finishes the session.
+	 * @param now The current time in nanoseconds.
+	 * @param batch The files of a batch request, or null for any other request.
+	 * @throws IOException when a packet fails to send.
+	 */
+	private void begin(long now, BatchChunkSource batch) throws IOException {
+
+		try {
+
+			long modified = 0;
+			long described; //What the response gives as the size of the whole file
+
+			if(mode == Protocol.BATCH)	{
+				log.info("Files in batch: " + batch.getNumberOfFiles());
+				source = batch;
+				described = batch.getManifestSize();
+
+			} else {
+				File requested = getFile(filename);
+				modified = requested.lastModified();
+				file = openFiles.acquire(requested);
+				described = file.size();
+
+				if(mode == Protocol.SIGNATURES)	{
+					source = new SignatureChunkSource(file, modified);
+
+				} else if(mode == Protocol.RANGES)	{
+
+					//ANY_VERSION takes the file as it is now, the client learns its identity from the response
+					boolean sameFile = (rangesFileSize == Protocol.ANY_VERSION) || (rangesFileSize == file.size() && rangesModified == modified);
+
+					if(ranges == null || !sameFile || !ranges.fitsWithin(file.size()))	{
+						log.info("File changed since the client's signatures were taken");
+						sendBadFileAcknowledgment(Protocol.FILE_CHANGED);
+						finished = true;
+						return;
+					}
+
+					source = new RangeChunkSource(file, ranges);
+
+				} else {
+					source = file;
+				}
+			}
+
+			numberOfPackets = Utils.getNumberOfPacketsToSend(source.size(), chunkSize);
+			packet = ByteBuffer.allocateDirect(packetSize);
+
+			if(compressor != null || fec.isEnabled())	{
+				chunk = ByteBuffer.allocateDirect(chunkSize);
+			}
+
+			//Only resume if the chunks the client holds are the ones we would send now
+			resuming = resumeRequested && resumeSize == file.size() && resumeModified == modified
+					&& resumePacketSize == packetSize && resumeFrom <= numberOfPackets;
+
+			if(resuming)	{
+				base = resumeFrom;
+				nextPacket = resumeFrom;
+				log.info("Resuming from packet: " + (resumeFrom + 1));
+			}
+
+			//Chunks the client got in an earlier attempt are never sent, so they can't be hashed as they go
+			packetsToSend = numberOfPackets;
+
+			if(!resuming && numberOfPackets > 0)	{
+				digest = Utils.newTransferDigest();
+				packetsToSend++;
+			}
+
+			parityFrom = base;
+			lastHeard = now;
+			sendFileRequestAcknowledgment(source.size(), modified, described);
+
+			//An empty file, or one the client already has, is done as soon as its size has been sent
+			finished = (base == packetsToSend);
+			completed = finished;
+
+		} catch (IOException e) {
+			log.warn(e.getMessage());
+			sendBadFileAcknowledgment(Protocol.FILE_NOT_FOUND);
+			finished = true;
+			return;
+		}
+
+		pump(now);
+	}
+
+	/**
+	 * Handles a packet from the client. A repeated file request means our
+	 * response was lost, so it is answered again.
+	 * @param packet The packet received, positioned at its type byte.
+	 * @param now The current time in nanoseconds.
+	 * @throws IOException when a packet fails to send or the file cannot be read.
+	 */
+	public void onPacket(ByteBuffer packet, long now) throws IOException {
+
+		//Nothing can be acknowledged before the request has been answered
+		if(finished || listing != null || !packet.hasRemaining())	{
+			return;
+		}
+
+		byte type = packet.get(packet.position());
+
+		if(type == Protocol.REQUEST && response != null)	{
+			lastHeard = now;
+			sender.send(response.duplicate(), client);
+
+		} else if(type == Protocol.ACK && packet.remaining() >= Protocol.ACK_HEADER_SIZE)	{
+
+			//Damaged on the way, the next one covers everything this one did
+			if(!checksum.verify(packet))	{
+				return;
+			}
+
+			lastHeard = now;
+			acknowledge(packet, now);
+
+			if(!finished && !resendLost(packet, now))	{
+				return;
+			}
+
+			pump(now);
+		}
+	}
+
+	/**
+	 * Sends packets whose pacing time has come, re-sends every packet whose
+	 * acknowledgment is overdue and doubles the retransmission timeout.
+	 * Packets that expire within one timeout of each other are treated as
+	 * the same loss, so they only back off and shrink the congestion window
+	 * once. Gives up on the client after too many timeouts in a row, once it
+	 * has also been silent for GIVE_UP_AFTER. A batch request is answered
+	 * here once its files have been listed.
+	 * @param now The current time in nanoseconds.
+	 * @throws IOException when a packet fails to send or the file cannot be read.
+	 */
+	public void onTimer(long now) throws IOException {
+
+		if(finished)	{
+			return;
+		}
+
+		if(listing != null)	{
+			checkListing(now);
+			return;
+		}
+
+		if(getRetransmitDeadline() <= now)	{
+
+			long expiredRto = rtt.getRto();
+
+			if(now >= backoffUntil)	{
+
+				//Give the client MAX_BACKOFFS timeouts, and GIVE_UP_AFTER at least, before calling it quits
+				if(!rtt.backoff() && now - lastHeard >= RttEstimator.GIVE_UP_AFTER)	{
+					log.warn("Client stopped acknowledging packets: " + client.toString());
+					finished = true;
+					return;
+				}
+
+				congestion.onLoss(now);
+				backoffUntil = now + rtt.getRto();
+				recoveryUntil = backoffUntil;
+			}
+
+			if(!resendExpired(now, expiredRto))	{
+				return;
+			}
+		}
+
+		pump(now);
+	}
+
+	/**
+	 * Called when a send was refused earlier and the socket has room again.
+	 * @param now The current time in nanoseconds.
+	 * @throws IOException when a packet fails to send or the file cannot be read.
+	 */
+	public void onWritable(long now) throws IOException {
+
+		if(!finished)	{
+			pump(now);
+		}
+	}
+
+	/**
+	 * Answers a batch request once its files have been listed.
+	 * @param now The current time in nanoseconds.
+	 * @throws IOException when a packet fails to send.
+	 */
+	private void checkListing(long now) throws IOException {
+
+		if(!listing.isDone())	{
+			listingCheck = now + LISTING_POLL;
+			return;
+		}
+
+		Future<BatchChunkSource> listed = listing;
+		listing = null;
+
+		try {
+			begin(now, listed.get());
+		} catch (ExecutionException e) {
+			log.warn(e.getCause().getMessage());
+			sendBadFileAcknowledgment(Protocol.FILE_NOT_FOUND);
+			finished = true;
+		} catch (InterruptedException e) {
+			//Only a finished listing is read, so this never waits
+			Thread.currentThread().interrupt();
+			finished = true;
+		}
+	}
+
+	/**
+	 * Releases the file being sent. Safe to call more than once.
+	 */
+	public void close() {
+
+		//Let go of a listing still running, it opens nothing until it is read from
+		if(listing != null)	{
+			listing.cancel(true);
+			listing = null;
+		}
+
+		if(metrics != null)	{
+			metrics.onEnd(completed, System.nanoTime());
+		}
+
+		//A batch opens the files it sends itself, anything else reads from file
+		if(source != null && source != file)	{
+			source.close();
+		}
+
+		if(file != null)	{
+			openFiles.release(file);
+			file = null;
+		}
+
+		source = null;
+
+		if(compressor != null)	{
+			compressor.end();
+			compressor = null;
+		}
+	}
+
+	/**
+	 * Marks every packet the acknowledgment covers as acknowledged, times the
+	 * packet it was sent for if that was only sent once, and slides the window
+	 * past every packet that has been acknowledged.
+	 * @param ack The acknowledgment, positioned at its type byte.
+	 * @param now The current time in nanoseconds.
+	 */
+	private void acknowledge(ByteBuffer ack, long now) {
+
+		int start = ack.position();
+		long cumulative = ack.getLong(start + 1);
+		long newest = ack.getLong(start + 13);
+		long delay = TimeUnit.MICROSECONDS.toNanos(ack.getInt(start + 21) & 0xFFFFFFFFL);
+		int recovered = ack.getShort(start + 25) & 0xFFFF;
+		long end = Math.min(nextPacket, cumulative + 1 + (long) (ack.remaining() - Protocol.ACK_HEADER_SIZE) * 8);
+
+		//Time spent waiting to be acknowledged was not spent on the network
+		long sample = -1;
+		int newestSlot = (int) (newest % windowSize);
+
+		if(newest >= base && newest < nextPacket && window[newestSlot] && !resent[newestSlot] && isAcknowledged(ack, cumulative, newest))	{
+			sample = now - sendTimes[newestSlot];
+			sample -= (sample > delay) ? delay : 0;
+			rtt.addSample(sample);
+			metrics.onRtt(sample, rtt.getSrtt());
+		}
+
+		boolean limited = (inFlight >= congestion.getWindow());
+		int acknowledged = 0;
+
+		for(long i = base; i < end; i++)	{
+			int slot = (int) (i % windowSize);
+
+			if(!window[slot] || !isAcknowledged(ack, cumulative, i))	{
+				continue;
+			}
+
+			window[slot] = false;
+			inFlight--;
+			acknowledged++;
+
+			//Packets rebuilt from parity were lost all the same, they just never needed sending again
+			boolean lost = resent[slot];
+
+			if(!lost && recovered > 0)	{
+				lost = true;
+				recovered--;
+			}
+
+			lossRate += ((lost ? 1 : 0) - lossRate) * LOSS_GAIN;
+			congestion.onAck((i == newest) ? sample : -1, limited, now);
+		}
+
+		metrics.onAcknowledgment(acknowledged == 0, end > cumulative + 1);
+
+		if(acknowledged > 0)	{
+			rtt.resetBackoff();
+			slideWindow();
+		}
+	}
+
+	/**
+	 * Re-sends every packet the acknowledgment shows missing with at least
+	 * REORDER_THRESHOLD packets after it received, rather than waiting for its
+	 * timeout. A packet is only taken as lost once it is well past a round trip
+	 * old and the parity covering it has been sent, and the congestion window
+	 * shrinks once per loss like on a timeout.
+	 * @param ack The acknowledgment, positioned at its type byte.
+	 * @param now The current time in nanoseconds.
+	 * @return False if the socket refused a packet, true otherwise.
+	 * @throws IOException when a packet fails to send or the file cannot be read.
+	 */
+	private boolean resendLost(ByteBuffer ack, long now) throws IOException {
+
+		int start = ack.position();
+		long cumulative = ack.getLong(start + 1);
+		long end = Math.min(nextPacket, cumulative + 1 + (long) (ack.remaining() - Protocol.ACK_HEADER_SIZE) * 8);
+
+		//Everything before the first missing packet has been received, so holes can only come after it
+		int after = 0;
+
+		for(long i = cumulative + 1; i < end; i++)	{
+			after += isAcknowledged(ack, cumulative, i) ? 1 : 0;
+		}
+
+		for(long i = Math.max(base, cumulative); i < end && after >= REORDER_THRESHOLD; i++)	{
+
+			if(isAcknowledged(ack, cumulative, i))	{
+				after--;
+				continue;
+			}
+
+			int slot = (int) (i % windowSize);
+
+			//Allow for packets that are only late, and for parity still to come that could rebuild the packet
+			if(!window[slot] || now - sendTimes[slot] < rtt.getSrtt() + 2 * rtt.getRttVar() || (fec.isEnabled() && i >= parityFrom))	{
+				continue;
+			}
+
+			if(now >= recoveryUntil)	{
+				congestion.onLoss(now);
+				recoveryUntil = now + rtt.getRto();
+			}
+
+			if(!resend(i, now))	{
+				return false;
+			}
+
+			if(log.isEnabled(Log.Level.DEBUG))	{
+				log.debug("Packet lost: " + (i + 1) + " (" + after + " later packets acknowledged)");
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns true if an acknowledgment covers the packet, because it comes
+	 * before the first missing packet or its bit is set.
+	 * @param ack The acknowledgment, positioned at its type byte.
+	 * @param cumulative The first packet the client is missing.
+	 * @param packetNumber The number of the packet.
+	 */
+	private static boolean isAcknowledged(ByteBuffer ack, long cumulative, long packetNumber) {
+
+		if(packetNumber < cumulative)	{
+			return true;
+		}
+
+		long bit = packetNumber - cumulative - 1;
+
+		if(bit < 0 || bit >= (long) (ack.remaining() - Protocol.ACK_HEADER_SIZE) * 8)	{
+			return false;
+		}
+
+		return (ack.get(ack.position() + Protocol.ACK_HEADER_SIZE + (int) (bit / 8)) & (1 << (int) (bit % 8))) != 0;
+	}
+
+	/**
+	 * Slides the window past every packet that has been acknowledged or that
+	 * the client already had, and finishes the session once none are left.
+	 */
+	private void slideWindow() {
+
+		while(base < nextPacket && !window[(int) (base % windowSize)])	{
+			base++;
+		}
+
+		if(base == packetsToSend)	{
+			completed = true;
+			log.info("Finished sending to: " + client.toString() + " (" + rtt.toString() + " cwnd=" + congestion.getWindow()
+					+ " resent=" + retransmissions
+					+ ((compressor != null) ? String.format(" compressed to %.0f%%", 100 * compressor.getRatio()) : "") + ")");
+			finished = true;
+		}
+	}
+
+	/**
+	 * Moves past the packets the client said it already has, as far as the
+	 * window allows.
+	 */
+	private void skipResumed() {
+
+		while(resuming && !finished && nextPacket < numberOfPackets && nextPacket < base + windowSize && isResumed(nextPacket))	{
+			nextPacket++;
+			slideWindow();
+		}
+	}
+
+	/**
+	 * Returns true if the client said it already has the packet.
+	 * @param packetNumber The number of the packet.
+	 */
+	private boolean isResumed(long packetNumber) {
+		long offset = packetNumber - resumeFrom;
+		return offset >= 0 && offset < resumeBitmap.length && resumeBitmap[(int) offset];
+	}
+
+	/**
+	 * Reads the byte ranges from the end of a file request.
+	 * @param request The request, positioned after the file name.
+	 */
+	private void readRanges(ByteBuffer request) {
+
+		rangesFileSize = request.getLong();
+		rangesModified = request.getLong();
+		ranges = new RangeList();
+
+		try {
+			while(request.remaining() >= Protocol.RANGE_SIZE)	{
+				ranges.add(request.getLong(), request.getLong());
+			}
+		} catch (IllegalArgumentException e) {
+			ranges = null; //Refused in start
+		}
+	}
+
+	/**
+	 * Reads the resume set from the end of a file request.
+	 * @param request The request, positioned after the file name.
+	 */
+	private void readResumeSet(ByteBuffer request) {
+
+		resumeSize = request.getLong();
+		resumeModified = request.getLong();
+		resumePacketSize = request.getInt();
+		resumeFrom = request.getLong();
+		resumeBitmap = new boolean[request.remaining() * 8];
+
+		for(int i = 0; i < resumeBitmap.length; i++)	{
+			resumeBitmap[i] = (request.get(request.position() + i / 8) & (1 << (i % 8))) != 0;
+		}
+
+		//Negative numbers would never match a file, but don't let them near the window
+		resumeRequested = (resumeFrom >= 0);
+	}
+
+	/**
+	 * Returns true if a packet that has never been sent fits in both the
+	 * flow control window and the congestion window.
+	 */
+	private boolean canSendNewPacket() {
+		return !finished && nextPacket < packetsToSend && nextPacket < base + windowSize && inFlight < congestion.getWindow();
+	}
+
+	/**
+	 * Re-sends overdue packets and fills the window with packets that have
+	 * never been sent, as fast as the pacer allows. Stops early if the socket
+	 * refuses a packet.
+	 * @param now The current time in nanoseconds.
+	 * @throws IOException when a packet fails to send or the file cannot be read.
+	 */
+	private void pump(long now) throws IOException {
+
+		if(!resendExpired(now, rtt.getRto()))	{
+			return;
+		}
+
+		if(pacing)	{
+			pacer.update(rtt.getSrtt(), congestion.getWindow(), congestion.isSlowStart());
+		}
+
+		skipResumed();
+
+		while(canSendNewPacket() && pacer.getNextSendTime() <= now)	{
+
+			ByteBuffer data = buildPacket(nextPacket);
+			int size = data.remaining();
+
+			if(!sender.send(data, client))	{
+				return; //Try the same packet again once the socket has room
+			}
+
+			metrics.onSend(size, false);
+
+			int slot = (int) (nextPacket % windowSize);
+			window[slot] = true;
+			resent[slot] = false;
+			sendTimes[slot] = now;
+			pacer.onSend(now);
+			inFlight++;
+
+			if(log.isEnabled(Log.Level.DEBUG))	{
+				log.debug("Sending packet: " + (nextPacket + 1) + "/" + packetsToSend);
+			}
+
+			nextPacket++;
+			skipResumed();
+			sendParity(now);
+		}
+	}
+
+	/**
+	 * Sends the parity for every group of packets that has been sent in full.
+	 * Parity is never sent again, and a parity packet the socket has no room
+	 * for is skipped.
+	 * @param now The current time in nanoseconds.
+	 * @throws IOException when a packet fails to send or the file cannot be read.
+	 */
+	private void sendParity(long now) throws IOException {
+
+		if(!fec.isEnabled())	{
+			return;
+		}
+
+		//Parity only covers data packets, never the digest
+		long sent = Math.min(nextPacket, numberOfPackets);
+
+		while(parityFrom < sent && (sent - parityFrom >= fec.getGroupSize() || sent == numberOfPackets))	{
+
+			int length = (int) Math.min(fec.getGroupSize(), sent - parityFrom);
+			int parity = Math.min(length, fec.getParityPackets(lossRate));
+
+			for(int i = 0; i < parity; i++)	{
+
+				//Parity i covers every parity'th packet of the group, starting with packet i
+				ByteBuffer data = buildParityPacket(parityFrom + i, parity, (length - i + parity - 1) / parity);
+				int size = data.remaining();
+
+				if(!sender.send(data, client))	{
+					break;
+				}
+
+				metrics.onParity(size);
+
+				pacer.onSend(now);
+			}
+
+			parityFrom += length;
+		}
+	}
+
+	/**
+	 * Builds a parity packet in the session's packet buffer.
+	 * @param first The first packet covered.
+	 * @param stride The distance between the packets covered.
+	 * @param count The number of packets covered.
+	 * @return The packet buffer, ready to be sent.
+	 * @throws IOException when the file cannot be read.
+	 */
+	private ByteBuffer buildParityPacket(long first, int stride, int count) throws IOException {
+
+		packet.clear();
+		packet.put(Protocol.PARITY);
+
+		for(int shift = 48; shift >= 0; shift -= 8)	{
+			packet.put((byte) (first >>> shift));
+		}
+
+		packet.put((byte) stride);
+		packet.putInt(0); //Checksum, filled in once the packet is built
+		packet.put((byte) count);
+
+		//Only the last packet of the file can be short, and it comes last, so the first sets the length
+		int start = packet.position();
+		int length = readChunk(first * chunkSize, packet);
+
+		for(int i = 1; i < count; i++)	{
+			chunk.clear();
+			int read = readChunk((first + (long) i * stride) * chunkSize, chunk);
+			int j = 0;
+
+			for(; j + 8 <= read; j += 8)	{
+				packet.putLong(start + j, packet.getLong(start + j) ^ chunk.getLong(j));
+			}
+
+			for(; j < read; j++)	{
+				packet.put(start + j, (byte) (packet.get(start + j) ^ chunk.get(j)));
+			}
+		}
+
+		packet.position(start + length);
+		packet.flip();
+		checksum.seal(packet);
+
+		return packet;
+	}
+
+	/**
+	 * Re-sends every packet that has gone unacknowledged for longer than the timeout.
+	 * @param now The current time in nanoseconds.
+	 * @param rto The retransmission timeout in nanoseconds.
+	 * @return False if the socket refused a packet, true otherwise.
+	 * @throws IOException when a packet fails to send or the file cannot be read.
+	 */
+	private boolean resendExpired(long now, long rto) throws IOException {
+
+		for(long i = base; i < nextPacket; i++)	{
+			int slot = (int) (i % windowSize);
+
+			if(window[slot] && sendTimes[slot] + rto <= now)	{
+
+				if(!resend(i, now))	{
+					return false;
+				}
+
+				if(retransmitLog.allow(now))	{
+					long suppressed = retransmitLog.getSuppressed();
+					log.info("No acknowledgment for packet: " + (i + 1) + " (" + rtt.toString() + ")"
+							+ ((suppressed > 0) ? " and " + suppressed + " more since the last reported" : ""));
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sends a packet again and marks it as re-sent, so it won't be timed.
+	 * @param packetNumber The number of the packet.
+	 * @param now The current time in nanoseconds.
+	 * @return False if the socket refused the packet, true otherwise.
+	 * @throws IOException when the packet fails to send or the file cannot be read.
+	 */
+	private boolean resend(long packetNumber, long now) throws IOException {
+
+		ByteBuffer data = buildPacket(packetNumber);
+		int size = data.remaining();
+
+		if(!sender.send(data, client))	{
+			return false;
+		}
+
+		metrics.onSend(size, true);
+		retransmissions++;
+
+		int slot = (int) (packetNumber % windowSize);
+		resent[slot] = true;
+		sendTimes[slot] = now;
+
+		return true;
+	}
+
+	/**
+	 * Reads the chunk of the file carried by a packet into the session's
+	 * packet buffer, compressed if that is on and the chunk shrinks enough.
+	 * Any chunk can be built at any time, so retransmissions don't need to
+	 * keep a copy of what was sent. The packet after the last data packet
+	 * carries the digest of them all.
+	 * @param packetNumber The number of the packet being built.
+	 * @return The packet buffer, ready to be sent.
+	 * @throws IOException when the file cannot be read.
+	 */
+	private ByteBuffer buildPacket(long packetNumber) throws IOException {
+
+		packet.clear();
+
+		//First byte is the type, next eight are the packet number, then the checksum and the encoding
+		packet.put((packetNumber == numberOfPackets) ? Protocol.DIGEST : Protocol.DATA);
+		packet.putLong(packetNumber);
+		packet.putInt(0);
+
+		if(packetNumber == numberOfPackets)	{
+
+			//Every chunk has been sent once by now
+			if(digestValue == null)	{
+				digestValue = digest.digest();
+			}
+
+			packet.put(Protocol.RAW);
+			packet.put(digestValue);
+
+		} else if(compressor != null && compressor.shouldTry())	{
+			chunk.clear();
+			readChunk(packetNumber * chunkSize, chunk);
+			chunk.flip();
+			addToDigest(packetNumber, chunk);
+
+			if(compressor.compress(chunk, packet.put(Protocol.DEFLATED)))	{
+				packet.flip();
+				checksum.seal(packet);
+				return packet;
+			}
+
+			packet.put(Protocol.DATA_HEADER_SIZE - 1, Protocol.RAW);
+			packet.put(chunk);
+
+		} else {
+			//The rest is the data
+			packet.put(Protocol.RAW);
+			readChunk(packetNumber * chunkSize, packet);
+
+			int end = packet.position();
+			packet.limit(end).position(Protocol.DATA_HEADER_SIZE);
+			addToDigest(packetNumber, packet);
+			packet.position(end);
+		}
+
+		packet.flip();
+		checksum.seal(packet);
+
+		return packet;
+	}
+
+	/**
+	 * Adds a chunk to the digest if it is the next one, the first time it is sent.
+	 * @param packetNumber The number of the packet carrying the chunk.
+	 * @param data The chunk, from its position to its limit. Left as it was.
+	 */
+	private void addToDigest(long packetNumber, ByteBuffer data) {
+
+		if(digest == null || packetNumber != digested)	{
+			return;
+		}
+
+		int start = data.position();
+		digest.update(data);
+		data.position(start);
+		digested++;
+	}
+
+	/**
+	 * Reads from what is being sent, timing the read.
+	 * @param position Where to start reading.
+	 * @param dst The buffer to read into.
+	 * @return The number of bytes read.
+	 * @throws IOException when the file cannot be read, or is shorter than when it was opened.
+	 */
+	private int readChunk(long position, ByteBuffer dst) throws IOException {
+
+		long expected = Math.min(dst.remaining(), source.size() - position);
+		long started = System.nanoTime();
+		int count = source.read(position, dst);
+		metrics.onRead(System.nanoTime() - started);
+
+		if(count < expected)	{
+			throw new IOException("File was cut short while it was being sent");
+		}
+
+		return count;
+	}
+
+	/**
+	 * Gets the File object that represents the file specified.
+	 * @param filename The path of the file.
+	 * @return The File object representing the file specified.
+	 * @throws IOException when the path is empty or null, if it leads outside the directory
+	 * files are served from, if the file could not be found or if the file is a directory.
+	 */
+	private File getFile(String filename) throws IOException {
+
+		if(Utils.isNullOrEmptyString(filename)) {
+			throw new IOException("Client did not specify filename");
+		}
+
+		File file = Utils.resolveWithin(directory, filename);
+
+		if(!file.exists())	{
+			throw new IOException("File not found");
+		}
+
+		if(file.isDirectory()) {
+			throw new IOException("Client requested directory");
+		}
+
+		return file;
+	}
+
+	/**
+	 * Sends an acknowledgment to the client indicating that the file
+	 * requested can't be served.
+	 * @param reason Protocol.FILE_NOT_FOUND or Protocol.FILE_CHANGED.
+	 * @throws IOException when the packet is unable to be sent.
+	 */
+	private void sendBadFileAcknowledgment(long reason) throws IOException	{
+		ByteBuffer buff = ByteBuffer.allocate(Protocol.RESPONSE_SIZE);
+		buff.put(Protocol.RESPONSE);
+		buff.putLong(reason); //Tell the client no data is coming
+		buff.putInt(packetSize);
+		buff.putLong(0);
+		buff.put((byte) 0);
+		buff.putLong(reason);
+		buff.flip();
+		sender.send(buff, client);
+	}
+
+	/**
+	 * Sends an acknowledgment to the client indicating that the file request
+	 * will be serviced and the size of the file to be transfered in bytes.
+	 * @param numberOfBytes The size of the file requested by the client.
+	 * @param modified The modification time of the file.
+	 * @param fileSize The size of the whole file, which differs from numberOfBytes unless it is sent whole.
+	 * @throws IOException when the packet cannot be sent.
+	 */
+	private void sendFileRequestAcknowledgment(long numberOfBytes, long modified, long fileSize) throws IOException {
+		response = ByteBuffer.allocate(Protocol.RESPONSE_SIZE);
+		response.put(Protocol.RESPONSE);
+		response.putLong(numberOfBytes);
+		response.putInt(packetSize);
+		response.putLong(modified);
+		response.put((byte) (resuming ? 1 : 0));
+		response.putLong(fileSize);
+		response.flip();
+		sender.send(response.duplicate(), client);
+	}
+}
@@ -0,0 +1,137 @@
+package server;
+
+/**
+ * Counts what one session does, adding everything to the server's totals
+ * as it goes. Only the session's own thread updates it; snapshots are read
+ * without locking, so they may be a packet or two behind.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class SessionMetrics {
+
+	private ServerMetrics server;
+	private String client;
+	private String filename;
+	private long started;
+	private boolean ended;
+
+	private long bytesSent;
+	private long packetsSent;
+	private long retransmissions;
+	private long acknowledgments;
+	private long srtt;
+	private long firstSent = -1;
+
+	/**
+	 * Starts counting for a new session.
+	 * @param server The server's metrics.
+	 * @param client The client the session is serving.
+	 * @param filename What the client asked for.
+	 * @param now The time the request arrived in nanoseconds.
+	 */
+	SessionMetrics(ServerMetrics server, String client, String filename, long now) {
+		this.server = server;
+		this.client = client;
+		this.filename = filename;
+		this.started = now;
+
+		server.sessionStarted(this);
+	}
+
+	/**
+	 * Counts a data packet sent.
+	 * @param bytes The size of the packet.
+	 * @param retransmission Whether the packet was sent before.
+	 */
+	void onSend(int bytes, boolean retransmission) {
+
+		if(firstSent < 0)	{
+			firstSent = System.nanoTime();
+			server.timeToFirstByte.record(firstSent - started);
+		}
+
+		bytesSent += bytes;
+		packetsSent++;
+		server.bytesSent.add(bytes);
+		server.packetsSent.increment();
+
+		if(retransmission)	{
+			retransmissions++;
+			server.retransmissions.increment();
+		}
+	}
+
+	/**
+	 * Counts a parity packet sent.
+	 * @param bytes The size of the packet.
+	 */
+	void onParity(int bytes) {
+		bytesSent += bytes;
+		packetsSent++;
+		server.bytesSent.add(bytes);
+		server.packetsSent.increment();
+		server.parityPacketsSent.increment();
+	}
+
+	/**
+	 * Counts an acknowledgment received.
+	 * @param duplicate Whether the packet had already been acknowledged.
+	 * @param outOfOrder Whether an older packet is still waiting to be acknowledged.
+	 */
+	void onAcknowledgment(boolean duplicate, boolean outOfOrder) {
+
+		acknowledgments++;
+		server.acknowledgments.increment();
+
+		if(duplicate)	{
+			server.duplicateAcknowledgments.increment();
+		} else if(outOfOrder)	{
+			server.outOfOrderAcknowledgments.increment();
+		}
+	}
+
+	/**
+	 * Records a round trip time measured.
+	 * @param sample The round trip time in nanoseconds.
+	 * @param smoothed The session's smoothed round trip time after the sample.
+	 */
+	void onRtt(long sample, long smoothed) {
+		srtt = smoothed;
+		server.rtt.record(sample);
+	}
+
+	/**
+	 * Records how long reading a chunk took.
+	 * @param elapsed The time taken in nanoseconds.
+	 */
+	void onRead(long elapsed) {
+		server.diskRead.record(elapsed);
+	}
+
+	/**
+	 * Stops counting for the session. Only the first call counts.
+	 * @param completed Whether the client got everything it asked for.
+	 * @param now The current time in nanoseconds.
+	 */
+	void onEnd(boolean completed, long now) {
+
+		if(ended)	{
+			return;
+		}
+
+		ended = true;
+
+		//Only a transfer that sent something says anything about throughput
+		long elapsed = now - ((firstSent < 0) ? started : firstSent);
+		long rate = (completed && bytesSent > 0 && elapsed > 0) ? (long) (bytesSent * 1e9 / elapsed) : -1;
+
+		server.sessionEnded(this, completed, rate);
+	}
+
+	ServerMetrics.SessionSnapshot snapshot() {
+		return new ServerMetrics.SessionSnapshot(client, filename, System.nanoTime() - started, bytesSent, packetsSent,
+				retransmissions, acknowledgments, srtt);
+	}
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import utils.BlockSignatures;
+import utils.RollingChecksum;
+
+/**
+ * Serves the block signatures of a file (see BlockSignatures) in place of
+ * the file itself. Each entry is computed from its block when the packet
+ * holding it is built, so the file is read once as the signatures go out
+ * instead of all at once before the first packet.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class SignatureChunkSource implements ChunkSource {
+
+	private ChunkSource file;
+	private int blockSize;
+	private long numberOfBlocks;
+	private byte[] header = new byte[BlockSignatures.HEADER_SIZE];
+
+	//Working space for one block and its entry
+	private byte[] block;
+	private ByteBuffer entry = ByteBuffer.allocate(BlockSignatures.ENTRY_SIZE);
+	private MessageDigest strong = BlockSignatures.newStrongDigest();
+
+	/**
+	 * @param file The file whose signatures are served. Stays open, the caller closes it.
+	 * @param modified The modification time of the file.
+	 */
+	public SignatureChunkSource(ChunkSource file, long modified) {
+		this.file = file;
+		this.blockSize = BlockSignatures.chooseBlockSize(file.size());
+		this.numberOfBlocks = BlockSignatures.getNumberOfBlocks(file.size(), blockSize);
+		this.block = new byte[blockSize];
+
+		ByteBuffer buff = ByteBuffer.wrap(header);
+		buff.putLong(file.size());
+		buff.putLong(modified);
+		buff.putInt(blockSize);
+	}
+
+	@Override
+	public long size() {
+		return BlockSignatures.HEADER_SIZE + numberOfBlocks * BlockSignatures.ENTRY_SIZE;
+	}
+
+	@Override
+	public synchronized int read(long position, ByteBuffer dst) throws IOException {
+
+		int total = 0;
+
+		while(dst.hasRemaining() && position < size())	{
+
+			int count;
+
+			if(position < BlockSignatures.HEADER_SIZE)	{
+				count = Math.min(dst.remaining(), BlockSignatures.HEADER_SIZE - (int) position);
+				dst.put(header, (int) position, count);
+
+			} else {
+				long offset = position - BlockSignatures.HEADER_SIZE;
+				int within = (int) (offset % BlockSignatures.ENTRY_SIZE);
+				computeEntry(offset / BlockSignatures.ENTRY_SIZE);
+
+				count = Math.min(dst.remaining(), BlockSignatures.ENTRY_SIZE - within);
+				dst.put(entry.array(), within, count);
+			}
+
+			position += count;
+			total += count;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Reads a block of the file and fills the entry buffer with its signature.
+	 * @param blockNumber The number of the block.
+	 * @throws IOException when the file cannot be read.
+	 */
+	private void computeEntry(long blockNumber) throws IOException {
+
+		ByteBuffer buff = ByteBuffer.wrap(block);
+		int length = file.read(blockNumber * blockSize, buff);
+
+		strong.reset();
+		strong.update(block, 0, length);
+
+		entry.clear();
+		entry.putInt(RollingChecksum.of(block, 0, length));
+		entry.put(strong.digest());
+	}
+
+	@Override
+	public void close() {
+		//The file belongs to the caller
+	}
+}
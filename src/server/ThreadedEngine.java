@@ -0,0 +1,155 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import utils.Log;
+import utils.Protocol;
+
+/**
+ * Drives every session on a thread of its own. One thread reads the
+ * channel and queues each packet for the session of the client that
+ * sent it; the session's thread waits on that queue until its next
+ * deadline. Spreads sessions across cores at the cost of a thread each.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class ThreadedEngine implements TransferEngine, PacketSender {
+
+	//Packets that may wait for a session's thread before more are dropped
+	private static final int INBOX_SIZE = 1024;
+
+	private ServerController controller;
+	private DatagramChannel channel;
+	private Log log;
+
+	//Sessions currently being serviced, keyed by client address and port
+	private ConcurrentMap<SocketAddress, Worker> workers = new ConcurrentHashMap<SocketAddress, Worker>();
+	private ExecutorService sessionThreads = Executors.newCachedThreadPool();
+
+	//Queued packets are acknowledgments and requests, which all fit the smallest packet
+	private BufferPool packets = new BufferPool(Protocol.MIN_PACKET_SIZE, 4096);
+
+	public ThreadedEngine(ServerController controller, DatagramChannel channel, Log log) {
+		this.controller = controller;
+		this.channel = channel;
+		this.log = log;
+	}
+
+	@Override
+	public void run() throws IOException {
+
+		channel.configureBlocking(true);
+
+		ByteBuffer received = ByteBuffer.allocate(Protocol.MAX_PACKET_SIZE);
+
+		try {
+			while(true)	{
+				received.clear();
+				SocketAddress from = channel.receive(received);
+				received.flip();
+
+				//Probes are answered here, so they never need a buffer of their own
+				if(received.hasRemaining() && received.get(0) == Protocol.PROBE)	{
+					controller.answerProbe(received, from, this);
+					continue;
+				}
+
+				//Queued packets need a buffer of their own, from the pool unless they are oversized
+				ByteBuffer packet = (received.remaining() <= packets.getBufferSize()) ? packets.take() : ByteBuffer.allocate(received.remaining());
+				packet.put(received);
+				packet.flip();
+
+				Worker worker = workers.get(from);
+
+				if(worker != null)	{
+
+					//A full queue drops the packet like a full socket would
+					if(!worker.inbox.offer(packet))	{
+						packets.give(packet);
+					}
+
+				} else if(packet.hasRemaining() && packet.get(0) == Protocol.REQUEST)	{
+					worker = new Worker(controller.newSession(packet, from, this));
+					workers.put(from, worker);
+					sessionThreads.execute(worker);
+					packets.give(packet);
+
+				} else {
+					//Left over from a finished session
+					packets.give(packet);
+				}
+			}
+
+		} catch (ClosedChannelException e) {
+			//Closing the channel is how the engine is told to stop
+		}
+	}
+
+	@Override
+	public boolean send(ByteBuffer packet, SocketAddress target) throws IOException {
+		channel.send(packet, target);
+		return true;
+	}
+
+	@Override
+	public void shutdown() {
+		sessionThreads.shutdownNow();
+	}
+
+	/**
+	 * Runs a single session, feeding it packets from its queue
+	 * and firing its timers.
+	 */
+	private class Worker implements Runnable {
+
+		private ServerSession session;
+		//Array backed, so queueing a packet doesn't allocate
+		private BlockingQueue<ByteBuffer> inbox = new ArrayBlockingQueue<ByteBuffer>(INBOX_SIZE);
+
+		Worker(ServerSession session) {
+			this.session = session;
+		}
+
+		@Override
+		public void run() {
+			try {
+
+				session.start(System.nanoTime());
+
+				while(!session.isFinished())	{
+
+					long wait = session.getDeadline() - System.nanoTime();
+					ByteBuffer packet = (wait > 0) ? inbox.poll(wait, TimeUnit.NANOSECONDS) : inbox.poll();
+
+					if(packet != null)	{
+						session.onPacket(packet, System.nanoTime());
+						packets.give(packet);
+					} else {
+						session.onTimer(System.nanoTime());
+					}
+				}
+
+			} catch (IOException e) {
+				log.error("Transfer to " + session.getClient().toString() + " failed: " + e.getMessage(), e);
+			} catch (InterruptedException e) {
+				log.warn("Transfer to " + session.getClient().toString() + " interrupted");
+			} finally {
+				session.close();
+				workers.remove(session.getClient(), this);
+			}
+		}
+	}
+}
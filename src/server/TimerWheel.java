@@ -0,0 +1,123 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel. Deadlines are rounded up to the next tick and
+ * dropped into the bucket for that tick, so scheduling and expiring
+ * are constant time no matter how many timers are pending. Timers fire
+ * at most one tick late and never early.
+ *
+ * There is no cancel; callers that move a deadline simply schedule
+ * again and ignore the stale entry when it fires. Entries are recycled
+ * once they expire, so a busy wheel doesn't allocate.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+class TimerWheel<T> {
+
+	private long tickNanos;
+	private List<List<Entry<T>>> buckets;
+	private int mask;
+
+	//The next tick that has not been expired yet
+	private long currentTick;
+	private int size;
+
+	//Expired entries, ready to be scheduled again
+	private List<Entry<T>> spare = new ArrayList<Entry<T>>();
+
+	private static class Entry<T> {
+		T task;
+		long deadline;
+	}
+
+	/**
+	 * @param tickNanos The length of one tick in nanoseconds.
+	 * @param wheelSize The number of buckets, rounded up to a power of two.
+	 * @param now The current time in nanoseconds.
+	 */
+	public TimerWheel(long tickNanos, int wheelSize, long now) {
+		int buckets = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+
+		this.tickNanos = tickNanos;
+		this.mask = buckets - 1;
+		this.buckets = new ArrayList<List<Entry<T>>>(buckets);
+		this.currentTick = now / tickNanos;
+
+		for(int i = 0; i < buckets; i++) {
+			this.buckets.add(new ArrayList<Entry<T>>());
+		}
+	}
+
+	/**
+	 * Schedules the task to be returned by expire once the deadline has passed.
+	 * @param task The task to schedule.
+	 * @param deadline The time in nanoseconds at which the task is due.
+	 */
+	public void schedule(T task, long deadline) {
+		long tick = Math.max(currentTick, (deadline + tickNanos - 1) / tickNanos);
+		Entry<T> entry = spare.isEmpty() ? new Entry<T>() : spare.remove(spare.size() - 1);
+		entry.task = task;
+		entry.deadline = deadline;
+
+		buckets.get((int) (tick & mask)).add(entry);
+		size++;
+	}
+
+	/**
+	 * Removes every task whose deadline has passed and adds it to expired.
+	 * @param now The current time in nanoseconds.
+	 * @param expired The list the due tasks are added to.
+	 */
+	public void expire(long now, List<T> expired) {
+		long lastTick = now / tickNanos;
+
+		//Nothing is pending, so skip straight to the present
+		if(size == 0) {
+			currentTick = Math.max(currentTick, lastTick + 1);
+			return;
+		}
+
+		//A full turn of the wheel visits every bucket, no need to go further
+		long firstTick = Math.max(currentTick, lastTick - mask);
+
+		for(long tick = firstTick; tick <= lastTick; tick++) {
+			List<Entry<T>> bucket = buckets.get((int) (tick & mask));
+
+			for(int i = bucket.size() - 1; i >= 0; i--) {
+				Entry<T> entry = bucket.get(i);
+
+				//Entries for later turns of the wheel stay put
+				if(entry.deadline <= now) {
+					bucket.set(i, bucket.get(bucket.size() - 1));
+					bucket.remove(bucket.size() - 1);
+					expired.add(entry.task);
+					size--;
+
+					entry.task = null;
+					spare.add(entry);
+				}
+			}
+		}
+
+		currentTick = Math.max(currentTick, lastTick + 1);
+	}
+
+	/**
+	 * Returns how long to wait in nanoseconds before calling expire again,
+	 * or -1 if nothing is scheduled.
+	 * @param now The current time in nanoseconds.
+	 */
+	public long getDelay(long now) {
+
+		if(size == 0) {
+			return -1;
+		}
+
+		return Math.max(0, currentTick * tickNanos - now);
+	}
+}
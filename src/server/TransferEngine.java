@@ -0,0 +1,25 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * An engine receives packets on the server's channel, hands them to the
+ * right ServerSession and fires each session's retransmission timers.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+interface TransferEngine {
+
+	/**
+	 * Services clients until the engine is shut down.
+	 * @throws IOException when the channel fails.
+	 */
+	void run() throws IOException;
+
+	/**
+	 * Stops the engine and abandons every session in progress.
+	 */
+	void shutdown();
+}
@@ -0,0 +1,66 @@
+package utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Layout of the block signatures the server sends for a delta transfer.
+ * The file is cut into equal blocks (the last may be short) and each block
+ * gets a weak rolling checksum, to find candidates quickly, and an MD5, to
+ * confirm them.
+ *
+ * 0 - 7 -- File size
+ * 8 - 15 -- Modification time of the file
+ * 16 - 19 -- Block size
+ * 20 - end -- One entry per block:
+ *     0 - 3 -- RollingChecksum of the block
+ *     4 - 19 -- MD5 of the block
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class BlockSignatures {
+
+	public static final int HEADER_SIZE = 20;
+	public static final int STRONG_SIZE = 16;
+	public static final int ENTRY_SIZE = 4 + STRONG_SIZE;
+
+	private static final int MIN_BLOCK_SIZE = 1024;
+	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * Returns the block size to use for a file. Grows with the square root
+	 * of the size, as rsync does, so the signatures stay small next to the
+	 * file while a change only costs a block or two of literal data.
+	 * @param fileSize The size of the file in bytes.
+	 */
+	public static int chooseBlockSize(long fileSize) {
+
+		long size = (long) Math.sqrt(fileSize);
+		size = (size + MIN_BLOCK_SIZE - 1) / MIN_BLOCK_SIZE * MIN_BLOCK_SIZE;
+
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**
+	 * Returns the number of blocks in a file.
+	 * @param fileSize The size of the file in bytes.
+	 * @param blockSize The size of a block.
+	 */
+	public static long getNumberOfBlocks(long fileSize, int blockSize) {
+		return Utils.getNumberOfPacketsToSend(fileSize, blockSize);
+	}
+
+	/**
+	 * Returns a new digest for the strong checksum.
+	 */
+	public static MessageDigest newStrongDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform is required to provide MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts values in buckets that double in width, so recording a value is a
+ * couple of atomic increments with no allocation and no lock, whatever the
+ * range of the values. Percentiles are only as precise as the bucket they
+ * fall in, which is enough to spot a latency that has doubled.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class Histogram {
+
+	//Bucket 0 holds zero, bucket k holds values from 2^(k-1) up to 2^k
+	private static final int BUCKETS = 64;
+
+	private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value. Negative values are counted as zero.
+	 * @param value The value.
+	 */
+	public void record(long value) {
+
+		if(value < 0)	{
+			value = 0;
+		}
+
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+		count.increment();
+		sum.add(value);
+
+		long known = max.get();
+
+		while(value > known && !max.compareAndSet(known, value))	{
+			known = max.get();
+		}
+	}
+
+	/**
+	 * Returns a copy of the histogram as it is now. Values recorded while the
+	 * copy is being made may or may not be in it.
+	 */
+	public Snapshot snapshot() {
+
+		long[] counts = new long[BUCKETS];
+
+		for(int i = 0; i < BUCKETS; i++)	{
+			counts[i] = buckets.get(i);
+		}
+
+		return new Snapshot(counts, count.sum(), sum.sum(), max.get());
+	}
+
+	/**
+	 * A histogram at one moment, which no longer changes.
+	 */
+	public static class Snapshot {
+		private long[] buckets;
+		private long count;
+		private long sum;
+		private long max;
+
+		Snapshot(long[] buckets, long count, long sum, long max) {
+			this.buckets = buckets;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the mean of the values, or 0 if there are none.
+		 */
+		public double getMean() {
+			return (count == 0) ? 0 : (double) sum / count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns roughly the value that the fraction of values specified are
+		 * no greater than: the middle of the bucket it falls in, or 0 if there
+		 * are no values.
+		 * @param fraction Between 0 and 1, 0.99 for the 99th percentile.
+		 */
+		public long getPercentile(double fraction) {
+
+			long total = 0;
+
+			for(long bucket : buckets)	{
+				total += bucket;
+			}
+
+			long rank = (long) Math.ceil(fraction * total);
+			long seen = 0;
+
+			for(int i = 0; i < BUCKETS; i++)	{
+				seen += buckets[i];
+
+				if(seen >= rank && buckets[i] > 0)	{
+
+					if(i == 0)	{
+						return 0;
+					}
+
+					//Never more than the largest value actually seen
+					long low = 1L << (i - 1);
+					return Math.min(max, low + low / 2);
+				}
+			}
+
+			return 0;
+		}
+
+		/**
+		 * Returns a summary with the values divided by the unit specified,
+		 * such as 1000000 to show nanoseconds as milliseconds.
+		 * @param unit What to divide every value by.
+		 */
+		public String toString(double unit) {
+			return String.format("n=%d mean=%.2f p50=%.2f p99=%.2f max=%.2f", count, getMean() / unit,
+					getPercentile(0.5) / unit, getPercentile(0.99) / unit, max / unit);
+		}
+
+		@Override
+		public String toString() {
+			return toString(1);
+		}
+	}
+}
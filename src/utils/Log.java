@@ -0,0 +1,257 @@
+package utils;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Diagnostic log that never makes the thread logging wait. Records go into
+ * a fixed size ring that any thread can add to without taking a lock, and a
+ * thread of the log's own drains the ring in batches to a LogSink. If the
+ * ring is full the record is dropped and counted rather than holding up a
+ * transfer. Records below the log's level are dropped before they are made.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class Log {
+
+	//Records the ring holds, a power of two
+	private static final int RING_SIZE = 8192;
+
+	//Most records handed to the sink at once
+	private static final int BATCH_SIZE = 512;
+
+	//How long the log's thread sleeps when the ring is empty
+	private static final long DRAIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+	/**
+	 * How much a record matters, least first.
+	 */
+	public enum Level {
+		//Per packet detail, off unless asked for
+		DEBUG,
+		INFO,
+		WARN,
+		ERROR
+	}
+
+	/**
+	 * One logged message.
+	 */
+	public static class Record {
+		private long time;
+		private Level level;
+		private String message;
+
+		Record(long time, Level level, String message) {
+			this.time = time;
+			this.level = level;
+			this.message = message;
+		}
+
+		/**
+		 * Returns when the record was logged, in milliseconds since the epoch.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public Level getLevel() {
+			return level;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	private LogSink sink;
+	private volatile Level level;
+
+	//Producers claim slots by moving tail, the log's thread frees them by moving head
+	private AtomicReferenceArray<Record> ring = new AtomicReferenceArray<Record>(RING_SIZE);
+	private AtomicLong tail = new AtomicLong();
+	private volatile long head;
+	private AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean closed;
+	private Thread drainer;
+
+	/**
+	 * Starts a log at INFO.
+	 * @param sink Where the records go.
+	 */
+	public Log(LogSink sink) {
+		this(sink, Level.INFO);
+	}
+
+	/**
+	 * @param sink Where the records go.
+	 * @param level The least a record must matter to be kept.
+	 */
+	public Log(LogSink sink, Level level) {
+		this.sink = sink;
+		this.level = level;
+
+		drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "Log");
+
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Returns true if records of the level specified are kept. Worth checking
+	 * before building a message that costs something to make.
+	 * @param level The level.
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(this.level) >= 0;
+	}
+
+	/**
+	 * Sets the least a record must matter to be kept.
+	 * @param level The level.
+	 */
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	public void debug(String message) {
+		log(Level.DEBUG, message);
+	}
+
+	public void info(String message) {
+		log(Level.INFO, message);
+	}
+
+	public void warn(String message) {
+		log(Level.WARN, message);
+	}
+
+	public void error(String message) {
+		log(Level.ERROR, message);
+	}
+
+	/**
+	 * Logs an error, along with the stack trace of its cause when DEBUG is on.
+	 * @param message What went wrong.
+	 * @param cause The exception behind it.
+	 */
+	public void error(String message, Throwable cause) {
+		log(Level.ERROR, message);
+
+		if(isEnabled(Level.DEBUG))	{
+			StringWriter trace = new StringWriter();
+			cause.printStackTrace(new PrintWriter(trace));
+			log(Level.DEBUG, trace.toString().trim());
+		}
+	}
+
+	/**
+	 * Adds a record to the ring, or drops it if the ring is full or the
+	 * record doesn't matter enough.
+	 * @param level How much the record matters.
+	 * @param message The message.
+	 */
+	public void log(Level level, String message) {
+
+		if(!isEnabled(level) || closed)	{
+			return;
+		}
+
+		long slot;
+
+		do {
+			slot = tail.get();
+
+			if(slot - head >= RING_SIZE)	{
+				dropped.incrementAndGet();
+				return;
+			}
+
+		} while(!tail.compareAndSet(slot, slot + 1));
+
+		ring.set((int) (slot & (RING_SIZE - 1)), new Record(System.currentTimeMillis(), level, message));
+	}
+
+	/**
+	 * Returns how many records were dropped because the ring was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Hands everything logged so far to the sink, stops the log's thread and
+	 * closes the sink. Records logged afterwards are ignored.
+	 */
+	public void close() {
+
+		closed = true;
+		LockSupport.unpark(drainer);
+
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs on the log's own thread, moving records from the ring to the sink.
+	 */
+	private void drain() {
+
+		List<Record> batch = new ArrayList<Record>(BATCH_SIZE);
+
+		while(true)	{
+			boolean stopping = closed;
+
+			//A slot that has been claimed but not yet filled ends the batch, so order is kept
+			while(batch.size() < BATCH_SIZE)	{
+				int index = (int) (head & (RING_SIZE - 1));
+				Record record = ring.get(index);
+
+				if(record == null)	{
+					break;
+				}
+
+				ring.set(index, null);
+				head++;
+				batch.add(record);
+			}
+
+			if(!batch.isEmpty())	{
+				sink.write(batch);
+				batch.clear();
+				continue;
+			}
+
+			if(stopping)	{
+				break;
+			}
+
+			LockSupport.parkNanos(DRAIN_INTERVAL);
+		}
+
+		if(dropped.get() > 0)	{
+			List<Record> last = new ArrayList<Record>(1);
+			last.add(new Record(System.currentTimeMillis(), Level.WARN, "Log records dropped: " + dropped.get()));
+			sink.write(last);
+		}
+
+		sink.close();
+	}
+}
@@ -0,0 +1,25 @@
+package utils;
+
+import java.util.List;
+
+/**
+ * Where a Log's records end up. Records are handed over in batches from the
+ * Log's own thread, never from the threads doing the transfers.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public interface LogSink {
+
+	/**
+	 * Writes a batch of records, oldest first.
+	 * @param records The records. Only valid for the duration of the call.
+	 */
+	void write(List<Log.Record> records);
+
+	/**
+	 * Called once no more records will be written.
+	 */
+	void close();
+}
@@ -0,0 +1,110 @@
+package utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What every set of metrics can do besides count: hand out snapshots at
+ * regular intervals, and appear as an MBean so JMX tools can read it.
+ * A subclass named X must implement an interface named XMBean, as JMX
+ * expects of a standard MBean.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public abstract class Metrics<S> {
+
+	//Domain of the names metrics are registered under
+	public static final String JMX_DOMAIN = "filetransfer";
+
+	//One thread runs every periodic report, started the first time one is asked for
+	private static ScheduledExecutorService reporter;
+
+	private ObjectName registeredAs;
+
+	/**
+	 * Returns the metrics as they are now.
+	 */
+	public abstract S snapshot();
+
+	/**
+	 * Hands a snapshot to the listener at a fixed rate until the returned
+	 * future is cancelled.
+	 * @param listener The listener.
+	 * @param period The time between snapshots.
+	 * @param unit The unit of period.
+	 */
+	public ScheduledFuture<?> report(final SnapshotListener<S> listener, long period, TimeUnit unit) {
+
+		return getReporter().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				listener.onSnapshot(snapshot());
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server, replacing any
+	 * registered under the same name.
+	 * @param properties The key properties of the name, such as "type=Server,port=9876".
+	 * @throws JMException when the name is not valid or registration fails.
+	 */
+	public synchronized void register(String properties) throws JMException {
+
+		unregister();
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(JMX_DOMAIN + ":" + properties);
+
+		if(server.isRegistered(name))	{
+			server.unregisterMBean(name);
+		}
+
+		server.registerMBean(this, name);
+		registeredAs = name;
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if they were registered.
+	 */
+	public synchronized void unregister() {
+
+		if(registeredAs == null)	{
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+		} catch (JMException e) {
+			//Already gone
+		}
+
+		registeredAs = null;
+	}
+
+	private static synchronized ScheduledExecutorService getReporter() {
+
+		if(reporter == null)	{
+			reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "Metrics");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return reporter;
+	}
+}
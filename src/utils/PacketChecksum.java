@@ -0,0 +1,57 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * The CRC32C carried by data, parity and digest packets. It covers the
+ * whole packet apart from the four bytes it is stored in, so a damaged
+ * packet number is caught as well as damaged data. The UDP checksum is
+ * optional over IPv4 and too weak to trust for large transfers.
+ *
+ * Not thread safe, each sender or receiver keeps its own.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class PacketChecksum {
+
+	private CRC32C crc = new CRC32C();
+
+	/**
+	 * Stores the checksum of a packet in its header.
+	 * @param packet The packet, from its position to its limit.
+	 */
+	public void seal(ByteBuffer packet) {
+		packet.putInt(packet.position() + Protocol.CHECKSUM_OFFSET, compute(packet));
+	}
+
+	/**
+	 * Returns true if the checksum in a packet's header matches its contents.
+	 * @param packet The packet, from its position to its limit. Left as it was.
+	 */
+	public boolean verify(ByteBuffer packet) {
+		return packet.remaining() >= Protocol.CHECKSUM_OFFSET + 4
+				&& packet.getInt(packet.position() + Protocol.CHECKSUM_OFFSET) == compute(packet);
+	}
+
+	/**
+	 * Returns the checksum of a packet, skipping the bytes it is stored in.
+	 * @param packet The packet, from its position to its limit. Left as it was.
+	 */
+	private int compute(ByteBuffer packet) {
+
+		int start = packet.position();
+		int end = packet.limit();
+
+		crc.reset();
+		packet.limit(start + Protocol.CHECKSUM_OFFSET);
+		crc.update(packet);
+		packet.limit(end).position(start + Protocol.CHECKSUM_OFFSET + 4);
+		crc.update(packet);
+		packet.position(start);
+
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,226 @@
+package utils;
+
+/**
+ * Packet layouts shared by the client and the server.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class Protocol {
+
+	//Rules of engagement:
+
+	//Client sends request for a file
+	//Server acknowledges receipt of request with either file not found or
+	//a packet indicating how many bytes will be sent to transfer the file
+	//The client will then listen for that many packets and send back acknowledgments.
+	//Up to windowSize packets may be unacknowledged at once; the client accepts them
+	//in any order and only the packets that are never acknowledged get re-sent.
+
+	//The server keeps one session per client address and port, so several clients
+	//can transfer at once. The first byte of every packet is its type so that a
+	//stray acknowledgment is never mistaken for a new file request.
+
+	//Packet size is negotiated per transfer. The client asks for the largest
+	//packet it can take and the server answers with the size it will use, which
+	//is never larger. Before asking, the client may probe the path by sending
+	//PROBE packets of several sizes; the server echoes each one back unchanged,
+	//so the largest size to make the round trip is the largest the path carries.
+
+	//Step 0 (optional): Path probing, either direction
+
+	//Probe packet
+	//Probed size in bytes
+	//0 -- PROBE
+	//1 - 4 -- Size of this packet
+	//5 - end -- Padding
+
+	//Step 1: File request and file size are confirmed
+
+	//Client file name request
+	//Up to MIN_PACKET_SIZE bytes
+	//0 -- REQUEST
+	//1 - 4 -- Largest packet the client can receive
+	//5 -- What to send: WHOLE_FILE, SIGNATURES, RANGES or BATCH
+	//6 - 7 -- Length of the file name (n)
+	//8 - 7+n -- File name, or for BATCH the files and directories wanted, one per line
+	//WHOLE_FILE, optional resume set when the client holds part of the file from an earlier attempt:
+	//+0 - 7 -- File size the server gave last time
+	//+8 - 15 -- Modification time the server gave last time
+	//+16 - 19 -- Packet size used last time
+	//+20 - 27 -- First packet the client is missing
+	//+28 - end -- Bitmap of packets after it the client has, lowest bit first
+	//SIGNATURES, nothing more. The server sends the file's block signatures
+	//(see BlockSignatures) in place of the file.
+	//RANGES, the byte ranges to send, one after the other:
+	//+0 - 7 -- File size the signatures were taken from
+	//+8 - 15 -- Modification time the signatures were taken from
+	//+16 - end -- Ranges, each an 8 byte offset followed by an 8 byte length
+	//A file size of ANY_VERSION in place of the signatures' takes the file as it
+	//is now. With no ranges this just asks for the file's size and modification time.
+	//BATCH, flags:
+	//+0 -- RECURSIVE to include the files in subdirectories of the directories named
+
+	//Server file request response packet
+	//30 bytes
+	//0 -- RESPONSE
+	//1 - 8 -- Number of bytes to be sent (FILE_NOT_FOUND or FILE_CHANGED if none)
+	//9 - 12 -- Size of the data packets that will be sent
+	//13 - 20 -- Modification time of the file
+	//21 -- 1 if the resume set was accepted, 0 if the whole file will be sent
+	//22 - 29 -- Size of the whole file, which is more than will be sent for RANGES,
+	//or the size of the manifest for BATCH
+
+	//The server accepts a resume set only if the file size, modification time
+	//and packet size all match, and then sends only the packets the client is
+	//missing. Packets past the end of the bitmap count as missing.
+
+	//A delta transfer updates an older copy of a file the client already has.
+	//The client asks for the file's SIGNATURES, finds every block it already
+	//has anywhere in its copy, then asks for the RANGES it is missing, in as
+	//many requests as it takes. Ranges are refused with FILE_CHANGED if the
+	//file is no longer the one the signatures came from.
+
+	//A parallel transfer fetches one file over several sessions at once. The
+	//client learns the file's size and modification time from a RANGES request
+	//for ANY_VERSION with no ranges, then opens one session per stream, each
+	//asking for a slice of the file as RANGES of that exact version.
+
+	//A batch sends many files over one session as a single stream, so there is
+	//no handshake or slow start between files. The stream starts with a manifest,
+	//then holds the contents of every file it lists, one after the other.
+
+	//Batch manifest
+	//0 - 3 -- Number of files
+	//Then for each file:
+	//+0 - 1 -- Length of the path (n)
+	//+2 - 1+n -- Path, relative to the server's directory like the names asked for
+	//+2+n - 9+n -- Size of the file
+	//+10+n - 17+n -- Modification time of the file
+
+	//Step 2: Server receives client acceptance, begins to send packets
+
+	//Server data packet structure
+	//Negotiated packet size
+	//0 -- DATA
+	//1 - 8 -- PacketNumber
+	//9 - 12 -- CRC32C of the rest of the packet
+	//13 -- Encoding, RAW or DEFLATED
+	//14 - end -- Data, or the data deflated on its own in zlib format
+
+	//Server parity packet, optional, never acknowledged or sent again
+	//Up to the negotiated packet size
+	//0 -- PARITY
+	//1 - 7 -- Packet number of the first data packet covered
+	//8 -- Distance between the data packets covered
+	//9 - 12 -- CRC32C of the rest of the packet
+	//13 -- Number of data packets covered
+	//14 - end -- XOR of the data of the packets covered, each padded with zeros
+
+	//Server digest packet, sent after the last data packet unless the transfer resumes an earlier attempt
+	//46 bytes
+	//0 -- DIGEST
+	//1 - 8 -- Packet number, one past the last data packet
+	//9 - 12 -- CRC32C of the rest of the packet
+	//13 -- RAW
+	//14 - 45 -- SHA-256 of all the data sent, in order
+
+	//A packet whose CRC32C doesn't match is dropped like a lost one, so it is
+	//never acknowledged and the server sends it again. The digest is numbered
+	//and acknowledged like a data packet, so it is re-sent until it arrives. The
+	//server hashes each chunk as it first sends it and the client as its window
+	//moves past it, so neither reads the file again to check the transfer.
+	//Acknowledgments are checked too, as a damaged bitmap could claim packets
+	//that never arrived.
+
+	//Client acknowledgment packet
+	//Up to MIN_PACKET_SIZE bytes
+	//0 -- ACK
+	//1 - 8 -- First packet not yet received, every packet before it has been
+	//9 - 12 -- CRC32C of the rest of the packet
+	//13 - 20 -- Packet whose arrival this acknowledgment was sent for
+	//21 - 24 -- Microseconds between that packet arriving and this being sent
+	//25 - 26 -- Packets rebuilt from parity since the last acknowledgment
+	//27 - end -- Bitmap of packets after the first missing one the client has, lowest bit first
+
+	//One acknowledgment covers every packet received so far, so the client only
+	//sends one for every few packets, or once a short delay has passed, and at
+	//once when a packet arrives out of order or twice. The server takes a packet
+	//as lost when the bitmap shows enough packets after it arrived, and sends it
+	//again without waiting for its timeout.
+
+	//Packet numbers are 64 bits wide so that no file size a long can hold
+	//overflows them, whatever the packet size. Parity packets only have room
+	//for 56 bits, which still covers 2^63 bytes of MIN_PACKET_SIZE packets.
+
+	public static final byte REQUEST = 1;
+	public static final byte RESPONSE = 2;
+	public static final byte DATA = 3;
+	public static final byte ACK = 4;
+	public static final byte PROBE = 5;
+	public static final byte PARITY = 6;
+	public static final byte DIGEST = 7;
+
+	//What a request asks for
+	public static final byte WHOLE_FILE = 0;
+	public static final byte SIGNATURES = 1;
+	public static final byte RANGES = 2;
+	public static final byte BATCH = 3;
+
+	//Flag in a batch request
+	public static final byte RECURSIVE = 1;
+
+	//How the data in a data packet is encoded
+	public static final byte RAW = 0;
+	public static final byte DEFLATED = 1;
+
+	//File sizes in a response that mean nothing will be sent
+	public static final long FILE_NOT_FOUND = -1;
+	public static final long FILE_CHANGED = -2;
+
+	//File size in a RANGES request that accepts whatever version the server has
+	public static final long ANY_VERSION = -1;
+
+	//Every implementation must be able to send and receive packets this large
+	public static final int MIN_PACKET_SIZE = 512;
+
+	//Largest payload a UDP datagram can carry over IPv4
+	public static final int MAX_PACKET_SIZE = 65507;
+
+	//Largest packet that fits a 1500 byte Ethernet frame without fragmenting
+	public static final int DEFAULT_PACKET_SIZE = 1472;
+
+	//Bytes in front of the file data in a data packet, and where the checksum is in every packet that has one
+	public static final int DATA_HEADER_SIZE = 14;
+	public static final int CHECKSUM_OFFSET = 9;
+
+	public static final int REQUEST_HEADER_SIZE = 8;
+	public static final int RESUME_HEADER_SIZE = 28;
+	public static final int RANGES_HEADER_SIZE = 16;
+	public static final int RANGE_SIZE = 16;
+	public static final int RESPONSE_SIZE = 30;
+	public static final int ACK_HEADER_SIZE = 27;
+
+	//Largest window an acknowledgment that fits MIN_PACKET_SIZE can describe: the first
+	//missing packet, and a bit in the bitmap for every packet after it
+	public static final int MAX_WINDOW_SIZE = 1 + (MIN_PACKET_SIZE - ACK_HEADER_SIZE) * 8;
+	public static final int PARITY_HEADER_SIZE = 14;
+	public static final int DIGEST_SIZE = 32;
+	public static final int PROBE_HEADER_SIZE = 5;
+	public static final int MANIFEST_HEADER_SIZE = 4;
+	public static final int MANIFEST_ENTRY_SIZE = 18;
+
+	//Packet sizes tried when probing, largest first
+	public static final int[] PROBE_SIZES = { MAX_PACKET_SIZE, 32768, 16384, 8972, DEFAULT_PACKET_SIZE, 1232, MIN_PACKET_SIZE };
+
+	/**
+	 * Returns the type of the packet in the buffer specified,
+	 * or 0 if the packet is empty.
+	 * @param data The contents of the packet.
+	 * @param length The number of bytes in the packet.
+	 */
+	public static byte getType(byte[] data, int length) {
+		return (length > 0) ? data[0] : 0;
+	}
+}
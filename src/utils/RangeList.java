@@ -0,0 +1,112 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * An ordered list of byte ranges of a file, sent one after another as if
+ * they were a single file. Translates positions in that stream back to
+ * positions in the file.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class RangeList {
+
+	private long[] offsets = new long[8];
+	private long[] lengths = new long[8];
+
+	//Position of each range in the stream
+	private long[] starts = new long[8];
+
+	private int count;
+	private long size;
+
+	/**
+	 * Adds a range after the last one, joining it to the last one if they touch.
+	 * @param offset The offset in the file of the first byte.
+	 * @param length The number of bytes, at least 1.
+	 */
+	public void add(long offset, long length) {
+
+		if(offset < 0 || length < 1)	{
+			throw new IllegalArgumentException("Invalid range: " + offset + " + " + length);
+		}
+
+		if(count > 0 && offsets[count - 1] + lengths[count - 1] == offset)	{
+			lengths[count - 1] += length;
+			size += length;
+			return;
+		}
+
+		if(count == offsets.length)	{
+			offsets = Arrays.copyOf(offsets, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+			starts = Arrays.copyOf(starts, count * 2);
+		}
+
+		offsets[count] = offset;
+		lengths[count] = length;
+		starts[count] = size;
+		count++;
+		size += length;
+	}
+
+	/**
+	 * Returns the number of ranges.
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * Returns the total number of bytes in all the ranges.
+	 */
+	public long size() {
+		return size;
+	}
+
+	public long getOffset(int range) {
+		return offsets[range];
+	}
+
+	public long getLength(int range) {
+		return lengths[range];
+	}
+
+	/**
+	 * Returns the position in the stream of the first byte of a range.
+	 * @param range The index of the range.
+	 */
+	public long getStart(int range) {
+		return starts[range];
+	}
+
+	/**
+	 * Returns the index of the range holding a position in the stream.
+	 * @param position A position between 0 and size() - 1.
+	 */
+	public int find(long position) {
+
+		int index = Arrays.binarySearch(starts, 0, count, position);
+
+		//Not a range start, so it falls in the range before the insertion point
+		return (index >= 0) ? index : -index - 2;
+	}
+
+	/**
+	 * Returns true if every range lies inside a file of the size specified.
+	 * @param fileSize The size of the file in bytes.
+	 */
+	public boolean fitsWithin(long fileSize) {
+
+		for(int i = 0; i < count; i++)	{
+
+			if(offsets[i] + lengths[i] > fileSize || offsets[i] + lengths[i] < 0)	{
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
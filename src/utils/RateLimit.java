@@ -0,0 +1,50 @@
+package utils;
+
+/**
+ * Lets a message through at most once per interval and counts the ones it
+ * holds back, so a message that can come once per packet doesn't flood the
+ * log when things go wrong. Not safe to share between threads; give each
+ * session its own.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class RateLimit {
+
+	private long interval;
+	private long next;
+	private long suppressed;
+
+	/**
+	 * @param interval The least time between messages, in nanoseconds.
+	 */
+	public RateLimit(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Returns true if a message may be logged now. If so, getSuppressed says
+	 * how many were held back since the last one.
+	 * @param now The time now, from System.nanoTime.
+	 */
+	public boolean allow(long now) {
+
+		if(next != 0 && now - next < 0)	{
+			suppressed++;
+			return false;
+		}
+
+		next = now + interval;
+		return true;
+	}
+
+	/**
+	 * Returns and resets the count of messages held back.
+	 */
+	public long getSuppressed() {
+		long count = suppressed;
+		suppressed = 0;
+		return count;
+	}
+}
@@ -0,0 +1,69 @@
+package utils;
+
+/**
+ * The weak checksum rsync uses to find matching blocks. It can be moved
+ * along a file one byte at a time in constant time, so every offset of
+ * a file can be checked against a table of block checksums cheaply. A
+ * match still has to be confirmed with a strong checksum.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class RollingChecksum {
+
+	private int a;
+	private int b;
+	private int length;
+
+	/**
+	 * Computes the checksum of a block from scratch.
+	 * @param data The array holding the block.
+	 * @param offset Where in the array the block starts.
+	 * @param length The number of bytes in the block.
+	 */
+	public void reset(byte[] data, int offset, int length) {
+
+		a = 0;
+		b = 0;
+		this.length = length;
+
+		for(int i = 0; i < length; i++)	{
+			int x = data[offset + i] & 0xFF;
+			a += x;
+			b += (length - i) * x;
+		}
+
+		a &= 0xFFFF;
+		b &= 0xFFFF;
+	}
+
+	/**
+	 * Moves the block forward by one byte.
+	 * @param out The byte leaving the front of the block.
+	 * @param in The byte joining the end of the block.
+	 */
+	public void roll(byte out, byte in) {
+		a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+		b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+	}
+
+	/**
+	 * Returns the checksum of the current block.
+	 */
+	public int getValue() {
+		return a | (b << 16);
+	}
+
+	/**
+	 * Returns the checksum of a block.
+	 * @param data The array holding the block.
+	 * @param offset Where in the array the block starts.
+	 * @param length The number of bytes in the block.
+	 */
+	public static int of(byte[] data, int offset, int length) {
+		RollingChecksum checksum = new RollingChecksum();
+		checksum.reset(data, offset, length);
+		return checksum.getValue();
+	}
+}
@@ -0,0 +1,118 @@
+package utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a smoothed round trip time and its variation, and derives the
+ * retransmission timeout from them the way TCP does (RFC 6298).
+ *
+ * Callers follow Karn's rule: only packets that were sent exactly once
+ * are sampled, because an acknowledgment for a re-sent packet can't be
+ * matched to the send it answers. Every timeout doubles the RTO until
+ * a fresh sample arrives.
+ *
+ * All times are in nanoseconds.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class RttEstimator {
+
+	//Timeout used before the first sample arrives
+	public static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+
+	//Bounds on the timeout, backed off or not
+	public static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(10);
+	public static final long MAX_RTO = TimeUnit.SECONDS.toNanos(60);
+
+	//How many timeouts in a row before the other side is considered gone
+	public static final int MAX_BACKOFFS = 8;
+
+	//Least time the other side must also have been silent before it is given up on. Backed
+	//off timeouts alone run out in a few seconds on a LAN, which a short stall can outlast
+	public static final long GIVE_UP_AFTER = TimeUnit.SECONDS.toNanos(20);
+
+	private long srtt;
+	private long rttvar;
+	private boolean sampled;
+	private int backoffs;
+
+	/**
+	 * Feeds in a round trip time measured from a packet that was only sent once.
+	 * Clears any backoff, since the other side is evidently responding.
+	 * @param rtt The time between sending the packet and receiving its acknowledgment.
+	 */
+	public synchronized void addSample(long rtt) {
+
+		rtt = Math.max(1, rtt);
+
+		if(!sampled) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+			sampled = true;
+		} else {
+			rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+			srtt += (rtt - srtt) / 8;
+		}
+
+		backoffs = 0;
+	}
+
+	/**
+	 * Doubles the timeout after a retransmission timer expired.
+	 * @return True if the other side should still be waited on, false once
+	 * it has missed MAX_BACKOFFS timeouts in a row.
+	 */
+	public synchronized boolean backoff() {
+		return (++backoffs < MAX_BACKOFFS);
+	}
+
+	/**
+	 * Clears the backoff without taking a sample, for when the other side
+	 * has shown it is alive but the packet can't be timed.
+	 */
+	public synchronized void resetBackoff() {
+		backoffs = 0;
+	}
+
+	/**
+	 * Returns the current retransmission timeout, including any backoff.
+	 */
+	public synchronized long getRto() {
+
+		long rto = sampled ? srtt + Math.max(MIN_RTO, 4 * rttvar) : INITIAL_RTO;
+
+		for(int i = 0; i < backoffs && rto < MAX_RTO; i++) {
+			rto *= 2;
+		}
+
+		return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+	}
+
+	/**
+	 * Returns the smoothed round trip time, or 0 before the first sample.
+	 */
+	public synchronized long getSrtt() {
+		return srtt;
+	}
+
+	/**
+	 * Returns the round trip time variation, or 0 before the first sample.
+	 */
+	public synchronized long getRttVar() {
+		return rttvar;
+	}
+
+	/**
+	 * Returns how many timeouts in a row have happened since the last sample.
+	 */
+	public synchronized int getBackoffs() {
+		return backoffs;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("srtt=%.2fms rttvar=%.2fms rto=%.2fms", srtt / 1e6, rttvar / 1e6, getRto() / 1e6);
+	}
+}
@@ -0,0 +1,18 @@
+package utils;
+
+/**
+ * Handed a snapshot of some metrics at regular intervals.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public interface SnapshotListener<S> {
+
+	/**
+	 * Called on the thread shared by every metrics report, so it should not
+	 * take long.
+	 * @param snapshot The metrics as they were when the snapshot was taken.
+	 */
+	void onSnapshot(S snapshot);
+}
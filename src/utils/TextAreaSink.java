@@ -0,0 +1,74 @@
+package utils;
+
+import java.util.List;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+
+/**
+ * Shows log records in a text area. Each batch is appended in one go on the
+ * Swing event thread, and the oldest lines are trimmed so the area doesn't
+ * grow without bound over a long session.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class TextAreaSink implements LogSink {
+
+	//Most characters kept in the text area
+	private static final int MAX_CHARS = 1 << 20;
+
+	private JTextArea area;
+
+	/**
+	 * @param area The text area to append to.
+	 */
+	public TextAreaSink(JTextArea area) {
+		this.area = area;
+	}
+
+	@Override
+	public void write(List<Log.Record> records) {
+
+		final StringBuilder text = new StringBuilder();
+
+		for(Log.Record record : records)	{
+
+			if(record.getLevel().compareTo(Log.Level.WARN) >= 0)	{
+				text.append(record.getLevel()).append(": ");
+			}
+
+			text.append(record.getMessage()).append('\n');
+		}
+
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				area.append(text.toString());
+				trim();
+			}
+		});
+	}
+
+	/**
+	 * Drops whole lines from the start of the text area until it holds no
+	 * more than MAX_CHARS. Called on the event thread.
+	 */
+	private void trim() {
+
+		String text = area.getText();
+		int excess = text.length() - MAX_CHARS;
+
+		if(excess <= 0)	{
+			return;
+		}
+
+		int end = text.indexOf('\n', excess);
+		area.replaceRange("", 0, (end < 0) ? text.length() : end + 1);
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -5,9 +5,10 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketOption;
 import java.net.SocketTimeoutException;
-
-import javax.swing.JTextArea;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Any helpful utility methods go in here!
@@ -18,8 +19,8 @@ import javax.swing.JTextArea;
 
 public class Utils {
 	
-	//Max amount of bytes that can be in one packet
-	private static final double MAX_DATA = 1020.0;
+	//Default number of packets that may be in flight before the oldest is acknowledged
+	public static final int DEFAULT_WINDOW_SIZE = 64;
 	
 	/**
 	 * Returns true if str is either null or the empty string.
@@ -30,40 +31,109 @@ public class Utils {
 	
 	/**
 	 * Returns the number of packets required to send the specified file.
-	 * @param file The file to be sent.
+	 * @param numberOfBytes The size of the file to send in bytes.
+	 * @param chunkSize The amount of file data carried by each packet.
 	 */
-	public static int getNumberOfPacketsToSend(File file) {
-		return getNumberOfPacketsToSend(file.length());
+	public static long getNumberOfPacketsToSend(long numberOfBytes, int chunkSize)	{
+		//Whole number division, a double loses precision past 2^53 bytes
+		return numberOfBytes / chunkSize + ((numberOfBytes % chunkSize == 0) ? 0 : 1);
 	}
 	
 	/**
-	 * Returns the number of packets required to send the specified file.
-	 * @param numberOfBytes The size of the file to send in bytes.
+	 * Returns a new digest for checking everything a transfer sent, see Protocol.DIGEST.
+	 */
+	public static MessageDigest newTransferDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Returns the file a path names inside a directory, for paths that come
+	 * from the other end of a transfer. Links are followed before checking,
+	 * so a link inside the directory can't lead out of it either.
+	 * @param directory The directory, or null for the working directory.
+	 * @param path The path, relative to the directory.
+	 * @return The file, with its canonical path.
+	 * @throws IOException when the path is empty, absolute, names a drive or leads outside the directory.
 	 */
-	public static int getNumberOfPacketsToSend(long numberOfBytes)	{
-		return (int) Math.ceil(numberOfBytes / MAX_DATA);
+	public static File resolveWithin(File directory, String path) throws IOException {
+		
+		if(isNullOrEmptyString(path))	{
+			throw new IOException("No path given");
+		}
+		
+		//"C:x" is relative to the current directory of drive C, so any drive letter is refused
+		if(path.startsWith("/") || path.startsWith("\\") || new File(path).isAbsolute() || path.matches("^[A-Za-z]:.*"))	{
+			throw new IOException("Unsafe path: " + path);
+		}
+		
+		File root = ((directory != null) ? directory : new File("")).getAbsoluteFile().getCanonicalFile();
+		File file = new File(root, path).getCanonicalFile();
+		
+		if(!file.toPath().startsWith(root.toPath()))	{
+			throw new IOException("Unsafe path: " + path);
+		}
+		
+		return file;
 	}
 	
 	/**
 	 * Listens for a packet to be received.
 	 * @param sock The socket on which the packet is expected.
-	 * @param log The UI component to which diagnostic information should be displayed.
+	 * @param maxSize The largest packet that may arrive.
 	 * @return The DatagramPacket that was received.
 	 * @throws SocketTimeoutException when the socket timesout before receiving a packet.
 	 * @throws IOException when an I/O error occurs.
 	 */
-	public static DatagramPacket receivePacket(DatagramSocket sock, JTextArea log) throws SocketTimeoutException, IOException {
+	public static DatagramPacket receivePacket(DatagramSocket sock, int maxSize) throws SocketTimeoutException, IOException {
 		
-		byte[] receiveData = new byte[1024];
+		byte[] receiveData = new byte[maxSize];
 		
 		DatagramPacket receivedPacket = new DatagramPacket(receiveData,receiveData.length);
 		sock.receive(receivedPacket);
 		
-		//log.append("Received packet from: " + receivedPacket.getAddress().toString() + " : " + Integer.toString(receivedPacket.getPort()) + "\n");
-		
 		return receivedPacket;
 	}
 	
+	/**
+	 * Listens for a packet to be received into a packet that is reused
+	 * from one receive to the next.
+	 * @param sock The socket on which the packet is expected.
+	 * @param packet The packet to receive into, its whole buffer is available.
+	 * @return The packet, holding what was received.
+	 * @throws SocketTimeoutException when the socket timesout before receiving a packet.
+	 * @throws IOException when an I/O error occurs.
+	 */
+	public static DatagramPacket receivePacket(DatagramSocket sock, DatagramPacket packet) throws SocketTimeoutException, IOException {
+		
+		//A receive shrinks the length to what arrived, so open it back up
+		packet.setLength(packet.getData().length);
+		sock.receive(packet);
+		
+		return packet;
+	}
+	
+	/**
+	 * Returns the socket option that sets the IP Don't Fragment bit, or null
+	 * if this JVM doesn't offer one (it appeared in JDK 19). Without it packets
+	 * larger than the path MTU are fragmented rather than dropped, so probing
+	 * finds the largest packet that gets through instead of the largest that
+	 * gets through whole.
+	 */
+	@SuppressWarnings("unchecked")
+	public static SocketOption<Boolean> getDontFragmentOption() {
+		try {
+			Class<?> options = Class.forName("jdk.net.ExtendedSocketOptions");
+			return (SocketOption<Boolean>) options.getField("IP_DONTFRAGMENT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * Sends a packet containing the specified data to the specified IP address
 	 * and port number.
@@ -0,0 +1,68 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes log records to a file or stream, one line each with the time and
+ * level, flushing once per batch rather than once per line.
+ *
+ * @author Eric Ostrowski, Alex Schuitema, Austin Anderson
+ *
+ */
+
+public class WriterSink implements LogSink {
+
+	private Writer out;
+	private boolean closeWhenDone;
+
+	//Only used from the log's thread
+	private SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+	private Date date = new Date();
+
+	/**
+	 * @param out Where to write the records.
+	 * @param closeWhenDone Whether to close out once the log is closed.
+	 */
+	public WriterSink(Writer out, boolean closeWhenDone) {
+		this.out = out;
+		this.closeWhenDone = closeWhenDone;
+	}
+
+	@Override
+	public void write(List<Log.Record> records) {
+
+		StringBuilder text = new StringBuilder();
+
+		for(Log.Record record : records)	{
+			date.setTime(record.getTime());
+			text.append(format.format(date)).append(' ').append(record.getLevel()).append(' ')
+					.append(record.getMessage()).append('\n');
+		}
+
+		try {
+			out.write(text.toString());
+			out.flush();
+		} catch (IOException e) {
+			//Nowhere left to report it
+		}
+	}
+
+	@Override
+	public void close() {
+
+		try {
+
+			if(closeWhenDone)	{
+				out.close();
+			} else {
+				out.flush();
+			}
+
+		} catch (IOException e) {
+		}
+	}
+}